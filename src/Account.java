@@ -9,13 +9,26 @@
 
 package src;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
 public class Account {
+    // Atomic access to the balance field
+    private static final VarHandle BALANCE;
+    static {
+        try {
+            BALANCE = MethodHandles.lookup().findVarHandle(Account.class, "balance", long.class);
+        } catch(ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
     // Keeps track of the last assigned uid
     private static int uidCounter = 0;
     // Unique identifier for the account
     private int uid;
-    // The balance of the account
-    private int balance;
+    // The balance of the account - volatile so reads need no lock
+    private volatile long balance;
 
     /**
      * Initialize a new account with next uid and a balance of 0
@@ -46,14 +59,38 @@ public class Account {
      * Retrieves the balance of the account
      * @return The balance of the account
      */
-    public int getBalance() {
+    public long getBalance() {
         return this.balance;
     }
     /**
      * Updates the balance of the account
      * @param balance The new balance of the account
      */
-    public void setBalance(int balance) {
+    public void setBalance(long balance) {
         this.balance = balance;
     }
+
+    /**
+     * Atomically add to the balance of the account
+     * @param delta The amount to add
+     * @return The new balance of the account
+     */
+    public long addAndGet(long delta) {
+        return (long) BALANCE.getAndAdd(this, delta) + delta;
+    }
+
+    /**
+     * Atomically withdraw from the account if it has enough money
+     * @param amount The amount to withdraw
+     * @return True if the amount was withdrawn, false if it would overdraw the account
+     */
+    public boolean tryWithdraw(long amount) {
+        while(true) {
+            long current = this.balance;
+            if(current < amount)
+                return false;
+            if(BALANCE.compareAndSet(this, current, current - amount))
+                return true;
+        }
+    }
 }
@@ -0,0 +1,47 @@
+/**
+ * @file src/AccountStore.java
+ * @brief Interface for the storage of account balances on a server. BankServer only talks to its accounts through this
+ *          interface so the storage backend can be swapped through the configuration file without changing the bank
+ *          operations. Every operation other than `create` and `contains` expects the account to exist.
+ * @created 2024-03-30
+ * @author Jamison Grudem (grude013)
+ *
+ * @grace_days Using 2 grace days
+ */
+
+package src;
+
+public interface AccountStore {
+
+    // Receives each account during a bulk iteration
+    public interface Visitor {
+        void visit(int uid, long balance);
+    }
+
+    // Create an account with a balance of 0, replacing any existing account with the same uid
+    public void create(int uid);
+    // Check whether an account exists
+    public boolean contains(int uid);
+    // Get the balance of an account
+    public long get(int uid);
+    // Atomically add to the balance of an account, returning the new balance
+    public long addAndGet(int uid, long delta);
+    // Atomically withdraw from an account, returning false instead if it would overdraw the account
+    public boolean tryWithdraw(int uid, long amount);
+    // Get the number of accounts
+    public int size();
+    // Visit every account with its current balance
+    public void forEach(Visitor visitor);
+    // Record the packed clock of the last request applied to an account, a no-op for stores that do not persist
+    public default void markApplied(int uid, long clock) {}
+    // Get the highest packed clock recorded with `markApplied`, 0 if none
+    public default long lastApplied() { return 0; }
+    // Record the last write-ahead log lsn applied to the store, saved when it is closed; a no-op for stores that do
+    // not persist
+    public default void setLsn(long lsn) {}
+    // Get the write-ahead log lsn the store held when it was last closed, -1 if it was not closed cleanly or does not
+    // persist
+    public default long getClosedLsn() { return -1; }
+    // Flush and release the store when the server shuts down
+    public default void close() {}
+}
@@ -0,0 +1,283 @@
+/**
+ * @file src/AccountTable.java
+ * @brief AccountStore for very large numbers of accounts. Account uids and balances live in two primitive arrays indexed
+ *          by an open-addressing hash table (linear probing), so an account costs a few bytes of array space instead of a
+ *          boxed Integer key, a map node and an Account object. Balances are updated in place with atomic array
+ *          operations. Reads are optimistic and take no lock; updates share a read lock that is only held exclusively
+ *          while the table is being resized. The table stops growing at MAX_SLOTS slots, the largest power of two an
+ *          array can hold, and fills up past its load factor from there.
+ * @created 2024-03-30
+ * @author Jamison Grudem (grude013)
+ *
+ * @grace_days Using 2 grace days
+ */
+
+package src;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.StampedLock;
+
+public class AccountTable implements AccountStore {
+
+    // Atomic access to the elements of the key and balance arrays
+    private static final VarHandle KEYS = MethodHandles.arrayElementVarHandle(int[].class);
+    private static final VarHandle BALANCES = MethodHandles.arrayElementVarHandle(long[].class);
+    // Marks an empty slot, so this uid cannot be used for an account
+    private static final int EMPTY = Integer.MIN_VALUE;
+    // The table is grown once it is more than half full
+    private static final int MAX_LOAD_PERCENT = 50;
+    // The table never grows past this many slots
+    private static final int MAX_SLOTS = 1 << 30;
+
+    /**
+     * The arrays backing the table, replaced as a whole when the table is resized
+     */
+    private static class Table {
+        // The uid stored in each slot, or EMPTY
+        final int[] keys;
+        // The balance of the account in each slot
+        final long[] balances;
+        // Mask used to map a hash to a slot, the capacity is a power of two
+        final int mask;
+
+        Table(int capacity) {
+            this.keys = new int[capacity];
+            this.balances = new long[capacity];
+            this.mask = capacity - 1;
+            java.util.Arrays.fill(keys, EMPTY);
+        }
+    }
+
+    // The current table
+    private volatile Table table;
+    // Number of accounts in the table
+    private AtomicInteger size = new AtomicInteger(0);
+    // Held shared by operations and exclusively by a resize
+    private StampedLock resizeLock = new StampedLock();
+
+    /**
+     * Initialize a new AccountTable
+     * @param capacity The expected number of accounts
+     */
+    public AccountTable(int capacity) {
+        long wanted = Math.max(16, (long) capacity * 100 / MAX_LOAD_PERCENT);
+        this.table = new Table((int) Math.min(MAX_SLOTS, Long.highestOneBit(wanted - 1) << 1));
+    }
+
+    /**
+     * Spread the bits of a uid so contiguous uids do not cluster
+     * @param uid The account id
+     * @return [int] The hash of the uid
+     */
+    private static int hash(int uid) {
+        int h = uid * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Find the slot holding an account
+     * @param t The table to search
+     * @param uid The account id
+     * @return [int] The slot, or -1 if the account does not exist
+     */
+    private static int find(Table t, int uid) {
+        int i = hash(uid) & t.mask;
+        while(true) {
+            int key = (int) KEYS.getVolatile(t.keys, i);
+            if(key == uid)
+                return i;
+            if(key == EMPTY)
+                return -1;
+            i = (i + 1) & t.mask;
+        }
+    }
+
+    /**
+     * Find the slot holding an account, throwing if it does not exist
+     * @param t The table to search
+     * @param uid The account id
+     * @return [int] The slot
+     */
+    private static int slot(Table t, int uid) {
+        int i = find(t, uid);
+        if(i < 0)
+            throw new IllegalArgumentException("Account " + uid + " not found");
+        return i;
+    }
+
+    /**
+     * Create an account with a balance of 0, replacing any existing account with the same uid
+     * @param uid The account id
+     * @throws IllegalStateException If the table is at MAX_SLOTS and every slot is taken
+     */
+    public void create(int uid) {
+        if(uid == EMPTY)
+            throw new IllegalArgumentException("Account uid " + uid + " is reserved");
+        boolean added = false;
+        long stamp = resizeLock.readLock();
+        try {
+            Table t = table;
+            int i = hash(uid) & t.mask;
+            long probes = 0;
+            while(true) {
+                int key = (int) KEYS.getVolatile(t.keys, i);
+                // Claim an empty slot - slots are never freed, so its balance is still 0
+                if(key == EMPTY) {
+                    if(KEYS.compareAndSet(t.keys, i, EMPTY, uid)) {
+                        added = true;
+                        break;
+                    }
+                    // Lost the slot to another insert, look at it again
+                    continue;
+                }
+                if(key == uid) {
+                    BALANCES.setVolatile(t.balances, i, 0L);
+                    break;
+                }
+                if(++probes > t.mask)
+                    throw new IllegalStateException("Account table is full at " + (t.mask + 1L) + " accounts");
+                i = (i + 1) & t.mask;
+            }
+        } finally {
+            resizeLock.unlockRead(stamp);
+        }
+        if(added && size.incrementAndGet() * 100L > (table.mask + 1L) * MAX_LOAD_PERCENT)
+            resize();
+    }
+
+    /**
+     * Double the capacity of the table once it is more than half full, unless it is already at MAX_SLOTS
+     */
+    private void resize() {
+        long stamp = resizeLock.writeLock();
+        try {
+            Table old = table;
+            // Another thread may have resized already
+            if(size.get() * 100L <= (old.mask + 1L) * MAX_LOAD_PERCENT || old.mask + 1 >= MAX_SLOTS)
+                return;
+            Table grown = new Table((old.mask + 1) * 2);
+            for(int i = 0; i <= old.mask; i++) {
+                int key = old.keys[i];
+                if(key == EMPTY)
+                    continue;
+                int j = hash(key) & grown.mask;
+                while(grown.keys[j] != EMPTY) {
+                    j = (j + 1) & grown.mask;
+                }
+                grown.keys[j] = key;
+                grown.balances[j] = old.balances[i];
+            }
+            table = grown;
+        } finally {
+            resizeLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Check whether an account exists
+     * @param uid The account id
+     * @return [boolean] True if the account exists
+     */
+    public boolean contains(int uid) {
+        long stamp = resizeLock.tryOptimisticRead();
+        boolean found = find(table, uid) >= 0;
+        if(resizeLock.validate(stamp))
+            return found;
+        // A resize happened during the read, retry under the lock
+        stamp = resizeLock.readLock();
+        try {
+            return find(table, uid) >= 0;
+        } finally {
+            resizeLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Get the balance of an account
+     * @param uid The account id
+     * @return [long] The balance
+     */
+    public long get(int uid) {
+        long stamp = resizeLock.tryOptimisticRead();
+        Table t = table;
+        int i = find(t, uid);
+        long balance = i < 0 ? 0 : (long) BALANCES.getVolatile(t.balances, i);
+        if(resizeLock.validate(stamp) && i >= 0)
+            return balance;
+        // A resize happened during the read, retry under the lock
+        stamp = resizeLock.readLock();
+        try {
+            t = table;
+            return (long) BALANCES.getVolatile(t.balances, slot(t, uid));
+        } finally {
+            resizeLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Atomically add to the balance of an account
+     * @param uid The account id
+     * @param delta The amount to add
+     * @return [long] The new balance
+     */
+    public long addAndGet(int uid, long delta) {
+        long stamp = resizeLock.readLock();
+        try {
+            Table t = table;
+            return (long) BALANCES.getAndAdd(t.balances, slot(t, uid), delta) + delta;
+        } finally {
+            resizeLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Atomically withdraw from an account if it has enough money
+     * @param uid The account id
+     * @param amount The amount to withdraw
+     * @return [boolean] True if the amount was withdrawn, false if it would overdraw the account
+     */
+    public boolean tryWithdraw(int uid, long amount) {
+        long stamp = resizeLock.readLock();
+        try {
+            Table t = table;
+            int i = slot(t, uid);
+            while(true) {
+                long current = (long) BALANCES.getVolatile(t.balances, i);
+                if(current < amount)
+                    return false;
+                if(BALANCES.compareAndSet(t.balances, i, current, current - amount))
+                    return true;
+            }
+        } finally {
+            resizeLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Get the number of accounts
+     * @return [int] The number of accounts
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Visit every account with its current balance, in table order
+     * @param visitor Receives each account
+     */
+    public void forEach(Visitor visitor) {
+        long stamp = resizeLock.readLock();
+        try {
+            Table t = table;
+            for(int i = 0; i <= t.mask; i++) {
+                int key = (int) KEYS.getVolatile(t.keys, i);
+                if(key != EMPTY)
+                    visitor.visit(key, (long) BALANCES.getVolatile(t.balances, i));
+            }
+        } finally {
+            resizeLock.unlockRead(stamp);
+        }
+    }
+}
@@ -0,0 +1,339 @@
+/**
+ * @file src/AckDelivery.java
+ * @brief Ack-driven delivery for lamport ordering, chosen with <delivery>ack</delivery>. Instead of the server that
+ *          received a write telling every peer to execute it in a second round of calls, every server applies the head
+ *          of its request queue on its own as soon as it knows no earlier request can still arrive. For that each
+ *          server keeps, for every peer, the latest safe clock the peer has sent: a promise that every request the
+ *          peer stamped at or below it has already reached this server. A server's safe clock for a peer is its current
+ *          clock, or just below the oldest of its own requests the peer has not yet acknowledged. Safe clocks travel
+ *          with the multicast of a request and with its ACK, and otherwise in acknowledge calls that are coalesced per
+ *          peer, so a burst of requests costs one call per peer rather than one per request. The head is delivered
+ *          once every peer's safe clock has reached it. Because a safe clock only counts requests the peer has
+ *          acknowledged, this needs no FIFO ordering between servers.
+ * @created 2024-03-30
+ * @author Jamison Grudem (grude013)
+ *
+ * @grace_days Using 2 grace days
+ */
+
+package src;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class AckDelivery {
+
+    // The server this delivers requests for
+    private BankServer server;
+    // Latest safe clock received from each peer, by index in `peerServers`
+    private AtomicLongArray peerSafe;
+    // Stamps of this server's own requests each peer has not yet acknowledged, by peer index, guarded by `lock`
+    private ArrayList<TreeSet<Long>> unacked = new ArrayList<TreeSet<Long>>();
+    // Makes stamping or receiving a request and queueing it one step, so a safe clock never passes a request that is
+    // stamped but not yet queued
+    private final ReentrantLock lock = new ReentrantLock();
+    // This server's own requests waiting to be delivered here, by stamp
+    private ConcurrentHashMap<Long, CompletableFuture<Response>> pending = new ConcurrentHashMap<Long, CompletableFuture<Response>>();
+    // Held by the thread delivering requests, so requests are applied one at a time in order
+    private final ReentrantLock deliverLock = new ReentrantLock();
+    // Whether an acknowledge call to each peer is running, and whether a newer safe clock must still be sent to it
+    private AtomicBoolean[] sending;
+    private AtomicBoolean[] dirty;
+    // Number of acknowledge calls sent, and of requests delivered
+    private LongAdder acks = new LongAdder();
+    private LongAdder delivered = new LongAdder();
+
+    /**
+     * Initialize a new AckDelivery
+     * @param server The server to deliver requests for, with its peers added
+     */
+    public AckDelivery(BankServer server) {
+        this.server = server;
+        int peers = server.peerServers.length;
+        this.peerSafe = new AtomicLongArray(peers);
+        this.sending = new AtomicBoolean[peers];
+        this.dirty = new AtomicBoolean[peers];
+        for(int i = 0; i < peers; i++) {
+            unacked.add(new TreeSet<Long>());
+            sending[i] = new AtomicBoolean(false);
+            dirty[i] = new AtomicBoolean(false);
+        }
+    }
+
+    /**
+     * Get the index of a peer
+     * @param id The server id
+     * @return [int] The index in `peerServers`, or -1 if it is not a peer
+     */
+    private int indexOf(int id) {
+        for(int i = 0; i < server.peerIds.length; i++) {
+            if(server.peerIds[i] == id)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Get this server's safe clock for a peer - caller holds `lock`
+     * @param p The peer index
+     * @param except A stamp the peer is receiving along with the clock, so it does not hold the clock back, or 0
+     * @return [long] The packed clock at or below which the peer holds every request of this server
+     */
+    private long safeClock(int p, long except) {
+        for(long stamp : unacked.get(p)) {
+            if(stamp != except)
+                return stamp - 1;
+        }
+        // Everything this server stamps from now on has a higher clock value than the current one
+        return LamportClock.pack(server.clockManager.getClockValue() + 1, 0) - 1;
+    }
+
+    /**
+     * Get this server's safe clock for a peer
+     * @param p The peer index
+     * @return [long] The packed clock
+     */
+    private long safeClock(int p) {
+        lock.lock();
+        try {
+            return safeClock(p, 0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stamp a request received from a client and queue it, as one step
+     * @param req The request, or a batch of requests
+     * @param stamp Sets the request's stamp
+     * @return [CompletableFuture<Response>] Completes with the response once the request is delivered here
+     */
+    public CompletableFuture<Response> register(Request req, Runnable stamp) {
+        CompletableFuture<Response> done = new CompletableFuture<Response>();
+        lock.lock();
+        try {
+            stamp.run();
+            pending.put(req.getStamp(), done);
+            for(TreeSet<Long> stamps : unacked) {
+                stamps.add(req.getStamp());
+            }
+            server.addRequestInSequence(req);
+        } finally {
+            lock.unlock();
+        }
+        return done;
+    }
+
+    /**
+     * Multicast a registered request, record the safe clocks the peers answer with, and wait until the request is
+     * delivered here. The multicast still waits for every peer to queue the request, so a read your writes read on
+     * any server sees it once the client has its response.
+     * @param req The request
+     * @param done The future returned by `register`
+     * @return [Response] The response from applying the request here
+     */
+    public Response order(Request req, CompletableFuture<Response> done) throws RemoteException {
+        // A batch is multicast as its requests, so its first request carries the clock
+        Request carrier = req.getType() == Request.Type.BATCH ? req.getBatch()[0] : req;
+        long safe = Long.MAX_VALUE;
+        lock.lock();
+        try {
+            for(int p = 0; p < unacked.size(); p++) {
+                safe = Math.min(safe, safeClock(p, req.getStamp()));
+            }
+        } finally {
+            lock.unlock();
+        }
+        carrier.withSafeClock(safe);
+        try {
+            Response[] responses = server.multicast(req);
+            lock.lock();
+            try {
+                for(TreeSet<Long> stamps : unacked) {
+                    stamps.remove(req.getStamp());
+                }
+            } finally {
+                lock.unlock();
+            }
+            for(int p = 0; p < responses.length; p++) {
+                peerSafe.accumulateAndGet(p, responses[p].getSafeClock(), Math::max);
+                // The peer has the request now, so this server's clock for it may have moved on
+                notifyPeer(p);
+            }
+            drain();
+            long start = System.nanoTime();
+            long timeout = server.getQueueWaitTimeout();
+            while(true) {
+                try {
+                    Response res = done.get(timeout > 0 ? timeout : 1000, TimeUnit.MILLISECONDS);
+                    server.latency.since(req.getType(), LatencyRecorder.Phase.QUEUE_WAIT, start);
+                    return res;
+                } catch(TimeoutException e) {
+                    Request head = server.requestQueue.peek();
+                    System.out.println("Waiting for request: " + LamportClock.toString(req.getStamp()) + ", Current head: "
+                        + (head == null ? "none" : LamportClock.toString(head.getStamp())) + ", Safe: " + LamportClock.toString(minSafe()));
+                }
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for request " + LamportClock.toString(req.getStamp()));
+        } catch(ExecutionException e) {
+            throw new RemoteException("Request failed", e.getCause());
+        } finally {
+            pending.remove(req.getStamp());
+        }
+    }
+
+    /**
+     * Accept a request multicast by a peer: merge its clock, queue it, and record the peer's safe clock it carries
+     * @param req The request, or a batch of requests
+     * @return [long] This server's safe clock for the peer, sent back with the ACK
+     */
+    public long received(Request req) {
+        Request last = req.getType() == Request.Type.BATCH ? req.getBatch()[req.getBatch().length - 1] : req;
+        int origin = indexOf(LamportClock.serverId(req.getStamp()));
+        long safe;
+        lock.lock();
+        try {
+            server.clockManager.receive(last.getStamp());
+            server.addRequestInSequence(req);
+            safe = origin < 0 ? 0 : safeClock(origin, 0);
+        } finally {
+            lock.unlock();
+        }
+        if(origin >= 0)
+            peerSafe.accumulateAndGet(origin, req.getSafeClock(), Math::max);
+        // The clock moved past the request, let the other peers know so they can deliver it
+        for(int p = 0; p < peerSafe.length(); p++) {
+            if(p != origin)
+                notifyPeer(p);
+        }
+        server.peerExecutor.execute(this::drain);
+        return safe;
+    }
+
+    /**
+     * Record a safe clock sent by a peer and deliver what it allows
+     * @param id The id of the peer
+     * @param clock The peer's safe clock for this server
+     */
+    public void acknowledge(int id, long clock) {
+        int p = indexOf(id);
+        if(p < 0)
+            return;
+        peerSafe.accumulateAndGet(p, clock, Math::max);
+        drain();
+    }
+
+    /**
+     * Send this server's safe clock to a peer, coalescing with any send already running
+     * @param p The peer index
+     */
+    private void notifyPeer(int p) {
+        dirty[p].set(true);
+        if(sending[p].compareAndSet(false, true))
+            server.peerExecutor.execute(() -> sendSafeClock(p));
+    }
+
+    /**
+     * Send this server's safe clock to a peer until no newer one is waiting
+     * @param p The peer index
+     */
+    private void sendSafeClock(int p) {
+        try {
+            while(dirty[p].getAndSet(false)) {
+                server.peerServers[p].acknowledge(server.getId(), safeClock(p));
+                acks.increment();
+            }
+        } catch(RemoteException e) {
+            if(!server.halted.get())
+                System.out.println("Could not send safe clock to Server-" + server.peerIds[p] + ": " + e.getMessage());
+        } finally {
+            sending[p].set(false);
+            // A clock raised after the last check but before `sending` was cleared still has to go out
+            if(dirty[p].get() && sending[p].compareAndSet(false, true))
+                server.peerExecutor.execute(() -> sendSafeClock(p));
+        }
+    }
+
+    /**
+     * Get the clock every peer has promised not to send a request at or below
+     * @return [long] The lowest safe clock of the peers
+     */
+    private long minSafe() {
+        long min = Long.MAX_VALUE;
+        for(int p = 0; p < peerSafe.length(); p++) {
+            min = Math.min(min, peerSafe.get(p));
+        }
+        return min;
+    }
+
+    /**
+     * Apply the head of the queue for as long as no earlier request can still arrive. A halt is preceded by sending
+     * this server's safe clock to every peer, so they can deliver the halt after this server shuts down.
+     */
+    private void drain() {
+        while(true) {
+            if(!deliverLock.tryLock())
+                return;
+            try {
+                Request head;
+                while((head = server.requestQueue.peek()) != null && head.getStamp() <= minSafe()) {
+                    if(head.getType() == Request.Type.HALT)
+                        flush();
+                    Response res = server.executeDelivered(head);
+                    delivered.increment();
+                    CompletableFuture<Response> done = pending.remove(head.getStamp());
+                    if(done != null)
+                        done.complete(res);
+                }
+            } finally {
+                deliverLock.unlock();
+            }
+            // Re-check in case a request or clock arrived after the last check but before the lock was released
+            Request head = server.requestQueue.peek();
+            if(head == null || head.getStamp() > minSafe())
+                return;
+        }
+    }
+
+    /**
+     * Send this server's safe clock to every peer and wait for them to receive it
+     */
+    private void flush() {
+        for(int p = 0; p < peerSafe.length(); p++) {
+            try {
+                server.peerServers[p].acknowledge(server.getId(), safeClock(p));
+                acks.increment();
+            } catch(RemoteException e) {
+                // Already halted
+            }
+        }
+    }
+
+    /**
+     * Get the number of acknowledge calls sent
+     * @return [long] The call count
+     */
+    public long getAcks() {
+        return acks.sum();
+    }
+
+    /**
+     * Get the number of requests delivered
+     * @return [long] The request count
+     */
+    public long getDelivered() {
+        return delivered.sum();
+    }
+}
@@ -12,8 +12,10 @@
 package src;
 
 import java.io.File;
-import java.rmi.Naming;
-import java.time.LocalDateTime;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -21,19 +23,31 @@ import org.w3c.dom.Document;
 
 /**
  * ClientThread
- * Implements the threading class to perform multi-threaded random transfers to the server.
+ * A simulated client performing random transfers to the servers. Each runs on a platform or virtual thread of its own.
  */
-class ClientThread extends Thread {
+class ClientThread implements Runnable {
 
     // List of available servers
     private IBankServer[] servers;
+    // The client log
+    private EventLog log;
+    // Highest packed clock of any completed write, shared by all clients
+    private AtomicLong lastWrite;
+    // Latency histograms shared by all clients, each thread's transfer times are merged in when it finishes
+    private LatencyRecorder latency;
 
     /**
      * Constructor
      * @param servers List of available servers
+     * @param log The client log
+     * @param lastWrite Highest packed clock of any completed write, shared by all clients
+     * @param latency Latency histograms shared by all clients
      */
-    public ClientThread(IBankServer[] servers) {
+    public ClientThread(IBankServer[] servers, EventLog log, AtomicLong lastWrite, LatencyRecorder latency) {
         this.servers = servers;
+        this.log = log;
+        this.lastWrite = lastWrite;
+        this.latency = latency;
     }
 
     /**
@@ -42,7 +56,8 @@ class ClientThread extends Thread {
      */
     public void run() {
         try {
-            Timer timer = new Timer();
+            Histogram times = new Histogram();
+            int tid = (int) Thread.currentThread().getId();
 
             // Perform 200 random transfers
             for(int i = 0; i < 200; i++) {
@@ -58,23 +73,38 @@ class ClientThread extends Thread {
                 }
 
                 // Build the request
-                Request req = (new Request()).ofType(Request.Type.TRANSFER).from(from).to(to).withAmount(10).withOrigin("Thread-" + Thread.currentThread().getId());
+                Request req = (new Request()).ofType(Request.Type.TRANSFER).from(from).to(to).withAmount(10).withOriginId(EventLog.threadOrigin(Thread.currentThread().getId()));
 
                 // Logging and timing
-                Printer.print("T-" + Thread.currentThread().getId() + " | Server-" + serverId + " | REQ | " + LocalDateTime.now() + " | TRANSFER | from=" + from + ", to=" + to + ", amount=10", Printer.File.CLIENT, "", "#e3b28a");
-                timer.start();
+                EventLog.Event sent = EventLog.event(EventLog.Type.REQ, tid, req);
+                sent.target = serverId;
+                log.record(sent);
+                long start = System.nanoTime();
 
                 // Send the request and get the response
                 Response res = server.clientRequest(req);
 
                 // Logging and timing
-                timer.stop();
-                Printer.print("T-" + Thread.currentThread().getId() + " | Server-" + serverId + " | RES | " + LocalDateTime.now() + " | " + res.getType() + " | time=" + timer.getTime() + "s, success=" + res.getSuccess() + ", timestamp=" + res.getClock(), Printer.File.CLIENT, "", "#b2f7b9");
-                timer.clear();
+                long elapsed = System.nanoTime() - start;
+                times.record(elapsed);
+                lastWrite.accumulateAndGet(res.getStamp(), Math::max);
+                EventLog.Event received = EventLog.event(EventLog.Type.RES, tid);
+                received.target = serverId;
+                received.op = req.getType();
+                received.clock = res.getStamp();
+                received.b = res.getSuccess() ? 1 : 0;
+                received.c = res.getType() == null ? -1 : res.getType().ordinal();
+                received.e = elapsed;
+                log.record(received);
             }
 
-            // Log average transfer time for this thread
-            Printer.print("T-" + Thread.currentThread().getId() + " | | | " + LocalDateTime.now() + " | REPORT | avg transfer time=" + timer.getAverage(), Printer.File.CLIENT, "", "#737bf0");
+            // Log the transfer times of this thread and add them to those of all threads
+            EventLog.Event report = EventLog.event(EventLog.Type.CLIENT_REPORT, tid);
+            report.text = "transfer " + times.summary();
+            report.a = (int) times.getCount();
+            report.e = times.getMean();
+            log.record(report);
+            latency.get(Request.Type.TRANSFER, LatencyRecorder.Phase.TOTAL).merge(times);
         } 
         // Catch any exceptions here
         catch (Exception e) {
@@ -113,8 +143,10 @@ public class BankClient {
             String configSid = configDoc.getElementsByTagName("id").item(i).getTextContent();
             serverLinks += "<a href='server" + configSid + ".html'>Server-" + configSid + " Log</a> | ";
         }
-        Printer.initHtmlLog(Printer.File.CLIENT, "", serverLinks);
-        Printer.print("MAIN | | START | " + LocalDateTime.now(), Printer.File.CLIENT, "", "#b2b7f7");
+        Config config = new Config(configDoc);
+        Printer.configure(config);
+        EventLog log = new EventLog(Printer.File.CLIENT, "", serverLinks, config);
+        log.record(EventLog.event(EventLog.Type.START, EventLog.ORIGIN_MAIN));
 
         // Establish connections to all servers, storing their connections in an array
         IBankServer[] servers = new IBankServer[serverCount];
@@ -123,64 +155,109 @@ public class BankClient {
             String host = configDoc.getElementsByTagName("hostname").item(i).getTextContent();
             int port = Integer.parseInt(configDoc.getElementsByTagName("port").item(i).getTextContent());
             // Connect to the server - log before and after
-            Printer.print("MAIN | Server-" + i + " | REQ | " + LocalDateTime.now() + " | CONNECT | " + host + ":" + port, Printer.File.CLIENT, "", "#e3b28a");
-            servers[i] = (IBankServer) Naming.lookup("//" + host + ":" + port + "/BankServer");
-            Printer.print("MAIN | Server-" + i + " | RES | " + LocalDateTime.now() + " | | success=" + true, Printer.File.CLIENT, "", "#b2f7b9");
+            EventLog.Event connect = EventLog.event(EventLog.Type.CONNECT, EventLog.ORIGIN_MAIN);
+            connect.target = i;
+            connect.text = host + ":" + port;
+            log.record(connect);
+            servers[i] = Transport.connect(config, host, port);
+            EventLog.Event connected = EventLog.event(EventLog.Type.CONNECTED, EventLog.ORIGIN_MAIN);
+            connected.target = i;
+            log.record(connected);
         }
 
-        // Create and start the client threads
+        // Create and start the client threads, one platform or virtual thread per client
         System.out.println("Creating and starting client threads...");
-        ClientThread[] threads = new ClientThread[threadCount];
+        ExecutorService clients = Threads.perTask("client", Threads.isVirtual(config));
+        AtomicLong lastWrite = new AtomicLong(0);
+        LatencyRecorder latency = new LatencyRecorder();
         for (int i = 0; i < threadCount; i++) {
-            threads[i] = new ClientThread(servers);
-            threads[i].start();
+            clients.execute(new ClientThread(servers, log, lastWrite, latency));
         }
         
         // Wait for all the client threads to finish
         System.out.println("Waiting for client threads to finish...");
-        for (int i = 0; i < threadCount; i++) {
-            threads[i].join();
-        }
+        clients.shutdown();
+        clients.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+
+        // Log the transfer times of all threads together
+        Histogram transfers = latency.get(Request.Type.TRANSFER, LatencyRecorder.Phase.TOTAL);
+        EventLog.Event transferReport = EventLog.event(EventLog.Type.CLIENT_REPORT, EventLog.ORIGIN_MAIN);
+        transferReport.text = "all transfers " + transfers.summary();
+        transferReport.a = (int) transfers.getCount();
+        transferReport.e = transfers.getMean();
+        log.record(transferReport);
 
-        // Get the balance of each account
+        // Get the balance of each account, with read-your-writes the reads wait for every transfer made above
         System.out.println("Verifying post-threading-transfer balance...");
-        Timer timer = new Timer();
+        boolean readYourWrites = config.getString("readConsistency", "latest").equalsIgnoreCase("read_your_writes");
+        long token = readYourWrites ? lastWrite.get() : 0;
+        Histogram reads = latency.get(Request.Type.GET_BALANCE, LatencyRecorder.Phase.TOTAL);
         for(int sid = 0; sid < servers.length; sid++) {
-            int total = 0;
+            long total = 0;
             IBankServer serv = servers[sid];
             for (int i = 1; i < 21; i++) {
                 // Logging and timing
-                Printer.print("MAIN | Server-" + sid + " | REQ | " + LocalDateTime.now() + " | GET_BALANCE | account=" + i, Printer.File.CLIENT, "", "#e3b28a");
-                timer.start();
+                Request req = (new Request()).ofType(Request.Type.GET_BALANCE).withUid(i).withOriginId(EventLog.ORIGIN_MAIN).readYourWrites(token);
+                EventLog.Event sent = EventLog.event(EventLog.Type.REQ, EventLog.ORIGIN_MAIN, req);
+                sent.target = sid;
+                log.record(sent);
+                long start = System.nanoTime();
                 // Send the request and get the response
-                Response res = serv.clientRequest((new Request()).ofType(Request.Type.GET_BALANCE).withUid(i).withOrigin("MAIN"));
+                Response res = serv.clientRequest(req);
                 // Logging and timing
-                timer.stop();
-                Printer.print("MAIN | Server-" + sid + " | RES | " + LocalDateTime.now() + " | GET_BALANCE | time=" + timer.getTime() + "s, account=" + i + ", balance=" + res.getBalance(), Printer.File.CLIENT, "", "#b2f7b9");
-                timer.clear();
+                long elapsed = System.nanoTime() - start;
+                reads.record(elapsed);
+                EventLog.Event received = EventLog.event(EventLog.Type.RES, EventLog.ORIGIN_MAIN);
+                received.target = sid;
+                received.op = Request.Type.GET_BALANCE;
+                received.a = i;
+                received.d = res.getBalance();
+                received.e = elapsed;
+                log.record(received);
                 total += res.getBalance();
             }
-            Printer.print("MAIN | Server-" + sid + " | | " + LocalDateTime.now() + " | TOTAL | balance=" + total, Printer.File.CLIENT, "", "#b2b7f7");
+            EventLog.Event totalEvent = EventLog.event(EventLog.Type.CLIENT_TOTAL, EventLog.ORIGIN_MAIN);
+            totalEvent.target = sid;
+            totalEvent.e = total;
+            log.record(totalEvent);
         }        
-        // Log the average get balance time
-        Printer.print("MAIN | | | " + LocalDateTime.now() + " | REPORT | avg get balance time=" + timer.getAverage(), Printer.File.CLIENT, "", "#737bf0");
+        // Log the get balance times
+        EventLog.Event report = EventLog.event(EventLog.Type.CLIENT_REPORT, EventLog.ORIGIN_MAIN);
+        report.text = "get balance " + reads.summary();
+        report.a = (int) reads.getCount();
+        report.e = reads.getMean();
+        log.record(report);
 
         // Send a halt message to Server0
-        Printer.print("MAIN | Server-0 | REQ | " + LocalDateTime.now() + " | HALT | ", Printer.File.CLIENT, "", "#e3b28a");
+        Request halt = (new Request()).ofType(Request.Type.HALT).withOriginId(EventLog.ORIGIN_MAIN);
+        EventLog.Event haltSent = EventLog.event(EventLog.Type.REQ, EventLog.ORIGIN_MAIN, halt);
+        haltSent.target = 0;
+        log.record(haltSent);
         System.out.println("Sending halt message to Server-0...");
-        timer.start();
+        long haltStart = System.nanoTime();
         try {
-            servers[0].clientRequest((new Request()).ofType(Request.Type.HALT).withOrigin("MAIN"));
+            servers[0].clientRequest(halt);
         } 
         // Ignore this exception
         catch(Exception e) {}
         // Logging and timing for the halt message
-        timer.stop();
-        Printer.print("MAIN | Server-0 | RES | " + LocalDateTime.now() + " | HALT | time=" + timer.getTime() + "s, success=true", Printer.File.CLIENT, "", "#b2f7b9");
-        timer.clear();
+        long haltTime = System.nanoTime() - haltStart;
+        latency.record(Request.Type.HALT, LatencyRecorder.Phase.TOTAL, haltTime);
+        EventLog.Event haltReceived = EventLog.event(EventLog.Type.RES, EventLog.ORIGIN_MAIN);
+        haltReceived.target = 0;
+        haltReceived.op = Request.Type.HALT;
+        haltReceived.e = haltTime;
+        log.record(haltReceived);
+
+        // Save the histograms, to be merged with those of the servers
+        try {
+            latency.save("../log/client.latency");
+        } catch(IOException e) {
+            System.out.println("Could not save latency histograms: " + e);
+        }
 
         // Close the client and clean up
         System.out.println("Client has finished.");
-        Printer.closeHtmlLog(Printer.File.CLIENT, "");
+        log.close();
     }
 }
@@ -19,9 +19,21 @@ import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.HashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
 import java.io.File;
-import java.time.LocalDateTime;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -33,16 +45,69 @@ public class BankServer implements IBankServer {
     private int serverId = -1;
     // Store the rmi port the server is running on
     private int rmiPort = 1099;
-    // Our local copy of the database - hash map of accounts
-    ConcurrentHashMap<Integer, Account> accounts = new ConcurrentHashMap<Integer, Account>();
-    // Queue of requests to be executed
-    ArrayList<Request> requestQueue = new ArrayList<Request>();
+    // Our local copy of the database - chosen with <accountStore> in the configuration file
+    AccountStore accounts = new MapAccountStore();
+    // Set once the server has started halting
+    AtomicBoolean halted = new AtomicBoolean(false);
+    // Queue of requests to be executed, ordered by lamport clock
+    RequestQueue requestQueue = new RequestQueue();
     // Array of peer servers
     IBankServer[] peerServers;
+    // Ids of the peer servers, cached so logging does not need a remote call
+    int[] peerIds;
+    // Total time (ns) and number of calls made to each peer, used to find slow replicas
+    AtomicLongArray peerNanos;
+    AtomicLongArray peerCalls;
+    // Bounded pool used to send requests to all peers concurrently
+    ExecutorService peerExecutor;
+    // Number of threads in the peer pool, per peer
+    private int peerThreads = 8;
+    // Whether requests, peer calls and batches run on virtual threads
+    boolean virtualThreads = false;
+    // Groups client requests into batches, null when batching is disabled
+    RequestBatcher batcher;
+    // Orders writes through a single sequencer, null when using the lamport protocol
+    Sequencer sequencer;
+    // Orders each write only after the earlier writes on the same accounts, null unless using dependency ordering
+    DependencyTracker dependencies;
+    // Applies requests once no earlier request can arrive instead of when told to execute, null unless using ack delivery
+    AckDelivery delivery;
+    // Whether operations that cannot fail skip ordering and are applied everywhere at once
+    boolean commutative = false;
+    // Applies windows of ordered requests, in parallel where they touch different accounts
+    ExecutionScheduler scheduler = new ExecutionScheduler(1, "execute");
+    // Splits the accounts between groups of servers, null when every server holds every account
+    Shards shards;
+    // The shard of this server, whose members are the peer servers
+    int shard = 0;
+    // Connections to the servers of the other shards, by shard
+    ArrayList<ArrayList<IBankServer>> shardServers = new ArrayList<ArrayList<IBankServer>>();
     // The clock manager for the server - stores timestamps
     LamportClockManager clockManager;
-    // Store the time it takes to execute requests
-    ArrayList<Double> timeEntries = new ArrayList<Double>();
+    // The log for the server
+    EventLog log;
+    // Write-ahead log of executed requests, null when disabled
+    WriteAheadLog wal;
+    // Takes snapshots of the accounts for recovery, null when the write-ahead log is disabled
+    Snapshotter snapshotter;
+    // Amounts reserved and accounts held by the cross-shard transfers this shard has prepared
+    TransferHolds holds;
+    // Cross-shard transfers this server coordinates that have not finished, null without shards
+    TransferLog transfers;
+    // Sends the pending cross-shard transfers again until they finish, null until started
+    private ScheduledExecutorService transferRetry;
+    // ms between attempts to finish the pending cross-shard transfers
+    private long transferRetryInterval = 1000;
+    // Serves calls over the NIO transport, null when using RMI
+    NioServer nioServer;
+    // Latency histograms of each request type and protocol phase
+    LatencyRecorder latency = new LatencyRecorder();
+    // Number of balance reads that had to wait for a write
+    LongAdder readWaits = new LongAdder();
+    // Number of requests that had to wait for an earlier request on the same accounts, in dependency ordering
+    LongAdder dependencyWaits = new LongAdder();
+    // How long (ms) a request waits for the head of the queue before logging that it is still waiting
+    private long queueWaitTimeout = 1000;
     
     /**
      * Default constructor for BankServer
@@ -62,31 +127,168 @@ public class BankServer implements IBankServer {
         this.serverId = serverId;
         this.rmiPort = rmiPort;
         this.peerServers = new IBankServer[peerCount];
-        this.clockManager = new LamportClockManager();
+        this.peerIds = new int[peerCount];
+        this.peerNanos = new AtomicLongArray(peerCount);
+        this.peerCalls = new AtomicLongArray(peerCount);
+        this.clockManager = new LamportClockManager(serverId);
+    }
+
+    /**
+     * Load optional settings from the configuration file
+     * @param config The server configuration
+     */
+    public void loadSettings(Config config) throws IOException {
+        this.queueWaitTimeout = config.getLong("queueWaitTimeout", queueWaitTimeout);
+        latency.startReports(log, serverId, config.getLong("latencyReportInterval", 0));
+        this.peerThreads = Math.max(1, config.getInt("peerThreads", peerThreads));
+        this.virtualThreads = Threads.isVirtual(config);
+        this.scheduler = new ExecutionScheduler(config.getInt("executionThreads", 1), "Server-" + serverId + "-execute");
+        // Primitive account table for servers holding very many accounts
+        String store = config.getString("accountStore", "map");
+        if(store.equalsIgnoreCase("table"))
+            this.accounts = new AccountTable(config.getInt("accountCapacity", 1024));
+        // Memory-mapped ledger that survives a restart of the server
+        else if(store.equalsIgnoreCase("ledger"))
+            this.accounts = new MappedLedger(Paths.get(config.getString("dataDir", "../data"), "server" + serverId + ".ledger"),
+                config.getInt("accountCapacity", 1024), !config.getString("walDurability", "off").equalsIgnoreCase("off"));
+        this.holds = new TransferHolds(accounts);
+        // Write-ahead log is enabled by choosing its durability level
+        String durability = config.getString("walDurability", "off");
+        if(!durability.equalsIgnoreCase("off")) {
+            Path walPath = Paths.get(config.getString("dataDir", "../data"), "server" + serverId + ".wal");
+            this.wal = new WriteAheadLog(walPath, WriteAheadLog.Durability.valueOf(durability.toUpperCase()),
+                config.getLong("walSyncInterval", 10));
+            this.snapshotter = new Snapshotter(accounts, holds, wal, walPath, walPath.resolveSibling("server" + serverId + ".snap"),
+                config.getLong("snapshotInterval", 60000));
+        }
+        // Cross-shard transfers are logged next to the write-ahead log, so a restarted coordinator finishes them
+        if(shards != null) {
+            this.transfers = new TransferLog(wal == null ? null
+                : Paths.get(config.getString("dataDir", "../data"), "server" + serverId + ".transfers"));
+            this.transferRetryInterval = Math.max(1, config.getLong("transferRetryInterval", transferRetryInterval));
+        }
+        // Batching is enabled when more than one request may be grouped into a batch
+        int batchSize = config.getInt("batchSize", 1);
+        if(batchSize > 1)
+            this.batcher = new RequestBatcher(this, batchSize, config.getLong("batchWindow", 2), virtualThreads);
+        // Sequencer ordering, by default every server may act as the sequencer in id order. Majority commit
+        // replicates through the sequencer's log, so it always uses sequencer ordering.
+        boolean majority = config.getString("commit", "all").equalsIgnoreCase("majority");
+        String ordering = config.getString("ordering", "lamport");
+        if(majority || ordering.equalsIgnoreCase("sequencer")) {
+            int[] members = new int[peerServers.length + 1];
+            if(shards != null)
+                members = shards.members(shard);
+            else {
+                for(int i = 0; i < members.length; i++) {
+                    members[i] = i;
+                }
+            }
+            // Only the servers of this shard may sequence its requests
+            ArrayList<Integer> candidates = new ArrayList<Integer>();
+            String list = config.getString("sequencers", "");
+            for(int id : list.isEmpty() ? members : Sequencer.parseCandidates(list)) {
+                if(shards == null || (id < shards.servers() && shards.ofServer(id) == shard))
+                    candidates.add(id);
+            }
+            if(candidates.isEmpty()) {
+                for(int id : members) {
+                    candidates.add(id);
+                }
+            }
+            // Accepted requests are logged next to the write-ahead log, as durable as its records
+            SequenceLog accepted = wal == null ? null : new SequenceLog(Paths.get(config.getString("dataDir", "../data"), "server" + serverId + ".seq"),
+                wal.getDurability() == WriteAheadLog.Durability.SYNC);
+            this.sequencer = new Sequencer(this, candidates.stream().mapToInt(Integer::intValue).toArray(), majority, accepted);
+        }
+        // Dependency ordering, writes only wait for earlier writes on the same accounts
+        else if(ordering.equalsIgnoreCase("dependency"))
+            this.dependencies = new DependencyTracker();
+        // Ack-driven delivery replaces the execute round of lamport ordering
+        else if(config.getString("delivery", "execute").equalsIgnoreCase("ack"))
+            this.delivery = new AckDelivery(this);
+        // Replicas in sequencer ordering or ack delivery decide transfers on their own, so they must see deposits in order
+        this.commutative = config.getString("commutative", "off").equalsIgnoreCase("on");
+        if(commutative && (sequencer != null || delivery != null)) {
+            System.out.println("Commutative deposits need execute messages to carry outcomes, ordering them");
+            this.commutative = false;
+        }
+    }
+
+    /**
+     * Get how long a request waits before logging that it is still waiting
+     * @return [long] The timeout in milliseconds
+     */
+    public long getQueueWaitTimeout() {
+        return queueWaitTimeout;
+    }
+
+    /**
+     * Start the pool used to fan requests out to the peer servers. With virtual threads every peer call gets a
+     * thread of its own instead of a bounded pool.
+     */
+    public void startPeerExecutor() {
+        if(virtualThreads)
+            this.peerExecutor = Threads.perTask("Server-" + serverId + "-peer", true);
+        else
+            this.peerExecutor = Executors.newFixedThreadPool(Math.max(1, peerThreads * peerServers.length),
+                Threads.factory("Server-" + serverId + "-peer", false));
+    }
+
+    /**
+     * Split the accounts between groups of servers, this server only stores and orders the accounts of its shard
+     * @param shards The shards, or null when every server holds every account
+     */
+    public void setShards(Shards shards) {
+        this.shards = shards;
+        if(shards == null)
+            return;
+        this.shard = shards.ofServer(serverId);
+        for(int i = 0; i < shards.count(); i++) {
+            shardServers.add(new ArrayList<IBankServer>());
+        }
+    }
+
+    /**
+     * Add a server of another shard, used to forward requests for the accounts that shard owns
+     * @param peer IBankServer object to add
+     * @param peerShard The shard of the server
+     */
+    public void addShardPeer(IBankServer peer, int peerShard) {
+        shardServers.get(peerShard).add(peer);
+    }
+
+    /**
+     * Check whether this server's shard owns an account
+     * @param uid The account id
+     * @return [boolean] True if this server stores the account
+     */
+    public boolean owns(int uid) {
+        return shards == null || shards.ofAccount(uid) == shard;
     }
 
     /**
      * Add a peer server to the list of servers
      * @param peer IBankServer object to add
      */
-    public void addPeer(IBankServer peer) {
+    public void addPeer(IBankServer peer) throws RemoteException {
         for(int i = 0; i < peerServers.length; i++) {
             if(peerServers[i] == null) {
                 peerServers[i] = peer;
+                peerIds[i] = peer.getId();
                 return;
             }
         }
     }
 
     /**
-     * Create a new account
+     * Create a new account - the account store inserts it atomically, so no lock is needed
      * @param uid The account id
      * @return The account id
      */
-    public synchronized int createAccount(int uid) throws RemoteException {
-        Account a = new Account(uid);
-        accounts.put(a.getUid(), a);
-        return a.getUid();
+    public int createAccount(int uid) throws RemoteException {
+        accounts.create(uid);
+        return uid;
     }
 
     /**
@@ -94,11 +296,11 @@ public class BankServer implements IBankServer {
      * @param uid The account id
      * @return The balance of the account
      */
-    public synchronized int getBalance(int uid) throws RemoteException {
-        if (!accounts.containsKey(uid)) {
+    public long getBalance(int uid) throws RemoteException {
+        if (!accounts.contains(uid)) {
             throw new RemoteException("[Balance] Account " + uid + " not found");
         }
-        return accounts.get(uid).getBalance();
+        return accounts.get(uid);
     }
 
     /**
@@ -107,13 +309,12 @@ public class BankServer implements IBankServer {
      * @param amount The amount to deposit
      * @return True if the deposit was successful, false otherwise
      */
-    public synchronized boolean deposit(int uid, int amount) throws RemoteException {
+    public boolean deposit(int uid, int amount) throws RemoteException {
         // Check to make sure account with uid exists
-        if (!accounts.containsKey(uid)) {
+        if (!accounts.contains(uid)) {
             throw new RemoteException("[Deposit] Account " + uid + " not found");
         }
-        Account a = accounts.get(uid);
-        a.setBalance(amount + a.getBalance());
+        accounts.addAndGet(uid, amount);
         return true;
     }
 
@@ -124,21 +325,17 @@ public class BankServer implements IBankServer {
      * @param amount The amount to transfer
      * @return True if the transfer was successful, false otherwise
      */
-    public synchronized boolean transfer(int fromUid, int toUid, int amount) throws RemoteException {
+    public boolean transfer(int fromUid, int toUid, int amount) throws RemoteException {
         // Check to make sure account with uid exists
-        if (!accounts.containsKey(fromUid) || !accounts.containsKey(toUid)) {
+        if (!accounts.contains(fromUid) || !accounts.contains(toUid)) {
             throw new RemoteException("[Transfer] Account(s) not found");
         }
-        // Get to and from accounts
-        Account from = accounts.get(fromUid);
-        Account to = accounts.get(toUid);
-        // Verify that from account has enough money
-        if (from.getBalance() < amount) { 
+        // Withdraw only if from account has enough money that no cross-shard transfer has reserved
+        if (holds.available(fromUid) < amount || !accounts.tryWithdraw(fromUid, amount)) { 
             return false;
         }
         // Transfer money
-        from.setBalance(from.getBalance() - amount);
-        to.setBalance(to.getBalance() + amount);
+        accounts.addAndGet(toUid, amount);
         return true;
     }
 
@@ -146,21 +343,35 @@ public class BankServer implements IBankServer {
      * Halt the server, print out the final balances of all accounts and the request queue, then shutdown
      * @throws RemoteException
      */
-    public synchronized void halt() throws RemoteException {
+    public void halt() throws RemoteException {
+        // Only halt once
+        if(!halted.compareAndSet(false, true))
+            return;
         // Log balances of all accounts
-        int total = 0;
+        long total = 0;
         for(int i = 1; i < 21; i++) {
+            // With shards only the accounts of this shard are stored here
+            if(!owns(i))
+                continue;
             total += getBalance(i);
-            Printer.print("Server-" + serverId + " | | " + LocalDateTime.now() + " | | | GET_BALANCE | balance=" + getBalance(i), Printer.File.SERVER, "" + serverId, "#b2b7f7");
+            EventLog.Event balance = EventLog.event(EventLog.Type.BALANCE, serverId);
+            balance.a = i;
+            balance.e = getBalance(i);
+            log.record(balance);
         }
-        Printer.print("Server-" + serverId + " | | " + LocalDateTime.now() + " | | | TOTAL | balance=" + total, Printer.File.SERVER, "" + serverId, "#737bf0");
+        EventLog.Event totalEvent = EventLog.event(EventLog.Type.TOTAL, serverId);
+        totalEvent.e = total;
+        log.record(totalEvent);
 
         // Log the request queue
-        Printer.print("Server-" + serverId + " | | " + LocalDateTime.now() + " | | | QUEUE_PRINT", Printer.File.SERVER, "" + serverId, "#b2b7f7");
+        EventLog.Event queuePrint = EventLog.event(EventLog.Type.QUEUE_PRINT, serverId);
+        queuePrint.a = requestQueue.getDepth();
+        queuePrint.b = requestQueue.getMaxDepth();
+        log.record(queuePrint);
         for(Request r : requestQueue) {
-            Printer.print("Server-" + serverId + " | | " + LocalDateTime.now() + " | | | QUEUE | " + r.getType() + " | " + r.parametersToString(), Printer.File.SERVER, "" + serverId, "#b2b7f7");
+            log.record(EventLog.event(EventLog.Type.QUEUE, serverId, r));
         }
-        Printer.print("Server-" + serverId + " | | " + LocalDateTime.now() + " | | | EXIT", Printer.File.SERVER, "" + serverId, "#737bf0");
+        log.record(EventLog.event(EventLog.Type.EXIT, serverId));
 
         // Shutdown the server
         shutdown(this, serverId, rmiPort);
@@ -191,20 +402,98 @@ public class BankServer implements IBankServer {
      */
     public static void shutdownStatic(BankServer server, int serverId, int rmiPort) {
         try {
-            // Get and log the total average request time
-            double avgTime = 0;
-            for(double time : server.timeEntries) {
-                avgTime += time;
+            // Let windows still being applied in parallel finish, before they are reported and the durable state is closed
+            server.scheduler.close();
+            // Log the total average request time
+            server.latency.close();
+            EventLog.Event report = EventLog.event(EventLog.Type.REPORT, serverId);
+            report.a = server.requestQueue.getMaxDepth();
+            report.e = server.latency.writes().getMean();
+            server.log.record(report);
+            // Log the balance reads separately from the ordered requests
+            Histogram readTimes = server.latency.get(Request.Type.GET_BALANCE, LatencyRecorder.Phase.TOTAL);
+            EventLog.Event readReport = EventLog.event(EventLog.Type.READ_REPORT, serverId);
+            readReport.a = (int) readTimes.getCount();
+            readReport.b = (int) server.readWaits.sum();
+            readReport.d = readTimes.getMax();
+            readReport.e = readTimes.getMean();
+            server.log.record(readReport);
+            // Log the latency percentiles of each request type and phase, and save them to be merged across servers
+            server.latency.report(server.log, serverId);
+            try {
+                server.latency.save("../log/server" + serverId + ".latency");
+            } catch(IOException e) {
+                System.out.println("Could not save latency histograms: " + e);
+            }
+            // Log how much parallelism the execution windows had
+            if(server.scheduler.isParallel()) {
+                EventLog.Event execReport = EventLog.event(EventLog.Type.EXEC_REPORT, serverId);
+                execReport.a = server.scheduler.getThreads();
+                execReport.b = (int) server.scheduler.getWindows();
+                execReport.text = String.format("%.2f", server.scheduler.getAvgLevels());
+                server.log.record(execReport);
+            }
+            // Log how many writes had to wait for a conflicting write in dependency ordering
+            if(server.dependencies != null) {
+                EventLog.Event depReport = EventLog.event(EventLog.Type.DEP_REPORT, serverId);
+                depReport.a = (int) server.dependencies.getApplied();
+                depReport.b = (int) server.dependencyWaits.sum();
+                server.log.record(depReport);
+            }
+            // Log how many safe clock calls ack delivery needed for the requests it delivered
+            if(server.delivery != null) {
+                EventLog.Event deliveryReport = EventLog.event(EventLog.Type.DELIVERY_REPORT, serverId);
+                deliveryReport.a = (int) server.delivery.getDelivered();
+                deliveryReport.b = (int) server.delivery.getAcks();
+                server.log.record(deliveryReport);
+            }
+            // Log the average time of calls made to each peer
+            for(int i = 0; i < server.peerServers.length; i++) {
+                long calls = server.peerCalls.get(i);
+                EventLog.Event peerReport = EventLog.event(EventLog.Type.PEER_REPORT, serverId);
+                peerReport.target = server.peerIds[i];
+                peerReport.a = (int) calls;
+                peerReport.e = calls == 0 ? 0 : server.peerNanos.get(i) / calls;
+                server.log.record(peerReport);
+            }
+
+            // Log the write-ahead log activity
+            if(server.wal != null) {
+                EventLog.Event walReport = EventLog.event(EventLog.Type.WAL_REPORT, serverId);
+                walReport.text = server.wal.getDurability().toString();
+                walReport.a = (int) server.wal.getAppends();
+                walReport.b = (int) server.wal.getWrites();
+                walReport.c = (int) server.wal.getSyncs();
+                walReport.d = server.wal.getMaxAppendNanos();
+                walReport.e = server.wal.getAvgAppendNanos();
+                server.log.record(walReport);
+                // A final snapshot leaves nothing to replay on restart
+                server.snapshotter.snapshot();
+                server.wal.close();
+                // A ledger closed after this holds every logged request
+                server.accounts.setLsn(server.wal.getLastLsn());
+            }
+            // Requests accepted but not applied stay in the sequence log, to be applied after a restart
+            if(server.sequencer != null)
+                server.sequencer.close();
+            // Transfers still pending stay in the transfer log, to be finished after a restart
+            if(server.transfers != null) {
+                if(server.transferRetry != null)
+                    server.transferRetry.shutdownNow();
+                server.transfers.close();
             }
-            avgTime = avgTime / server.timeEntries.size();
-            Printer.print("Server-" + serverId + " | | | | | REPORT | avg request time=" + avgTime + "s", Printer.File.SERVER, "" + serverId, "#737bf0");
 
-            // Close logs, unbind the server, and unexport the object
-            Printer.closeHtmlLog(Printer.File.SERVER, "" + serverId);
+            // Close the account store and logs, unbind the server, and unexport the object
+            server.accounts.close();
+            server.log.close();
             System.out.println("Shutting down server...");
-            Registry localRegistry = LocateRegistry.getRegistry(rmiPort);
-            localRegistry.unbind("BankServer");
-            UnicastRemoteObject.unexportObject(server, true);
+            if(server.nioServer != null)
+                server.nioServer.close();
+            else {
+                Registry localRegistry = LocateRegistry.getRegistry(rmiPort);
+                localRegistry.unbind("BankServer");
+                UnicastRemoteObject.unexportObject(server, true);
+            }
 
             // Exit the program
             System.out.println("Server shutdown complete");
@@ -218,17 +507,53 @@ public class BankServer implements IBankServer {
      * Add a new request object into the request queue in sorted order based on Lamport Clocks
      * @param req The request object to add
      */
-    public synchronized void addRequestInSequence(Request req) {
+    public void addRequestInSequence(Request req) {
         requestQueue.add(req);
-        requestQueue.sort((r1, r2) -> r1.getClock().compareTo(r2.getClock()));
     }
 
     /**
-     * Add a new time entry to the timeEntries list
-     * @param time The time to add (in seconds)
+     * Park the calling thread until the request is at the head of the request queue. The thread is woken
+     * when its request becomes the head of the queue (on insert or execute). If the request is still not at the head
+     * after `queueWaitTimeout` ms, the wait is logged and the request continues waiting.
+     * @param req The request to wait for
+     */
+    public void awaitHead(Request req) throws RemoteException {
+        long start = System.nanoTime();
+        try {
+            while(!requestQueue.awaitHead(req, queueWaitTimeout)) {
+                // Gives helpful figure of when client will finish
+                Request head = requestQueue.peek();
+                System.out.println("Waiting for request: " + LamportClock.toString(req.getStamp()) + ", Current head: " + (head == null ? "none" : LamportClock.toString(head.getStamp())) + ", Queue depth: " + requestQueue.getDepth());
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for request " + LamportClock.toString(req.getStamp()));
+        }
+        latency.since(req.getType(), LatencyRecorder.Phase.QUEUE_WAIT, start);
+    }
+
+    /**
+     * Park the calling thread until the requests a request depends on are applied - used in dependency ordering. If
+     * they are still not applied after `queueWaitTimeout` ms, the wait is logged and the request continues waiting.
+     * @param req The request to wait for
      */
-    public synchronized void addTime(double time) {
-        timeEntries.add(time);
+    private void awaitDependencies(Request req) throws RemoteException {
+        if(dependencies.isReady(req)) {
+            latency.record(req.getType(), LatencyRecorder.Phase.QUEUE_WAIT, 0);
+            return;
+        }
+        dependencyWaits.increment();
+        long start = System.nanoTime();
+        try {
+            while(!dependencies.await(req, queueWaitTimeout)) {
+                System.out.println("Waiting for dependencies of request: " + LamportClock.toString(req.getStamp())
+                    + ", Queue depth: " + requestQueue.getDepth());
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for request " + LamportClock.toString(req.getStamp()));
+        }
+        latency.since(req.getType(), LatencyRecorder.Phase.QUEUE_WAIT, start);
     }
 
     /**
@@ -240,34 +565,131 @@ public class BankServer implements IBankServer {
         return serverId;
     }
 
+    /**
+     * A single remote call made to a peer during a fan-out
+     */
+    private interface PeerCall {
+        Response call(IBankServer peer) throws RemoteException;
+    }
+
+    /**
+     * Send a call to all peer servers concurrently and wait for every response. Latency is bounded
+     * by the slowest peer rather than the sum of all peers. Each call is timed per peer.
+     * @param req The request being sent, used for logging
+     * @param phase The event logged for each response
+     * @param call The remote call to make on each peer
+     * @return [Response[]] The responses, in the same order as `peerServers`
+     */
+    private Response[] fanOut(Request req, EventLog.Type phase, PeerCall call) throws RemoteException {
+        Response[] responses = new Response[peerServers.length];
+        ArrayList<Future<Response>> futures = new ArrayList<Future<Response>>();
+        for(int i = 0; i < peerServers.length; i++) {
+            final int p = i;
+            futures.add(peerExecutor.submit(() -> {
+                long start = System.nanoTime();
+                Response res = call.call(peerServers[p]);
+                long elapsed = System.nanoTime() - start;
+                peerNanos.addAndGet(p, elapsed);
+                peerCalls.incrementAndGet(p);
+                // Log response
+                EventLog.Event e = EventLog.event(phase, serverId, req);
+                e.target = peerIds[p];
+                e.e = elapsed;
+                log.record(e);
+                return res;
+            }));
+        }
+        // Wait for all peers to respond
+        for(int i = 0; i < futures.size(); i++) {
+            try {
+                responses[i] = futures.get(i).get();
+            } catch(ExecutionException e) {
+                if(e.getCause() instanceof RemoteException)
+                    throw (RemoteException) e.getCause();
+                throw new RemoteException("Call to Server-" + peerIds[i] + " failed", e.getCause());
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RemoteException("Interrupted waiting for Server-" + peerIds[i]);
+            }
+        }
+        return responses;
+    }
+
     /**
      * Multicast a request to all servers - used internally
      * @param req The request to multicast
      */
     public Response[] multicast(Request req) throws RemoteException {
         // Build the current server as the origin of the request, rather than the client
-        req = req.withOrigin("Server-" + serverId);
+        req = req.withOriginId(serverId);
 
-        // Multicast the request to all peer servers
-        Response[] responses = new Response[peerServers.length];
+        // Log requests
         for(int i = 0; i < peerServers.length; i++) {
-            IBankServer peer = peerServers[i];
-            // Log request
-            Printer.print("Server-" + serverId + " | -> SRV-REQ | " + LocalDateTime.now() + " | " + req.getClock() + " | Server-" + peer.getId() + " | " + req.getType() + " | " + req.parametersToString(), Printer.File.SERVER, "" + serverId, "#de9050");
-            // Send request
-            Response res = peer.serverRequest(req);
-            // Log response
-            Printer.print("Server-" + serverId + " | SRV-RES    | " + LocalDateTime.now() + " | " + req.getClock() + " | Server-" + peer.getId() + " | " + req.getType(), Printer.File.SERVER, "" + serverId, "#b2f7b9");
-            responses[i] = res;
+            EventLog.Event e = EventLog.event(EventLog.Type.SRV_REQ_OUT, serverId, req);
+            e.target = peerIds[i];
+            log.record(e);
         }
+        // Multicast the request to all peer servers concurrently, batches are sent as a single message
+        final Request sent = req;
+        long start = System.nanoTime();
+        Response[] responses;
+        if(sent.getType() == Request.Type.BATCH)
+            responses = fanOut(sent, EventLog.Type.SRV_RES, peer -> peer.serverBatchRequest(sent.getBatch()));
+        else
+            responses = fanOut(sent, EventLog.Type.SRV_RES, peer -> peer.serverRequest(sent));
+        latency.since(sent.getType(), LatencyRecorder.Phase.MULTICAST, start);
+        return responses;
+    }
 
+    /**
+     * Send an execute message for a request to all peers concurrently - used internally
+     * @param req The request to execute
+     */
+    public Response[] broadcastExecute(Request req) throws RemoteException {
+        long start = System.nanoTime();
+        Response[] responses = fanOut(req, EventLog.Type.SRV_EXEC, peer -> peer.execute(req));
+        latency.since(req.getType(), LatencyRecorder.Phase.PEER_EXECUTE, start);
         return responses;
     }
 
+    /**
+     * Read the balance of an account without ordering the read through the request queue. Balances are read from the
+     * account store without locking. A LATEST read returns the balance as of the requests applied so far; a
+     * READ_YOUR_WRITES read first waits until the request with its read token's clock has been applied. The balance
+     * may already reflect a request that is still being applied, so the response is stamped with the highest clock
+     * whose application had begun once the balance was read, which covers every request the balance reflects.
+     * @param req The GET_BALANCE request
+     * @return [Response] The balance, with a clock usable as a read token for a later read
+     */
+    public Response read(Request req) throws RemoteException {
+        long start = System.nanoTime();
+        log.record(EventLog.event(EventLog.Type.CLIENT_REQ, serverId, req));
+        // Clocks of different shards are unrelated, so a read token only orders reads after writes of this shard
+        boolean ownToken = shards == null || shards.ofServer(LamportClock.serverId(req.getReadToken())) == shard;
+        if(req.getConsistency() == Request.Consistency.READ_YOUR_WRITES && ownToken && !requestQueue.isApplied(req.getReadToken())) {
+            readWaits.increment();
+            try {
+                while(!requestQueue.awaitApplied(req.getReadToken(), queueWaitTimeout)) {
+                    System.out.println("Read waiting for request: " + LamportClock.toString(req.getReadToken())
+                        + ", Applied: " + LamportClock.toString(requestQueue.getApplied()) + ", Queue depth: " + requestQueue.getDepth());
+                }
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RemoteException("Interrupted while waiting for request " + LamportClock.toString(req.getReadToken()));
+            }
+        }
+        // Read the balance first: every request it reflects raised the started clock before changing it
+        long balance = getBalance(req.getUid());
+        Response res = (new Response()).ofType(Response.Type.GET_BALANCE).withUid(req.getUid())
+            .withBalance(balance).withStamp(requestQueue.getStarted());
+        latency.since(Request.Type.GET_BALANCE, LatencyRecorder.Phase.TOTAL, start);
+        return res;
+    }
+
     /**
      * [IBankServer] RMI INTERFACE
      * 
-     * Accept a new request from a client. 
+     * Accept a new request from a client. Balance reads are served by `read` without ordering.
      *  - Multicast the request to all servers
      *  - Wait for all servers to respond with ACK
      *  - Wait for the current request to be at the head of the queue
@@ -278,51 +700,415 @@ public class BankServer implements IBankServer {
      * @return The response from executing the request
      */
     public Response clientRequest(Request req) throws RemoteException {
-        // Create and start the timer
-        Timer timer = new Timer();
-        timer.start();
+        Request.Type reqType = req.getType();
+        // With shards, requests for accounts of another shard are sent to it, and a halt from a client halts every shard
+        if(shards != null) {
+            if(reqType == Request.Type.HALT) {
+                if(req.getOriginId() < 0)
+                    haltShards();
+            }
+            else {
+                int owner = shardOf(req);
+                if(owner < 0)
+                    return crossShardTransfer(req);
+                if(owner != shard)
+                    return forward(owner, req);
+            }
+        }
+
+        // Reads never enter the request queue
+        if(reqType == Request.Type.GET_BALANCE)
+            return read(req);
+
+        // Time the request from here until it is answered
+        long start = System.nanoTime();
+        try {
+            return order(req);
+        } finally {
+            latency.since(reqType, LatencyRecorder.Phase.TOTAL, start);
+        }
+    }
+
+    /**
+     * Order and apply a write request received from a client with the configured protocol
+     * @param req The request object
+     * @return [Response] The response from executing the request
+     */
+    private Response order(Request req) throws RemoteException {
+        Request.Type reqType = req.getType();
+
+        // Operations that cannot fail commute, so they skip the queue
+        if(commutative && isCommutative(reqType))
+            return applyEverywhere(req);
+
+        // Group write requests into batches when batching is enabled
+        if(batcher != null && reqType != Request.Type.HALT)
+            return batcher.submit(req);
+
+        // Send the request through the sequencer instead, identified by a fresh clock
+        if(sequencer != null) {
+            req = sequencer.assignId(req).withOriginId(serverId);
+            log.record(EventLog.event(EventLog.Type.CLIENT_REQ, serverId, req));
+            return sequencer.order(req);
+        }
+
+        // Order the request after the earlier requests on its accounts only, a halt still waits for every request
+        if(dependencies != null && reqType != Request.Type.HALT) {
+            Request stamped = req;
+            dependencies.register(stamped, () -> stamped.withStamp(clockManager.tickAndGet()));
+            log.record(EventLog.event(EventLog.Type.CLIENT_REQ, serverId, stamped));
+            return orderByDependencies(stamped);
+        }
+
+        // Every server applies the request on its own once no earlier request can arrive, without an execute round
+        if(delivery != null) {
+            Request stamped = req;
+            CompletableFuture<Response> done = delivery.register(stamped, () -> stamped.withStamp(clockManager.tickAndGet()));
+            log.record(EventLog.event(EventLog.Type.CLIENT_REQ, serverId, stamped));
+            return delivery.order(stamped, done);
+        }
 
         // Increment the clock and update the request's clock
-        clockManager.increment();
-        req = req.withClock(new LamportClock(clockManager.getClockValue(), serverId));
-        Printer.print("Server-" + serverId + " | CLIENT-REQ | " + LocalDateTime.now() + " | " + req.getClock() + " | " + req.getOrigin() + " | " + req.getType() + " | " + req.parametersToString(), Printer.File.SERVER, "" + serverId, "#e67417");
+        req = req.withStamp(clockManager.tickAndGet());
+        log.record(EventLog.event(EventLog.Type.CLIENT_REQ, serverId, req));
 
         this.addRequestInSequence(req);
 
         // Mutlicast the request to all servers
-        // Response[] responses = new Response[peerServers.length];
-        Request.Type reqType = req.getType();
-        if(reqType != Request.Type.GET_BALANCE)
-            this.multicast(req);
-        // No need to multicast a get balance request - we are not modifying anything so just execute this right away
-        else
-            return this.execute(req);
-
+        this.multicast(req);
 
         // Wait for the current request to be at the head of the queue
-        while(requestQueue.get(0) != req) {
-            // Gives helpful figure of when client will finish
-            System.out.println("Waiting for request: " + req.getClock() + ", Current head: " + requestQueue.get(0).getClock());
-        }
+        awaitHead(req);
+
+        // With commutative deposits, decide the outcome here first and send it with the execute message
+        Response res = null;
+        if(commutative && reqType != Request.Type.HALT)
+            res = this.execute(req);
 
         // Send execute message to all peers
-        for(IBankServer peer : peerServers) {
-            peer.execute(req);
-        }
+        broadcastExecute(req);
 
-        // Stop time, request has finished
-        timer.stop();
-        addTime(timer.getTime());
-        timer.clear();
-        
         // Execute the request locally
+        return res != null ? res : this.execute(req);
+    }
+
+    /**
+     * Order a request after the earlier requests on the same accounts - used in dependency ordering
+     *  - Multicast the request to all servers, each replies with the latest earlier request it holds on each account
+     *  - Keep the latest of them for each account as the request's dependencies
+     *  - Send execute message to all peers, each applies the request once its dependencies are applied there
+     *  - Execute the request locally once its dependencies are applied here
+     * 
+     * @param req The request, or a batch of requests, stamped and registered with the dependency tracker
+     * @return [Response] The response from executing the request
+     */
+    private Response orderByDependencies(Request req) throws RemoteException {
+        this.addRequestInSequence(req);
+        DependencyTracker.merge(req, this.multicast(req));
+        // With commutative deposits, decide the outcome here first and send it with the execute message
+        if(commutative) {
+            Response res = this.execute(req);
+            broadcastExecute(req);
+            return res;
+        }
+        broadcastExecute(req);
         return this.execute(req);
     }
 
+    /**
+     * Check whether an operation commutes with every other write. Deposits cannot fail, and only add to a balance, so
+     * they give the same balances in any order.
+     * @param type The request type
+     * @return [boolean] True if the operation needs no ordering
+     */
+    private static boolean isCommutative(Request.Type type) {
+        return type == Request.Type.DEPOSIT;
+    }
+
+    /**
+     * Apply a commutative request locally and send it to every peer in one concurrent broadcast, without ordering
+     * it through the request queue. The response waits for every peer to apply it, so a write the client has seen
+     * complete is on every replica.
+     * @param req The request
+     * @return [Response] The response from applying the request here
+     */
+    private Response applyEverywhere(Request req) throws RemoteException {
+        req = req.withStamp(clockManager.tickAndGet()).withOriginId(serverId);
+        log.record(EventLog.event(EventLog.Type.CLIENT_REQ, serverId, req));
+        Response res = this.execute(req);
+        broadcastExecute(req);
+        return res;
+    }
+
+    /**
+     * Order and execute a batch of client requests in one protocol round - used by the RequestBatcher
+     *  - Assign the requests a contiguous range of lamport clocks
+     *  - Multicast the whole batch to all servers as one message
+     *  - Wait for the batch to be at the head of the queue
+     *  - Send one execute message for the batch to all peers
+     *  - Execute the batch locally, in order
+     * 
+     * @param reqs The client requests in the batch
+     * @return [Response[]] The responses, in the same order as the requests
+     */
+    public Response[] orderBatch(Request[] reqs) throws RemoteException {
+        // The sequencer numbers the requests in the batch instead
+        if(sequencer != null) {
+            for(int i = 0; i < reqs.length; i++) {
+                log.record(EventLog.event(EventLog.Type.CLIENT_REQ, serverId, reqs[i]));
+            }
+            Request batch = sequencer.assignId((new Request()).ofType(Request.Type.BATCH).withBatch(reqs)).withOriginId(serverId);
+            return sequencer.order(batch).getBatch();
+        }
+
+        // Stamp the batch while no other request is registered, it depends on the earlier requests on its accounts
+        if(dependencies != null) {
+            Request batch = (new Request()).ofType(Request.Type.BATCH).withBatch(reqs);
+            dependencies.register(batch, () -> {
+                int first = clockManager.reserve(reqs.length);
+                for(int i = 0; i < reqs.length; i++) {
+                    reqs[i].withStamp(clockManager.stamp(first + i));
+                }
+                batch.withStamp(reqs[0].getStamp());
+            });
+            for(int i = 0; i < reqs.length; i++) {
+                log.record(EventLog.event(EventLog.Type.CLIENT_REQ, serverId, reqs[i]));
+            }
+            return orderByDependencies(batch).getBatch();
+        }
+
+        // Stamp and queue the batch as one step, every server applies it once no earlier request can arrive
+        if(delivery != null) {
+            Request batch = (new Request()).ofType(Request.Type.BATCH).withBatch(reqs);
+            CompletableFuture<Response> done = delivery.register(batch, () -> {
+                int first = clockManager.reserve(reqs.length);
+                for(int i = 0; i < reqs.length; i++) {
+                    reqs[i].withStamp(clockManager.stamp(first + i));
+                }
+                batch.withStamp(reqs[0].getStamp());
+            });
+            for(int i = 0; i < reqs.length; i++) {
+                log.record(EventLog.event(EventLog.Type.CLIENT_REQ, serverId, reqs[i]));
+            }
+            return delivery.order(batch, done).getBatch();
+        }
+
+        // Timestamp the requests with a contiguous range of clock values
+        int first = clockManager.reserve(reqs.length);
+        for(int i = 0; i < reqs.length; i++) {
+            reqs[i].withStamp(clockManager.stamp(first + i));
+            log.record(EventLog.event(EventLog.Type.CLIENT_REQ, serverId, reqs[i]));
+        }
+
+        // The batch is ordered by the clock of its first request
+        Request batch = (new Request()).ofType(Request.Type.BATCH).withBatch(reqs).withStamp(reqs[0].getStamp());
+        this.addRequestInSequence(batch);
+        this.multicast(batch);
+        awaitHead(batch);
+        // With commutative deposits, decide the outcomes here first and send them with the execute message
+        if(commutative) {
+            Response res = this.execute(batch);
+            broadcastExecute(batch);
+            return res.getBatch();
+        }
+        broadcastExecute(batch);
+        return this.execute(batch).getBatch();
+    }
+
+    /**
+     * Find the shard that owns the accounts of a request
+     * @param req The request
+     * @return [int] The shard, or -1 for a transfer between accounts of different shards
+     */
+    private int shardOf(Request req) {
+        if(req.getType() != Request.Type.TRANSFER)
+            return shards.ofAccount(req.getUid());
+        int from = shards.ofAccount(req.getFrom());
+        return from == shards.ofAccount(req.getTo()) ? from : -1;
+    }
+
+    /**
+     * Send a request to a server of the shard that owns its accounts, trying the next server of the shard if one
+     * cannot be reached. Servers spread their requests over the shard by starting at a different server. A server
+     * that could not be reached may still have ordered the request, so only requests that can be applied twice, or
+     * transfer phases the shard applies once by their transfer's stamp, are sent again.
+     * @param owner The shard
+     * @param req The request
+     * @return [Response] The response from the shard
+     */
+    private Response forward(int owner, Request req) throws RemoteException {
+        if(owner == shard)
+            return clientRequest(req);
+        ArrayList<IBankServer> servers = shardServers.get(owner);
+        RemoteException failure = new RemoteException("Shard " + owner + " has no servers");
+        for(int i = 0; i < servers.size(); i++) {
+            try {
+                return servers.get((serverId + i) % servers.size()).clientRequest(req);
+            } catch(RemoteException e) {
+                failure = e;
+                if(!isRetriable(req))
+                    break;
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Check whether a forwarded request may be sent to another server of its shard after a failure
+     * @param req The request
+     * @return [boolean] True for reads, halts and transfer phases carrying their transfer's stamp
+     */
+    private static boolean isRetriable(Request req) {
+        switch(req.getType()) {
+            case GET_BALANCE:
+            case HALT:
+                return true;
+            case PREPARE:
+            case COMMIT:
+            case ABORT:
+                return req.getParent() != 0;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Send a halt to every other shard
+     */
+    private void haltShards() {
+        for(int s = 0; s < shards.count(); s++) {
+            if(s == shard)
+                continue;
+            try {
+                forward(s, (new Request()).ofType(Request.Type.HALT).withOriginId(serverId));
+            } catch(RemoteException e) {
+                System.out.println("Could not halt shard " + s + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Transfer between accounts of different shards, coordinated by this server with a two-phase commit of requests
+     * ordered in each shard, see `TransferHolds`. Until the transfer is decided the amount stays in the source
+     * account, reserved so no other withdrawal can use it, so the total of the shards is never short by it.
+     *  - The transfer is stamped and logged before any phase is sent, see `TransferLog`
+     *  - The shards vote and are sent the decision, see `finishTransfer`
+     *  - The transfer is marked finished once both shards have answered the decision
+     * If a phase cannot be reached the transfer stays pending and is finished in the background, also after a
+     * restart of this server.
+     * 
+     * @param req The TRANSFER request
+     * @return [Response] The response, successful if the amount was moved
+     */
+    private Response crossShardTransfer(Request req) throws RemoteException {
+        Request transfer = (new Request()).ofType(Request.Type.TRANSFER).from(req.getFrom()).to(req.getTo())
+            .withAmount(req.getAmount());
+        try {
+            transfers.begin(transfer, clockManager);
+        } catch(IOException e) {
+            throw new RemoteException("Could not log transfer from " + req.getFrom() + " to " + req.getTo(), e);
+        }
+        Response res;
+        try {
+            res = finishTransfer(transfer, true);
+        } catch(RemoteException e) {
+            throw new RemoteException("Transfer " + LamportClock.toString(transfer.getParent()) + " is pending and will be finished", e);
+        }
+        try {
+            transfers.finish(transfer);
+        } catch(IOException e) {
+            System.out.println("Error logging finished transfer " + LamportClock.toString(transfer.getParent()) + ": " + e);
+        }
+        return res;
+    }
+
+    /**
+     * Run the phases of a cross-shard transfer, each an ordinary request ordered within the shard it goes to. Every
+     * phase carries the transfer's stamp and is applied once, so a phase sent again only returns its outcome.
+     *  - PREPARE the source shard, which reserves the amount or votes no if the account cannot cover it
+     *  - PREPARE the destination shard, which holds the account or votes no if it does not exist
+     *  - Log the decision, commit only if both voted yes
+     *  - COMMIT or ABORT in both shards
+     * A transfer finished in the background is not prepared again: one that was never decided is aborted, since a
+     * shard may have voted yes and be holding it. A phase that cannot be reached is not taken as a vote, since it may
+     * have been applied: the transfer fails with the exception and stays pending.
+     * @param transfer The TRANSFER request, carrying its stamp as parent
+     * @param prepare Whether to ask the shards to vote, false to only finish a decided or abandoned transfer
+     * @return [Response] The response, successful if the amount was moved
+     */
+    private Response finishTransfer(Request transfer, boolean prepare) throws RemoteException {
+        int from = shards.ofAccount(transfer.getFrom());
+        int to = shards.ofAccount(transfer.getTo());
+        Boolean commit = transfers.decision(transfer);
+        if(commit == null) {
+            boolean votes = prepare
+                && forward(from, phase(Request.Type.PREPARE, transfer, transfer.getFrom())).getSuccess()
+                && forward(to, phase(Request.Type.PREPARE, transfer, transfer.getTo())).getSuccess();
+            try {
+                commit = transfers.decide(transfer, votes);
+            } catch(IOException e) {
+                throw new RemoteException("Could not log the decision of transfer " + LamportClock.toString(transfer.getParent()), e);
+            }
+        }
+        Request.Type type = commit ? Request.Type.COMMIT : Request.Type.ABORT;
+        forward(from, phase(type, transfer, transfer.getFrom()));
+        Response res = forward(to, phase(type, transfer, transfer.getTo()));
+        return (new Response()).ofType(Response.Type.TRANSFER).withSuccess(commit).withStamp(res.getStamp());
+    }
+
+    /**
+     * Build a phase of a cross-shard transfer for one of its shards
+     * @param type PREPARE, COMMIT or ABORT
+     * @param transfer The TRANSFER request, carrying its stamp as parent
+     * @param uid The account of the shard the phase is sent to
+     * @return [Request] The phase, carrying the oldest transfer this server has not finished
+     */
+    private Request phase(Request.Type type, Request transfer, int uid) {
+        return (new Request()).ofType(type).withUid(uid).from(transfer.getFrom()).to(transfer.getTo())
+            .withAmount(transfer.getAmount()).withOriginId(serverId).withParent(transfer.getParent())
+            .withOldestTransfer(transfers.oldestPending());
+    }
+
+    /**
+     * Start sending the pending cross-shard transfers again in the background, including those left in the transfer
+     * log by an earlier run of this server
+     */
+    public void startTransferRetry() {
+        if(transfers == null)
+            return;
+        this.transferRetry = Executors.newSingleThreadScheduledExecutor(Threads.factory("Server-" + serverId + "-transfer-retry", false));
+        HashSet<Long> seen = new HashSet<Long>();
+        transferRetry.scheduleWithFixedDelay(() -> retryTransfers(seen), transferRetryInterval, transferRetryInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Finish the cross-shard transfers that were already pending at the previous attempt, so a transfer whose
+     * phases are still in progress is normally left to the request that started it. Finishing one twice is harmless.
+     * @param seen The stamps of the transfers pending at the previous attempt, updated for the next one
+     */
+    private void retryTransfers(HashSet<Long> seen) {
+        HashSet<Long> now = new HashSet<Long>();
+        for(Request transfer : transfers.pending()) {
+            now.add(transfer.getParent());
+            if(!seen.contains(transfer.getParent()))
+                continue;
+            try {
+                finishTransfer(transfer, false);
+                transfers.finish(transfer);
+                System.out.println("Finished pending transfer " + LamportClock.toString(transfer.getParent()));
+            } catch(IOException e) {
+                System.out.println("Transfer " + LamportClock.toString(transfer.getParent()) + " still pending: " + e.getMessage());
+            }
+        }
+        seen.clear();
+        seen.addAll(now);
+    }
+
     /**
      * [IBankServer] RMI INTERFACE
      * 
      * Accept a new request from another server. Used for P2P multicasting.
+     *  - Merge its clock into this server's clock
      *  - Add the request to the queue
      *  - Return an ACK response
      * 
@@ -330,50 +1116,268 @@ public class BankServer implements IBankServer {
      * @return An ACK response
      */
     public Response serverRequest(Request req) throws RemoteException {
-        Printer.print("Server-" + serverId + " | <- SRV-REQ | " + LocalDateTime.now() + " | " + req.getClock() + " | " + req.getOrigin() + " | " + req.getType() + " | " + req.parametersToString(), Printer.File.SERVER, "" + serverId, "#e3b28a");
+        log.record(EventLog.event(EventLog.Type.SRV_REQ_IN, serverId, req));
+        // Requests this server timestamps from now on order after the received one
+        // With ack delivery, reply with this server's safe clock for the sender and apply the request once it is safe
+        if(delivery != null)
+            return (new Response()).ofType(Response.Type.ACK).withStamp(req.getStamp()).withSafeClock(delivery.received(req));
+        Request last = req.getType() == Request.Type.BATCH ? req.getBatch()[req.getBatch().length - 1] : req;
+        // In dependency ordering, reply with the latest earlier request this server holds on each of its accounts
+        if(dependencies != null && DependencyTracker.tracks(req)) {
+            dependencies.register(req, () -> clockManager.receive(last.getStamp()));
+            addRequestInSequence(req);
+            return (new Response()).ofType(Response.Type.ACK).withStamp(req.getStamp()).withDependencies(req.getDependencies());
+        }
+        clockManager.receive(last.getStamp());
         addRequestInSequence(req);
-        return (new Response()).ofType(Response.Type.ACK).withClock(req.getClock());
+        return (new Response()).ofType(Response.Type.ACK).withStamp(req.getStamp());
+    }
+
+    /**
+     * [IBankServer] RMI INTERFACE
+     * 
+     * Accept a batch of requests from another server. Used for P2P multicasting of batches.
+     *  - Add the batch to the queue as one request, ordered by the clock of its first request
+     *  - Return an ACK response
+     * 
+     * @param batch The requests in the batch, in execution order
+     * @return An ACK response
+     */
+    public Response serverBatchRequest(Request[] batch) throws RemoteException {
+        long stamp = batch[0].getStamp();
+        // The sender's safe clock travels with the first request of the batch
+        Request req = (new Request()).ofType(Request.Type.BATCH).withBatch(batch).withStamp(stamp).withOriginId(LamportClock.serverId(stamp))
+            .withSafeClock(batch[0].getSafeClock());
+        return serverRequest(req);
+    }
+
+    /**
+     * [IBankServer] RMI INTERFACE
+     * 
+     * Number a request and broadcast it to every server - used in sequencer ordering, on the sequencer
+     * 
+     * @param req The request object, with its id set
+     * @return An ACK response carrying the request's stamp
+     */
+    public Response sequence(Request req) throws RemoteException {
+        if(sequencer == null)
+            throw new RemoteException("Server-" + serverId + " does not use sequencer ordering");
+        log.record(EventLog.event(EventLog.Type.SRV_REQ_IN, serverId, req));
+        return sequencer.sequence(req);
+    }
+
+    /**
+     * [IBankServer] RMI INTERFACE
+     * 
+     * Accept a sequenced request from the sequencer - used in sequencer ordering
+     *  - Reject the request if it was numbered in an older epoch than the newest one seen
+     *  - Add the request to the queue
+     *  - Apply every request that is now next in sequence
+     *  - Return an ACK response
+     * 
+     * @param req The sequenced request object
+     * @return An ACK response, or a NACK carrying the newest epoch as its stamp
+     */
+    public Response deliver(Request req) throws RemoteException {
+        if(sequencer == null)
+            throw new RemoteException("Server-" + serverId + " does not use sequencer ordering");
+        log.record(EventLog.event(EventLog.Type.SRV_REQ_IN, serverId, req));
+        return sequencer.deliver(req);
+    }
+
+    /**
+     * [IBankServer] RMI INTERFACE
+     * 
+     * Return the recently sequenced requests after a stamp - used in sequencer ordering to catch up and to fail over
+     *  - Raise the newest epoch seen to the caller's, so a sequencer taking over fences the one it replaces
+     * 
+     * @param after The stamp, exclusive
+     * @param epoch The caller's sequencer epoch
+     * @return A BATCH request holding the requests, in sequence order, carrying the newest epoch seen
+     */
+    public Request fetch(long after, long epoch) throws RemoteException {
+        if(sequencer == null)
+            throw new RemoteException("Server-" + serverId + " does not use sequencer ordering");
+        return sequencer.fetch(after, epoch);
+    }
+
+    /**
+     * [IBankServer] RMI INTERFACE
+     * 
+     * Receive a peer's safe clock and apply the requests it makes safe - used in ack-driven delivery
+     * 
+     * @param serverId The id of the peer
+     * @param clock The peer's safe clock for this server
+     */
+    public void acknowledge(int serverId, long clock) throws RemoteException {
+        if(delivery == null)
+            throw new RemoteException("Server-" + this.serverId + " does not use ack delivery");
+        delivery.acknowledge(serverId, clock);
     }
 
     /**
      * [IBankServer] RMI INTERFACE
      * 
      * Execute a request locally
-     *  - Find the request in the queue and remove it
+     *  - In dependency ordering, wait until the requests it depends on are applied
      *  - Execute the request based on its type
+     *  - Find the request in the queue and remove it, so a read-your-writes read sees it only once applied
      * 
      * @param req The request object
      * @return The response from executing the request
      */
-    public synchronized Response execute(Request req) {
+    public Response execute(Request req) throws RemoteException {
         // Log execution of request
-        Printer.print("Server-" + serverId + " | EXECUTE   | " + LocalDateTime.now() + " | " + req.getClock() + " | " + req.getOrigin() + " | " + req.getType() + " | " + req.parametersToString(), Printer.File.SERVER, "" + serverId, "#5fe8e6");
+        log.record(EventLog.event(EventLog.Type.EXECUTE, serverId, req));
 
-        LamportClock reqClock = req.getClock();
-        // Find the request in the queue by its clock and remove it
-        for(Request r : requestQueue) {
-            if(r.getClock().compareTo(reqClock) == 0) {
-                requestQueue.remove(r);
-                break;
+        // A halt shuts the server down while it is applied, so it leaves the queue first
+        if(req.getType() == Request.Type.HALT)
+            requestQueue.remove(req.getStamp());
+
+        // Requests ordered by their dependencies wait for the earlier requests on their accounts
+        boolean ordered = dependencies != null && req.getDependencies() != null;
+        if(ordered)
+            awaitDependencies(req);
+        return applyAndLog(req, ordered);
+    }
+
+    /**
+     * Execute a request delivered in order by the sequencer or ack delivery, whose turn has already come, so it never
+     * waits for dependencies
+     * @param req The request object
+     * @return [Response] The response from executing the request
+     */
+    public Response executeDelivered(Request req) {
+        log.record(EventLog.event(EventLog.Type.EXECUTE, serverId, req));
+        if(req.getType() == Request.Type.HALT)
+            requestQueue.remove(req.getStamp());
+        return applyAndLog(req, false);
+    }
+
+    /**
+     * Apply a request whose turn has come, remove it from the queue and log it
+     * @param req The request object
+     * @param ordered Whether the request was ordered by its dependencies, which are told it was applied
+     * @return [Response] The response from executing the request
+     */
+    private Response applyAndLog(Request req, boolean ordered) {
+        // Apply the request, remove it from the queue, then log it before the response is returned
+        long start = System.nanoTime();
+        long stamp = snapshotter == null ? 0 : snapshotter.beginApply(req);
+        Request last = req.getType() == Request.Type.BATCH ? req.getBatch()[req.getBatch().length - 1] : req;
+        requestQueue.markStarted(last.getStamp());
+        Response res;
+        try {
+            res = apply(req);
+            requestQueue.markApplied(last.getStamp());
+            requestQueue.remove(req.getStamp());
+            if(wal != null)
+                wal.log(req, res);
+            // Logged first, so the write-ahead log holds the requests on an account in the order they were applied
+            if(ordered)
+                dependencies.applied(req);
+        } finally {
+            if(snapshotter != null)
+                snapshotter.endApply(stamp);
+        }
+        latency.since(req.getType(), LatencyRecorder.Phase.LOCAL_EXECUTE, start);
+        return res;
+    }
+
+    /**
+     * Execute consecutive requests from the head of the queue as one window - used in sequencer ordering. The requests
+     * are applied as if in order, in parallel where they touch different accounts, then removed from the queue and
+     * logged together.
+     * @param window The requests, in sequence order, without halts or batches
+     * @return [Response[]] The responses, in the same order as the requests
+     */
+    public Response[] executeWindow(Request[] window) {
+        for(Request r : window) {
+            log.record(EventLog.event(EventLog.Type.EXECUTE, serverId, r));
+        }
+        Request batch = (new Request()).ofType(Request.Type.BATCH).withBatch(window).withStamp(window[0].getStamp());
+        long start = System.nanoTime();
+        long stamp = snapshotter == null ? 0 : snapshotter.beginApply(batch);
+        requestQueue.markStarted(window[window.length - 1].getStamp());
+        Response[] responses;
+        try {
+            responses = scheduler.run(window, this::apply);
+            requestQueue.markApplied(window[window.length - 1].getStamp());
+            for(Request r : window) {
+                requestQueue.remove(r.getStamp());
             }
+            if(wal != null)
+                wal.log(batch, (new Response()).ofType(Response.Type.BATCH).withBatch(responses));
+        } finally {
+            if(snapshotter != null)
+                snapshotter.endApply(stamp);
         }
+        // A window is applied as a whole, so it is timed as one batch
+        latency.since(Request.Type.BATCH, LatencyRecorder.Phase.LOCAL_EXECUTE, start);
+        return responses;
+    }
 
+    /**
+     * Apply a request to the local copy of the database
+     * @param req The request object
+     * @return The response from executing the request
+     */
+    private Response apply(Request req) {
         // Execute the corresponding methods based on the request type
         try {
             switch(req.getType()) {
                 case CREATE_ACCOUNT:
-                    return (new Response()).ofType(Response.Type.CREATE_ACCOUNT).withUid(createAccount(req.getUid())).withClock(req.getClock());
+                    return (new Response()).ofType(Response.Type.CREATE_ACCOUNT).withUid(createAccount(req.getUid())).withStamp(req.getStamp());
                 case GET_BALANCE:
-                    return (new Response()).ofType(Response.Type.GET_BALANCE).withBalance(getBalance(req.getUid())).withClock(req.getClock());
-                case DEPOSIT:
-                    return (new Response()).ofType(Response.Type.DEPOSIT).withSuccess(deposit(req.getUid(), req.getAmount())).withClock(req.getClock());
-                case TRANSFER:
-                    return (new Response()).ofType(Response.Type.TRANSFER).withSuccess(transfer(req.getFrom(), req.getTo(), req.getAmount())).withClock(req.getClock());
+                    return (new Response()).ofType(Response.Type.GET_BALANCE).withBalance(getBalance(req.getUid())).withStamp(req.getStamp());
+                case DEPOSIT: {
+                    boolean success = deposit(req.getUid(), req.getAmount());
+                    accounts.markApplied(req.getUid(), req.getStamp());
+                    return (new Response()).ofType(Response.Type.DEPOSIT).withSuccess(success).withStamp(req.getStamp());
+                }
+                case TRANSFER: {
+                    boolean success;
+                    // Apply the outcome the ordering server decided, deposits it saw may not have arrived here yet
+                    if(req.hasOutcome()) {
+                        success = req.getOutcome();
+                        if(success) {
+                            accounts.addAndGet(req.getFrom(), -req.getAmount());
+                            accounts.addAndGet(req.getTo(), req.getAmount());
+                        }
+                    }
+                    else {
+                        success = transfer(req.getFrom(), req.getTo(), req.getAmount());
+                        if(commutative)
+                            req.withOutcome(success);
+                    }
+                    accounts.markApplied(req.getFrom(), req.getStamp());
+                    accounts.markApplied(req.getTo(), req.getStamp());
+                    return (new Response()).ofType(Response.Type.TRANSFER).withSuccess(success).withStamp(req.getStamp());
+                }
+                case PREPARE: {
+                    Response res = holds.prepare(req, commutative);
+                    accounts.markApplied(req.getUid(), req.getStamp());
+                    return res;
+                }
+                case COMMIT: {
+                    Response res = holds.commit(req);
+                    accounts.markApplied(req.getUid(), req.getStamp());
+                    return res;
+                }
+                case ABORT: {
+                    Response res = holds.abort(req);
+                    accounts.markApplied(req.getUid(), req.getStamp());
+                    return res;
+                }
                 case HALT:
                     halt();
-                    return (new Response()).ofType(Response.Type.HALT).withClock(req.getClock());
+                    return (new Response()).ofType(Response.Type.HALT).withStamp(req.getStamp());
+                case BATCH:
+                    // Apply the batched requests as if in order, in parallel where they touch different accounts
+                    Response[] responses = scheduler.run(req.getBatch(), this::apply);
+                    return (new Response()).ofType(Response.Type.BATCH).withBatch(responses).withStamp(req.getStamp());
                 default:
-                    return (new Response()).withClock(req.getClock());
+                    return (new Response()).withStamp(req.getStamp());
             }
         }
         catch(RemoteException e) {
@@ -393,6 +1397,8 @@ public class BankServer implements IBankServer {
         IBankServer bankServerStub;
         Registry localRegistry; // Ignore this warning, necessary for binding
         Document configDoc;
+        Config config;
+        Shards shards;
         String hostname = "";
         int serverCount = 0;
         int serverId = -1;
@@ -415,11 +1421,13 @@ public class BankServer implements IBankServer {
                 DocumentBuilder db = dbf.newDocumentBuilder();
                 configDoc = db.parse(file);
                 serverCount = configDoc.getElementsByTagName("server").getLength();
+                config = new Config(configDoc);
+                shards = Shards.load(configDoc, config);
     
                 // Get the rmi port based off the server id
                 rmiPort = Integer.parseInt(configDoc.getElementsByTagName("port").item(serverId).getTextContent());
                 hostname = configDoc.getElementsByTagName("hostname").item(serverId).getTextContent();
-                Printer.initHtmlLog(Printer.File.SERVER, "" + serverId, "");
+                Printer.configure(config);
             } 
             // Entered serverId is not a number
             catch (NumberFormatException nfe) {
@@ -436,15 +1444,28 @@ public class BankServer implements IBankServer {
         // Attempt to start the server
         try {
             // Create a bank server and bind it to RMI based off of configuration file
-            bankServer = new BankServer(serverId, rmiPort, serverCount - 1);
-            System.setProperty("java.rmi.server.hostname", hostname);
-            bankServerStub = (IBankServer) UnicastRemoteObject.exportObject(bankServer, 0);
-            localRegistry = LocateRegistry.createRegistry(rmiPort);
-            String url = new String("//" + hostname + ":" + rmiPort + "/BankServer");
-            Naming.bind(url, bankServerStub);
+            // With shards the peers are the other servers of this server's shard
+            int peerCount = shards == null ? serverCount - 1 : shards.members(shards.ofServer(serverId)).length - 1;
+            bankServer = new BankServer(serverId, rmiPort, peerCount);
+            bankServer.setShards(shards);
+            bankServer.log = new EventLog(Printer.File.SERVER, "" + serverId, "", config);
+            bankServer.loadSettings(config);
+            bankServer.startPeerExecutor();
+            // Serve calls over NIO socket channels on the port instead of RMI when configured
+            if(Transport.isNio(config)) {
+                bankServer.nioServer = new NioServer(bankServer, rmiPort, bankServer.virtualThreads);
+                bankServer.nioServer.start();
+            }
+            else {
+                System.setProperty("java.rmi.server.hostname", hostname);
+                bankServerStub = (IBankServer) UnicastRemoteObject.exportObject(bankServer, 0);
+                localRegistry = LocateRegistry.createRegistry(rmiPort);
+                String url = new String("//" + hostname + ":" + rmiPort + "/BankServer");
+                Naming.bind(url, bankServerStub);
+            }
 
             // Log the server start
-            Printer.print("Server-" + serverId + " |    LIVE    | " + LocalDateTime.now(), Printer.File.SERVER, "" + serverId, "#737bf0");
+            bankServer.log.record(EventLog.event(EventLog.Type.LIVE, serverId));
             System.out.println("Server started on //" + hostname + ":" + rmiPort);
 
             // Find the peer servers
@@ -465,12 +1486,20 @@ public class BankServer implements IBankServer {
                 // between attempts until successful. The server will automatically detect when 
                 // a peer server is started and connect to it.
                 while(true) {
-                    Printer.print("Server-" + serverId + " |  PEER-CON  | " + LocalDateTime.now() + " | | | ATTEMPT " + c + " | " + host + ":" + port, Printer.File.SERVER, "" + serverId, "#b2b7f7");
+                    EventLog.Event attempt = EventLog.event(EventLog.Type.PEER_ATTEMPT, serverId);
+                    attempt.a = c;
+                    attempt.text = host + ":" + port;
+                    bankServer.log.record(attempt);
                     // Succesful connection
                     try {
-                        IBankServer peer = (IBankServer) Naming.lookup("//" + host + ":" + port + "/BankServer");
-                        Printer.print("Server-" + serverId + " |  PEER-CON  | " + LocalDateTime.now() + " | | | SUCCESS | " + host + ":" + port, Printer.File.SERVER, "" + serverId, "#737bf0");
-                        bankServer.addPeer(peer);
+                        IBankServer peer = Transport.connect(config, host, port);
+                        EventLog.Event success = EventLog.event(EventLog.Type.PEER_SUCCESS, serverId);
+                        success.text = host + ":" + port;
+                        bankServer.log.record(success);
+                        if(shards == null || shards.ofServer(i) == bankServer.shard)
+                            bankServer.addPeer(peer);
+                        else
+                            bankServer.addShardPeer(peer, shards.ofServer(i));
                         System.out.println("Peer Server-" + i + " connected");
                         break;
                     }
@@ -483,19 +1512,57 @@ public class BankServer implements IBankServer {
                 }
             }
 
-            // Create 20 new accounts and deposit 1000 into each
-            for (int i = 1; i < 21; i++) {
-                int uid = bankServer.createAccount(i);
-                boolean res = bankServer.deposit(uid, 1000);
-                // Error handling
-                if(!res) {
-                    System.out.println("Error creating account or depositing money, uid=" + uid);
-                    return;
+            // A reopened ledger without a write-ahead log already holds the accounts, continue from the last clock it
+            // applied
+            if(bankServer.accounts.size() > 0 && bankServer.snapshotter == null) {
+                bankServer.clockManager.receive(bankServer.accounts.lastApplied());
+                bankServer.requestQueue.markApplied(bankServer.accounts.lastApplied());
+                if(bankServer.sequencer != null)
+                    bankServer.sequencer.resume(bankServer.accounts.lastApplied());
+                System.out.println("Reopened ledger with " + bankServer.accounts.size() + " accounts");
+            }
+            // Restore the accounts from the latest snapshot and the write-ahead log, or continue a ledger closed cleanly
+            // from the log records after the lsn it holds. The lsn the log was replayed to decides what was restored.
+            // The clocks only set where to continue: every logged request is restored, so reads waiting for any of
+            // them may go ahead.
+            else if(bankServer.snapshotter != null && bankServer.snapshotter.recover(bankServer.accounts.getClosedLsn())) {
+                bankServer.clockManager.receive(bankServer.snapshotter.getHighestClock());
+                bankServer.requestQueue.markApplied(bankServer.snapshotter.getHighestClock());
+                if(bankServer.sequencer != null)
+                    bankServer.sequencer.resume(bankServer.snapshotter.getRecoveredClock());
+                if(bankServer.accounts.getClosedLsn() >= 0)
+                    System.out.println("Reopened ledger with " + bankServer.accounts.size() + " accounts, replayed the log after lsn "
+                        + bankServer.accounts.getClosedLsn());
+                else
+                    System.out.println("Recovered " + bankServer.accounts.size() + " accounts from snapshot");
+            }
+            // Create 20 new accounts and deposit 1000 into each, with shards only the accounts of this shard
+            else {
+                for (int i = 1; i < 21; i++) {
+                    if(!bankServer.owns(i))
+                        continue;
+                    int uid = bankServer.createAccount(i);
+                    boolean res = bankServer.deposit(uid, 1000);
+                    // Error handling
+                    if(!res) {
+                        System.out.println("Error creating account or depositing money, uid=" + uid);
+                        return;
+                    }
                 }
             }
+            // Snapshot the starting accounts so the write-ahead log only has to be replayed from here
+            if(bankServer.snapshotter != null) {
+                bankServer.snapshotter.snapshot();
+                bankServer.snapshotter.start();
+            }
+            // Finish the cross-shard transfers left pending by a failure or an earlier run, stamping new transfers
+            // above every stamp an earlier run gave one
+            if(bankServer.transfers != null)
+                bankServer.clockManager.receive(bankServer.transfers.getHighestStamp());
+            bankServer.startTransferRetry();
             // Log the initialization of the server
             System.out.println("Initialization complete, ready for requests.");
-            Printer.print("Server-" + serverId + " |    INIT    | " + LocalDateTime.now(), Printer.File.SERVER, "" + serverId, "#737bf0");
+            bankServer.log.record(EventLog.event(EventLog.Type.INIT, serverId));
 
             // Wait for 5 minutes before shutting down if no HALT request is received
             Thread.sleep(300000);
@@ -0,0 +1,219 @@
+/**
+ * @file src/CodecBench.java
+ * @brief Micro-benchmark comparing the Externalizable wire format of Request, Response and LamportClock with the
+ *          default Java serialization they used before. The old format is reproduced by the OldRequest, OldResponse and
+ *          OldClock classes below, which have the same fields as the original Serializable classes. Each message is
+ *          written to a fresh ObjectOutputStream, as RMI does for every call, and the benchmark reports the bytes per
+ *          message and the average encode and decode time after a warmup.
+ * @created 2024-03-30
+ * @author Jamison Grudem (grude013)
+ *
+ * @grace_days Using 2 grace days
+ */
+
+package src;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+public class CodecBench {
+
+    // Iterations run before measuring, so the JIT has compiled both formats
+    private static final int WARMUP = 200000;
+    // Iterations per measured round
+    private static final int ITERATIONS = 200000;
+    // Measured rounds, the fastest is reported
+    private static final int ROUNDS = 5;
+    // Consumed results, so the JIT cannot drop the work
+    private static long sink = 0;
+
+    /**
+     * Serialize an object to a fresh stream
+     * @param o The object
+     * @return [byte[]] The serialized bytes
+     */
+    private static byte[] encode(Object o) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try(ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(o);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Deserialize an object
+     * @param b The serialized bytes
+     * @return [Object] The object
+     */
+    private static Object decode(byte[] b) throws IOException, ClassNotFoundException {
+        try(ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(b))) {
+            return in.readObject();
+        }
+    }
+
+    /**
+     * Measure the average time to encode an object
+     * @param o The object
+     * @return [double] The fastest round's average ns per encode
+     */
+    private static double timeEncode(Object o) throws IOException {
+        for(int i = 0; i < WARMUP; i++) {
+            sink += encode(o).length;
+        }
+        double best = Double.MAX_VALUE;
+        for(int r = 0; r < ROUNDS; r++) {
+            long start = System.nanoTime();
+            for(int i = 0; i < ITERATIONS; i++) {
+                sink += encode(o).length;
+            }
+            best = Math.min(best, (System.nanoTime() - start) / (double) ITERATIONS);
+        }
+        return best;
+    }
+
+    /**
+     * Measure the average time to decode an object
+     * @param b The serialized bytes
+     * @return [double] The fastest round's average ns per decode
+     */
+    private static double timeDecode(byte[] b) throws IOException, ClassNotFoundException {
+        for(int i = 0; i < WARMUP; i++) {
+            sink += decode(b).hashCode();
+        }
+        double best = Double.MAX_VALUE;
+        for(int r = 0; r < ROUNDS; r++) {
+            long start = System.nanoTime();
+            for(int i = 0; i < ITERATIONS; i++) {
+                sink += decode(b).hashCode();
+            }
+            best = Math.min(best, (System.nanoTime() - start) / (double) ITERATIONS);
+        }
+        return best;
+    }
+
+    /**
+     * Compare both formats for one message and print the results
+     * @param name The message name
+     * @param current The message in the current format
+     * @param old The same message in the old format
+     */
+    private static void compare(String name, Object current, Object old) throws IOException, ClassNotFoundException {
+        byte[] c = encode(current);
+        byte[] o = encode(old);
+        System.out.printf("%-18s bytes %6d -> %6d   encode %8.0f -> %8.0f ns   decode %8.0f -> %8.0f ns%n",
+            name, o.length, c.length, timeEncode(old), timeEncode(current), timeDecode(o), timeDecode(c));
+    }
+
+    /**
+     * Main method for the CodecBench
+     * @param args Unused
+     */
+    public static void main(String[] args) throws Exception {
+        System.out.println("Default serialization -> Externalizable");
+
+        // A client transfer as sent to a server
+        Request transfer = (new Request()).ofType(Request.Type.TRANSFER).from(3).to(17).withAmount(10)
+            .withOriginId(EventLog.threadOrigin(123)).withClock(new LamportClock(4821, 2));
+        OldRequest oldTransfer = new OldRequest(transfer);
+        compare("TRANSFER request", transfer, oldTransfer);
+
+        // A peer's acknowledgement
+        Response ack = (new Response()).ofType(Response.Type.ACK).withClock(new LamportClock(4821, 2));
+        compare("ACK response", ack, new OldResponse(ack));
+
+        // A batch of 32 transfers and its responses
+        Request[] reqs = new Request[32];
+        Response[] responses = new Response[32];
+        for(int i = 0; i < reqs.length; i++) {
+            reqs[i] = (new Request()).ofType(Request.Type.TRANSFER).from(i % 20 + 1).to((i + 7) % 20 + 1).withAmount(10)
+                .withOriginId(EventLog.threadOrigin(100 + i)).withClock(new LamportClock(5000 + i, 1));
+            responses[i] = (new Response()).ofType(Response.Type.TRANSFER).withSuccess(true).withClock(reqs[i].getClock());
+        }
+        Request batch = (new Request()).ofType(Request.Type.BATCH).withBatch(reqs).withClock(reqs[0].getClock()).withOriginId(1);
+        Response batchResponse = (new Response()).ofType(Response.Type.BATCH).withBatch(responses).withClock(reqs[0].getClock());
+        compare("BATCH(32) request", batch, new OldRequest(batch));
+        compare("BATCH(32) response", batchResponse, new OldResponse(batchResponse));
+
+        if(sink == 42)
+            System.out.println();
+    }
+}
+
+/**
+ * The original Serializable LamportClock
+ */
+class OldClock implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private int timestamp;
+    private int serverId;
+
+    OldClock(LamportClock clock) {
+        this.timestamp = clock.getTimestamp();
+        this.serverId = clock.getServerId();
+    }
+}
+
+/**
+ * The original Serializable Request
+ */
+class OldRequest implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private OldClock clock;
+    private Request.Type type;
+    private int uid;
+    private int amount;
+    private int fromUid;
+    private int toUid;
+    private String origin;
+    private OldRequest[] batch;
+
+    OldRequest(Request req) {
+        this.clock = req.getClock() == null ? null : new OldClock(req.getClock());
+        this.type = req.getType();
+        this.uid = req.getUid();
+        this.amount = req.getAmount();
+        this.fromUid = req.getFrom();
+        this.toUid = req.getTo();
+        this.origin = req.getOrigin();
+        if(req.getBatch() != null) {
+            this.batch = new OldRequest[req.getBatch().length];
+            for(int i = 0; i < batch.length; i++) {
+                batch[i] = new OldRequest(req.getBatch()[i]);
+            }
+        }
+    }
+}
+
+/**
+ * The original Serializable Response
+ */
+class OldResponse implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private OldClock clock;
+    private Response.Type type;
+    private int uid;
+    private long balance;
+    private boolean success;
+    private OldResponse[] batch;
+
+    OldResponse(Response res) {
+        this.clock = res.getClock() == null ? null : new OldClock(res.getClock());
+        this.type = res.getType();
+        this.uid = res.getUid();
+        this.balance = res.getBalance();
+        this.success = res.getSuccess();
+        if(res.getBatch() != null) {
+            this.batch = new OldResponse[res.getBatch().length];
+            for(int i = 0; i < batch.length; i++) {
+                batch[i] = new OldResponse(res.getBatch()[i]);
+            }
+        }
+    }
+}
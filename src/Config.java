@@ -0,0 +1,75 @@
+/**
+ * @file src/Config.java
+ * @brief Small helper used to read optional settings from the XML configuration file. Settings are top-level elements
+ *          of the <config> element, for example <queueWaitTimeout>1000</queueWaitTimeout>. A missing or malformed setting
+ *          falls back to the provided default value so existing configuration files keep working unchanged.
+ * @created 2024-03-30
+ * @author Jamison Grudem (grude013)
+ *
+ * @grace_days Using 2 grace days
+ */
+
+package src;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+
+public class Config {
+
+    // The parsed configuration document
+    private Document doc;
+
+    /**
+     * Initialize a new Config
+     * @param doc The parsed configuration XML document
+     */
+    public Config(Document doc) {
+        this.doc = doc;
+    }
+
+    /**
+     * Get the raw text of a setting
+     * @param tag The tag name of the setting
+     * @param def The default value if the setting is not present
+     * @return [String] The trimmed text of the setting
+     */
+    public String getString(String tag, String def) {
+        if(doc == null)
+            return def;
+        NodeList nodes = doc.getElementsByTagName(tag);
+        if(nodes.getLength() == 0)
+            return def;
+        String value = nodes.item(0).getTextContent().trim();
+        return value.isEmpty() ? def : value;
+    }
+
+    /**
+     * Get an integer setting
+     * @param tag The tag name of the setting
+     * @param def The default value if the setting is not present or invalid
+     * @return [int] The value of the setting
+     */
+    public int getInt(String tag, int def) {
+        try {
+            return Integer.parseInt(getString(tag, "" + def));
+        } catch(NumberFormatException e) {
+            System.out.println("Invalid value for <" + tag + ">, using default " + def);
+            return def;
+        }
+    }
+
+    /**
+     * Get a long setting
+     * @param tag The tag name of the setting
+     * @param def The default value if the setting is not present or invalid
+     * @return [long] The value of the setting
+     */
+    public long getLong(String tag, long def) {
+        try {
+            return Long.parseLong(getString(tag, "" + def));
+        } catch(NumberFormatException e) {
+            System.out.println("Invalid value for <" + tag + ">, using default " + def);
+            return def;
+        }
+    }
+}
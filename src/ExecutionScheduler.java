@@ -0,0 +1,236 @@
+/**
+ * @file src/ExecutionScheduler.java
+ * @brief Applies a window of totally ordered requests in parallel while giving the same result as applying them one
+ *          at a time in clock order. Each request is placed one level after the latest earlier request in the window
+ *          that touches one of its accounts, so requests on the same level touch disjoint accounts and commute. The
+ *          levels run one after another and the requests of a level are split between the worker threads. Requests
+ *          that are not tied to accounts (a halt, a nested batch) get a level of their own. The number of workers
+ *          is set with <executionThreads>; windows too small to gain from parallelism are applied on the calling
+ *          thread. Closing the scheduler waits for the windows being applied to finish, so a halting server closes it
+ *          before its durable state.
+ * @created 2024-03-30
+ * @author Jamison Grudem (grude013)
+ *
+ * @grace_days Using 2 grace days
+ */
+
+package src;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+public class ExecutionScheduler {
+
+    // Windows with fewer requests than this are applied serially
+    private static final int MIN_PARALLEL = 8;
+
+    // Applies the requests of a level, null when execution is serial
+    private ExecutorService workers;
+    // Number of threads applying a level, the calling thread included
+    private int threads;
+    // Held shared while a window is applied in parallel and exclusively by `close`, which waits for those windows
+    private final ReentrantReadWriteLock running = new ReentrantReadWriteLock();
+    // Set once closed, later windows are applied serially, guarded by `running`
+    private boolean closed = false;
+    // Number of windows applied in parallel, and the levels they took
+    private LongAdder windows = new LongAdder();
+    private LongAdder levels = new LongAdder();
+
+    /**
+     * Initialize a new ExecutionScheduler
+     * @param threads The number of threads applying requests, 1 applies them serially
+     * @param name The thread name
+     */
+    public ExecutionScheduler(int threads, String name) {
+        this.threads = Math.max(1, threads);
+        if(this.threads > 1)
+            this.workers = Executors.newFixedThreadPool(this.threads - 1, Threads.factory(name, false));
+    }
+
+    /**
+     * Get the number of threads applying requests
+     * @return [int] The thread count, the calling thread included
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Check whether requests are applied in parallel
+     * @return [boolean] True with more than one thread
+     */
+    public boolean isParallel() {
+        return workers != null;
+    }
+
+    /**
+     * Apply a window of requests, giving the same responses as applying them in order
+     * @param window The requests, in clock order
+     * @param apply Applies one request
+     * @return [Response[]] The responses, in the same order as the requests
+     */
+    public Response[] run(Request[] window, Function<Request, Response> apply) {
+        Response[] responses = new Response[window.length];
+        if(workers == null || window.length < MIN_PARALLEL) {
+            applySerially(window, responses, apply);
+            return responses;
+        }
+        running.readLock().lock();
+        try {
+            if(closed) {
+                applySerially(window, responses, apply);
+                return responses;
+            }
+            ArrayList<ArrayList<Integer>> byLevel = levels(window);
+            for(ArrayList<Integer> level : byLevel) {
+                runLevel(level, window, responses, apply);
+            }
+            windows.increment();
+            levels.add(byLevel.size());
+        } finally {
+            running.readLock().unlock();
+        }
+        return responses;
+    }
+
+    /**
+     * Apply a window of requests one at a time on the calling thread
+     * @param window The requests, in clock order
+     * @param responses Receives the responses
+     * @param apply Applies one request
+     */
+    private static void applySerially(Request[] window, Response[] responses, Function<Request, Response> apply) {
+        for(int i = 0; i < window.length; i++) {
+            responses[i] = apply.apply(window[i]);
+        }
+    }
+
+    /**
+     * Place each request one level after the latest earlier request that touches one of its accounts
+     * @param window The requests, in clock order
+     * @return [ArrayList<ArrayList<Integer>>] The indexes of the requests on each level, in clock order
+     */
+    private static ArrayList<ArrayList<Integer>> levels(Request[] window) {
+        ArrayList<ArrayList<Integer>> byLevel = new ArrayList<ArrayList<Integer>>();
+        // Level of the latest request that touched each account
+        HashMap<Integer, Integer> last = new HashMap<Integer, Integer>();
+        // Lowest level a request may take, raised past every request not tied to accounts
+        int floor = 0;
+        for(int i = 0; i < window.length; i++) {
+            int[] uids = window[i].getAccounts();
+            int level;
+            if(uids == null) {
+                // Runs alone, after everything before it and before everything after it
+                level = byLevel.size();
+                floor = level + 1;
+            }
+            else {
+                level = floor;
+                for(int uid : uids) {
+                    Integer l = last.get(uid);
+                    if(l != null)
+                        level = Math.max(level, l + 1);
+                }
+                for(int uid : uids) {
+                    last.put(uid, level);
+                }
+            }
+            while(byLevel.size() <= level) {
+                byLevel.add(new ArrayList<Integer>());
+            }
+            byLevel.get(level).add(i);
+        }
+        return byLevel;
+    }
+
+    /**
+     * Apply the requests of one level, split into one contiguous slice per thread
+     * @param level The indexes of the requests
+     * @param window The requests
+     * @param responses Receives the responses
+     * @param apply Applies one request
+     */
+    private void runLevel(ArrayList<Integer> level, Request[] window, Response[] responses, Function<Request, Response> apply) {
+        int slices = Math.min(threads, (level.size() + MIN_PARALLEL - 1) / MIN_PARALLEL);
+        ArrayList<Future<?>> running = new ArrayList<Future<?>>();
+        for(int s = 1; s < slices; s++) {
+            int from = level.size() * s / slices;
+            int to = level.size() * (s + 1) / slices;
+            running.add(workers.submit(() -> applySlice(level, from, to, window, responses, apply)));
+        }
+        // The calling thread applies the first slice
+        applySlice(level, 0, level.size() / slices, window, responses, apply);
+        for(Future<?> f : running) {
+            try {
+                f.get();
+            } catch(ExecutionException e) {
+                throw new IllegalStateException("Applying a request failed", e.getCause());
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while applying requests", e);
+            }
+        }
+    }
+
+    /**
+     * Apply part of a level
+     * @param level The indexes of the requests on the level
+     * @param from The first position in `level`, inclusive
+     * @param to The last position in `level`, exclusive
+     * @param window The requests
+     * @param responses Receives the responses
+     * @param apply Applies one request
+     */
+    private static void applySlice(ArrayList<Integer> level, int from, int to, Request[] window, Response[] responses,
+            Function<Request, Response> apply) {
+        for(int p = from; p < to; p++) {
+            int i = level.get(p);
+            responses[i] = apply.apply(window[i]);
+        }
+    }
+
+    /**
+     * Get the number of windows applied in parallel
+     * @return [long] The window count
+     */
+    public long getWindows() {
+        return windows.sum();
+    }
+
+    /**
+     * Get the average number of levels per window applied in parallel, lower is more parallel
+     * @return [double] The average, 0 if no window was applied in parallel
+     */
+    public double getAvgLevels() {
+        long w = windows.sum();
+        return w == 0 ? 0 : (double) levels.sum() / w;
+    }
+
+    /**
+     * Wait for the windows being applied in parallel to finish, then stop the worker threads
+     */
+    public void close() {
+        if(workers == null)
+            return;
+        running.writeLock().lock();
+        try {
+            closed = true;
+            workers.shutdown();
+            if(!workers.awaitTermination(10, TimeUnit.SECONDS))
+                workers.shutdownNow();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            workers.shutdownNow();
+        } finally {
+            running.writeLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/**
+ * @file src/Histogram.java
+ * @brief Fixed-memory latency histogram that threads record into without locking. Values (in nanoseconds) are counted
+ *          in log-linear buckets: every power of two is split into 32 equal sub-buckets, so a bucket is never wider
+ *          than about 3% of the values it holds, and every non-negative long fits in 1888 counters. Recording is one
+ *          atomic increment plus the running sum and maximum, so a histogram can be shared by every request thread.
+ *          Histograms of the same layout add up bucket by bucket, which is how client threads, report intervals and
+ *          servers are combined; percentiles are read from the combined buckets rather than averaged.
+ * @created 2024-03-30
+ * @author Jamison Grudem (grude013)
+ *
+ * @grace_days Using 2 grace days
+ */
+
+package src;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Histogram {
+
+    // Number of bits of a value kept below its highest set bit, each power of two has 2^SUB_BITS buckets
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    // Enough buckets for any non-negative long, whose highest set bit is at most bit 62
+    static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    // Number of values in each bucket
+    private AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    // Number of values recorded, their sum and the largest one
+    private LongAdder count = new LongAdder();
+    private LongAdder sum = new LongAdder();
+    private AtomicLong max = new AtomicLong(0);
+
+    /**
+     * Get the bucket a value falls in
+     * @param value The value, negative values count as 0
+     * @return [int] The bucket index
+     */
+    static int bucket(long value) {
+        if(value < SUB_BUCKETS)
+            return (int) Math.max(0, value);
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Get the largest value a bucket holds
+     * @param index The bucket index
+     * @return [long] The highest value counted in the bucket
+     */
+    static long highest(int index) {
+        if(index < SUB_BUCKETS)
+            return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * Record a value
+     * @param nanos The value in nanoseconds, negative values (a clock stepping back) are recorded as 0
+     */
+    public void record(long nanos) {
+        nanos = Math.max(0, nanos);
+        counts.incrementAndGet(bucket(nanos));
+        count.increment();
+        sum.add(nanos);
+        max.accumulateAndGet(nanos, Math::max);
+    }
+
+    /**
+     * Add every value of another histogram to this one
+     * @param other The histogram to add, may still be recorded into
+     */
+    public void merge(Histogram other) {
+        long added = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            long n = other.counts.get(i);
+            if(n != 0) {
+                counts.addAndGet(i, n);
+                added += n;
+            }
+        }
+        // Counted from the buckets, so the count always matches the buckets copied
+        count.add(added);
+        sum.add(other.sum.sum());
+        max.accumulateAndGet(other.max.get(), Math::max);
+    }
+
+    /**
+     * Copy the histogram as it is now
+     * @return [Histogram] A histogram holding the values recorded so far
+     */
+    public Histogram copy() {
+        Histogram h = new Histogram();
+        h.merge(this);
+        return h;
+    }
+
+    /**
+     * Get the values recorded since an earlier copy of this histogram, used for interval reports. The maximum is that
+     * of the whole histogram if it was reached after the copy, otherwise the highest bucket recorded since.
+     * @param earlier An earlier copy
+     * @return [Histogram] A histogram holding the difference
+     */
+    public Histogram since(Histogram earlier) {
+        Histogram h = new Histogram();
+        long added = 0;
+        int top = -1;
+        for(int i = 0; i < BUCKETS; i++) {
+            long n = counts.get(i) - earlier.counts.get(i);
+            if(n > 0) {
+                h.counts.set(i, n);
+                added += n;
+                top = i;
+            }
+        }
+        h.count.add(added);
+        h.sum.add(sum.sum() - earlier.sum.sum());
+        long m = max.get();
+        h.max.set(m > earlier.max.get() ? m : top < 0 ? 0 : Math.min(m, highest(top)));
+        return h;
+    }
+
+    /**
+     * Get the number of values recorded
+     * @return [long] The count
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Get the largest value recorded
+     * @return [long] The maximum in nanoseconds, 0 if empty
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Get the average value recorded
+     * @return [long] The mean in nanoseconds, 0 if empty
+     */
+    public long getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : sum.sum() / n;
+    }
+
+    /**
+     * Get the value at a percentile, as the highest value of the bucket it falls in
+     * @param percentile The percentile, from 0 to 100
+     * @return [long] The value in nanoseconds, never above the maximum, 0 if empty
+     */
+    public long percentile(double percentile) {
+        long n = count.sum();
+        if(n == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if(seen >= rank)
+                return Math.min(highest(i), max.get());
+        }
+        return max.get();
+    }
+
+    /**
+     * Describe the latency distribution
+     * @return [String] The p50, p99, p99.9 and maximum in seconds
+     */
+    public String summary() {
+        return "p50=" + EventLog.seconds(percentile(50)) + "s, p99=" + EventLog.seconds(percentile(99))
+            + "s, p99.9=" + EventLog.seconds(percentile(99.9)) + "s, max=" + EventLog.seconds(getMax()) + "s";
+    }
+
+    /**
+     * Write the histogram, only the buckets holding values
+     * @param out The stream to write to
+     * @throws IOException If the write fails
+     */
+    public void write(DataOutputStream out) throws IOException {
+        int used = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            if(counts.get(i) != 0)
+                used++;
+        }
+        out.writeLong(sum.sum());
+        out.writeLong(max.get());
+        out.writeInt(used);
+        for(int i = 0; i < BUCKETS && used > 0; i++) {
+            long n = counts.get(i);
+            if(n != 0) {
+                out.writeShort(i);
+                out.writeLong(n);
+                used--;
+            }
+        }
+    }
+
+    /**
+     * Read a histogram written by `write`
+     * @param in The stream to read from
+     * @return [Histogram] The histogram
+     * @throws IOException If the read fails
+     */
+    public static Histogram read(DataInputStream in) throws IOException {
+        Histogram h = new Histogram();
+        h.sum.add(in.readLong());
+        h.max.set(in.readLong());
+        int used = in.readInt();
+        for(int i = 0; i < used; i++) {
+            int index = in.readShort();
+            long n = in.readLong();
+            h.counts.set(index, n);
+            h.count.add(n);
+        }
+        return h;
+    }
+}
@@ -19,6 +19,16 @@ public interface IBankServer extends Remote {
     public Response clientRequest(Request req) throws RemoteException;
     // Accept a request from another server - used in P2P mutlicast
     public Response serverRequest(Request req) throws RemoteException;
+    // Accept a batch of requests from another server, ordered and executed as one unit
+    public Response serverBatchRequest(Request[] batch) throws RemoteException;
     // Execute a request locally
     public Response execute(Request req) throws RemoteException;
+    // Number a request and broadcast it to every server - used in sequencer ordering, on the sequencer
+    public Response sequence(Request req) throws RemoteException;
+    // Accept a sequenced request from the sequencer - used in sequencer ordering
+    public Response deliver(Request req) throws RemoteException;
+    // Return the recently sequenced requests after a stamp, as a batch carrying the newest epoch seen, after raising it to the caller's - used in sequencer ordering to catch up and to fail over
+    public Request fetch(long after, long epoch) throws RemoteException;
+    // Receive a peer's safe clock - used in ack-driven delivery
+    public void acknowledge(int serverId, long clock) throws RemoteException;
 } 
\ No newline at end of file
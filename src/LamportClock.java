@@ -1,6 +1,9 @@
 /**
  * @file src/LamportClock.java
- * @brief Represents the lamport clock timestamp associated with requests.
+ * @brief Represents the lamport clock timestamp associated with requests. Written on the wire as a single packed long.
+ *          Requests, responses and the request queue carry clocks in that packed form, a "stamp", so ordering two
+ *          clocks is a primitive long comparison and no clock object is allocated per request. The static helpers
+ *          below work on stamps; a LamportClock object is only created where a caller asks for one.
  * @created 2024-03-30
  * @author Jamison Grudem (grude013)
  * 
@@ -9,14 +12,23 @@
 
 package src;
 
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 
-public class LamportClock implements Serializable {
+public class LamportClock implements Externalizable, Comparable<LamportClock> {
     // Stores the timestamp
     private int timestamp;
     // Stores the server id
     private int serverId;
 
+    /**
+     * Initialize an empty LamportClock, used when reading one with `readExternal`
+     */
+    public LamportClock() {
+    }
+
     /**
      * Initialize a new LamportClock
      * @param timestamp The timestamp
@@ -41,6 +53,60 @@ public class LamportClock implements Serializable {
         return this.serverId;
     }
 
+    /**
+     * Pack the clock into a single long that orders the same way as `compareTo`
+     * @return [long] The timestamp in the high bits and the server id in the low 16 bits
+     */
+    public long pack() {
+        return pack(this.timestamp, this.serverId);
+    }
+
+    /**
+     * Pack a timestamp and server id into a stamp
+     * @param timestamp The timestamp
+     * @param serverId The id of the server
+     * @return [long] The timestamp in the high bits and the server id in the low 16 bits
+     */
+    public static long pack(int timestamp, int serverId) {
+        return ((long) timestamp << 16) | (serverId & 0xFFFF);
+    }
+
+    /**
+     * Get the timestamp of a stamp
+     * @param stamp The packed clock
+     * @return [int] The timestamp
+     */
+    public static int timestamp(long stamp) {
+        return (int) (stamp >>> 16);
+    }
+
+    /**
+     * Get the server id of a stamp
+     * @param stamp The packed clock
+     * @return [int] The server id
+     */
+    public static int serverId(long stamp) {
+        return (int) (stamp & 0xFFFF);
+    }
+
+    /**
+     * Format a stamp the same way as `toString`
+     * @param stamp The packed clock, 0 for none
+     * @return [String] The clock, or "null" for none
+     */
+    public static String toString(long stamp) {
+        return stamp == 0 ? "null" : "[" + timestamp(stamp) + ", " + serverId(stamp) + "]";
+    }
+
+    /**
+     * Unpack a clock packed with `pack`
+     * @param packed The packed clock
+     * @return [LamportClock] The clock
+     */
+    public static LamportClock unpack(long packed) {
+        return new LamportClock(timestamp(packed), serverId(packed));
+    }
+
     /**
      * Compare two lamport clocks:
      *  - Integer compare by timestamp first
@@ -49,18 +115,24 @@ public class LamportClock implements Serializable {
      * @return -1 if this is less than other, 0 if equal, 1 if greater
      */
     public int compareTo(LamportClock other) {
-        if(this.timestamp < other.getTimestamp())
-            return -1;
-        else if(this.timestamp > other.getTimestamp())
-            return 1;
-        else {
-            if(this.serverId < other.getServerId())
-                return -1;
-            else if(this.serverId > other.getServerId())
-                return 1;
-            else
-                return 0;
-        }
+        return Long.compare(pack(), other.pack());
+    }
+
+    /**
+     * Two lamport clocks are equal if they have the same timestamp and server id
+     * @param other The object to compare to
+     */
+    public boolean equals(Object other) {
+        if(!(other instanceof LamportClock))
+            return false;
+        return compareTo((LamportClock) other) == 0;
+    }
+
+    /**
+     * Hash code consistent with equals
+     */
+    public int hashCode() {
+        return 31 * this.timestamp + this.serverId;
     }
 
     /**
@@ -69,4 +141,22 @@ public class LamportClock implements Serializable {
     public String toString() {
         return "[" + this.timestamp + ", " + this.serverId + "]";
     }
+
+    /**
+     * Write the clock as its packed long
+     * @param out The stream to write to
+     */
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeLong(pack());
+    }
+
+    /**
+     * Read a clock written with `writeExternal`
+     * @param in The stream to read from
+     */
+    public void readExternal(ObjectInput in) throws IOException {
+        long packed = in.readLong();
+        this.timestamp = timestamp(packed);
+        this.serverId = serverId(packed);
+    }
 }
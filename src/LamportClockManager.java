@@ -1,6 +1,8 @@
 /**
  * @file src/LamportClockManager.java
- * @brief Simple class used to manage the current lamport clock value for a server.
+ * @brief Simple class used to manage the current lamport clock value for a server. The counter is a single atomic long,
+ *          so ticking the clock and merging a received clock are lock-free, and new clocks are handed out as stamps
+ *          (see LamportClock) with the server id already packed in.
  * @created 2024-03-30
  * @author Jamison Grudem (grude013)
  * 
@@ -9,30 +11,63 @@
 
 package src;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 public class LamportClockManager {
     
-    // Integer clock value
-    private int clock;
+    // Clock value
+    private AtomicLong clock = new AtomicLong(0);
+    // The id of the server, packed into every stamp
+    private int serverId;
 
     /**
      * Initialize a new LamportClockManager
+     * @param serverId The id of the server
      */
-    public LamportClockManager() {
-        this.clock = 0;
+    public LamportClockManager(int serverId) {
+        this.serverId = serverId;
     }
 
     /**
-     * Increment the clock value
+     * Increment the clock and return the new value as a stamp in one atomic step, so concurrent requests never share
+     * a clock value
+     * @return [long] The packed clock of the new value
      */
-    public synchronized void increment() {
-        this.clock++;
+    public long tickAndGet() {
+        return LamportClock.pack((int) clock.incrementAndGet(), serverId);
+    }
+
+    /**
+     * Merge a clock received from another server, so every clock handed out afterwards orders after it
+     * @param remote The packed clock received
+     */
+    public void receive(long remote) {
+        clock.accumulateAndGet(LamportClock.timestamp(remote), Math::max);
     }
 
     /**
      * Get the current clock value
      * @return [int] The clock value
      */
-    public synchronized int getClockValue() {
-        return this.clock;
+    public int getClockValue() {
+        return (int) clock.get();
+    }
+
+    /**
+     * Reserve a contiguous range of clock values, used to timestamp a batch of requests
+     * @param count The number of clock values to reserve
+     * @return [int] The first clock value of the range
+     */
+    public int reserve(int count) {
+        return (int) (clock.getAndAdd(count) + 1);
+    }
+
+    /**
+     * Get the stamp of a clock value reserved by this server
+     * @param value The clock value
+     * @return [long] The packed clock
+     */
+    public long stamp(int value) {
+        return LamportClock.pack(value, serverId);
     }
 }
@@ -0,0 +1,259 @@
+/**
+ * @file src/LatencyRecorder.java
+ * @brief Latency histograms for every operation type and protocol phase, replacing the list of request times the
+ *          servers used to average. A server records the total time of each client request and, separately, the time
+ *          spent multicasting it to the peers, waiting for it to be ordered, telling the peers to execute it and
+ *          applying it locally, so a slow tail can be traced to the phase it comes from. The p50, p99, p99.9 and
+ *          maximum of each are logged as LATENCY lines at halt and, with <latencyReportInterval>, for every interval
+ *          while the server runs. At halt the histograms are also saved to `log/server{id}.latency` (the client saves
+ *          `log/client.latency`), and running this class on those files merges them into one report across servers.
+ * @created 2024-03-30
+ * @author Jamison Grudem (grude013)
+ *
+ * @grace_days Using 2 grace days
+ */
+
+package src;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class LatencyRecorder {
+
+    /**
+     * The part of handling a request that is timed
+     */
+    public static enum Phase {
+        // From receiving the request to answering it
+        TOTAL,
+        // Sending the request to the peers, or to the sequencer, and waiting for their replies
+        MULTICAST,
+        // Waiting for the request to be ordered: the head of the queue, its dependencies, or its delivery
+        QUEUE_WAIT,
+        // Telling the peers to execute the request and waiting for their replies
+        PEER_EXECUTE,
+        // Applying the request to the local accounts
+        LOCAL_EXECUTE
+    }
+
+    // Cached to avoid copying the enum values for every record
+    private static final Request.Type[] OPS = Request.Type.values();
+    private static final Phase[] PHASES = Phase.values();
+    // Identifies a latency file
+    private static final int MAGIC = 0x4c41544e;
+
+    // Histogram of each operation and phase, created on first use so unused pairs take no memory
+    private AtomicReferenceArray<Histogram> histograms = new AtomicReferenceArray<Histogram>(OPS.length * PHASES.length);
+    // Copies of the histograms at the last interval report, null until interval reports start
+    private Histogram[] lastReport;
+    // Logs interval reports, null when they are disabled
+    private ScheduledExecutorService reporter;
+
+    /**
+     * Get the histogram of an operation and phase
+     * @param op The operation type
+     * @param phase The phase
+     * @return [Histogram] The histogram, created if it does not exist yet
+     */
+    public Histogram get(Request.Type op, Phase phase) {
+        int i = op.ordinal() * PHASES.length + phase.ordinal();
+        Histogram h = histograms.get(i);
+        if(h == null) {
+            histograms.compareAndSet(i, null, new Histogram());
+            h = histograms.get(i);
+        }
+        return h;
+    }
+
+    /**
+     * Record the time of a phase
+     * @param op The operation type
+     * @param phase The phase
+     * @param nanos The time in nanoseconds
+     */
+    public void record(Request.Type op, Phase phase, long nanos) {
+        get(op, phase).record(nanos);
+    }
+
+    /**
+     * Record the time of a phase that started at `start`
+     * @param op The operation type
+     * @param phase The phase
+     * @param start The `System.nanoTime()` when the phase started
+     */
+    public void since(Request.Type op, Phase phase, long start) {
+        record(op, phase, System.nanoTime() - start);
+    }
+
+    /**
+     * Merge the total time of every operation except balance reads, which are served without ordering
+     * @return [Histogram] The combined histogram of the ordered requests
+     */
+    public Histogram writes() {
+        Histogram all = new Histogram();
+        for(Request.Type op : OPS) {
+            Histogram h = histograms.get(op.ordinal() * PHASES.length + Phase.TOTAL.ordinal());
+            if(h != null && op != Request.Type.GET_BALANCE)
+                all.merge(h);
+        }
+        return all;
+    }
+
+    /**
+     * Add every value of another recorder to this one
+     * @param other The recorder to add
+     */
+    public void merge(LatencyRecorder other) {
+        for(int i = 0; i < histograms.length(); i++) {
+            Histogram h = other.histograms.get(i);
+            if(h != null)
+                get(OPS[i / PHASES.length], PHASES[i % PHASES.length]).merge(h);
+        }
+    }
+
+    /**
+     * Build the event reporting a histogram
+     * @param actor The id of the server or client logging it
+     * @param index The index of the operation and phase
+     * @param h The histogram
+     * @param interval Whether it only holds the values of the last interval
+     * @return [EventLog.Event] The LATENCY_REPORT event
+     */
+    private static EventLog.Event event(int actor, int index, Histogram h, boolean interval) {
+        EventLog.Event e = EventLog.event(EventLog.Type.LATENCY_REPORT, actor);
+        e.op = OPS[index / PHASES.length];
+        e.text = PHASES[index % PHASES.length].toString().toLowerCase() + " " + h.summary();
+        e.a = (int) h.getCount();
+        e.b = interval ? 1 : 0;
+        e.d = h.getMax();
+        e.e = h.getMean();
+        return e;
+    }
+
+    /**
+     * Log the latency of every operation and phase recorded so far
+     * @param log The log to write to
+     * @param actor The id of the server or client logging it
+     */
+    public void report(EventLog log, int actor) {
+        for(int i = 0; i < histograms.length(); i++) {
+            Histogram h = histograms.get(i);
+            if(h != null && h.getCount() > 0)
+                log.record(event(actor, i, h, false));
+        }
+    }
+
+    /**
+     * Log the latency of every operation and phase recorded since the last interval report
+     * @param log The log to write to
+     * @param actor The id of the server logging it
+     */
+    private void reportInterval(EventLog log, int actor) {
+        for(int i = 0; i < histograms.length(); i++) {
+            Histogram h = histograms.get(i);
+            if(h == null)
+                continue;
+            Histogram now = h.copy();
+            Histogram delta = lastReport[i] == null ? now : now.since(lastReport[i]);
+            lastReport[i] = now;
+            if(delta.getCount() > 0)
+                log.record(event(actor, i, delta, true));
+        }
+    }
+
+    /**
+     * Start logging the latency of each interval in the background
+     * @param log The log to write to
+     * @param actor The id of the server logging it
+     * @param intervalMs The ms between reports, 0 disables them
+     */
+    public void startReports(EventLog log, int actor, long intervalMs) {
+        if(intervalMs <= 0)
+            return;
+        this.lastReport = new Histogram[histograms.length()];
+        this.reporter = Executors.newSingleThreadScheduledExecutor(Threads.factory("latency-report", false));
+        reporter.scheduleAtFixedRate(() -> reportInterval(log, actor), intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the interval reports
+     */
+    public void close() {
+        if(reporter != null)
+            reporter.shutdownNow();
+    }
+
+    /**
+     * Save the histograms to a file, to be merged with those of other servers
+     * @param path The file to write
+     * @throws IOException If the write fails
+     */
+    public void save(String path) throws IOException {
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)))) {
+            out.writeInt(MAGIC);
+            for(int i = 0; i < histograms.length(); i++) {
+                Histogram h = histograms.get(i);
+                if(h == null || h.getCount() == 0)
+                    continue;
+                out.writeUTF(OPS[i / PHASES.length].toString());
+                out.writeUTF(PHASES[i % PHASES.length].toString());
+                h.write(out);
+            }
+            out.writeUTF("");
+        }
+    }
+
+    /**
+     * Load histograms saved with `save`
+     * @param path The file to read
+     * @return [LatencyRecorder] A recorder holding the histograms
+     * @throws IOException If the file cannot be read or is not a latency file
+     */
+    public static LatencyRecorder load(String path) throws IOException {
+        LatencyRecorder recorder = new LatencyRecorder();
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)))) {
+            if(in.readInt() != MAGIC)
+                throw new IOException("Not a latency file: " + path);
+            String op;
+            while(!(op = in.readUTF()).isEmpty()) {
+                Phase phase = Phase.valueOf(in.readUTF());
+                recorder.get(Request.Type.valueOf(op), phase).merge(Histogram.read(in));
+            }
+        }
+        return recorder;
+    }
+
+    /**
+     * Merge the latency files of several servers or clients and print the combined percentiles
+     * @param args The latency files
+     */
+    public static void main(String[] args) {
+        if(args.length == 0) {
+            System.out.println("Usage: java LatencyRecorder <file.latency> [file.latency ...]");
+            return;
+        }
+        LatencyRecorder all = new LatencyRecorder();
+        for(String path : args) {
+            try {
+                all.merge(load(path));
+            } catch(IOException e) {
+                System.out.println("Error reading " + path + ": " + e);
+            }
+        }
+        for(int i = 0; i < all.histograms.length(); i++) {
+            Histogram h = all.histograms.get(i);
+            if(h != null && h.getCount() > 0)
+                System.out.println(EventLog.format(event(EventLog.ORIGIN_NONE, i, h, false), LocalDateTime.now()));
+        }
+    }
+}
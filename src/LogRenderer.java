@@ -0,0 +1,80 @@
+/**
+ * @file src/LogRenderer.java
+ * @brief Offline tool that converts the binary event logs written with <logFormat>binary</logFormat> into the usual
+ *          plain text `.log` and `.html` files in the `log` directory. Run it from the build directory after the client
+ *          and servers have finished, passing the `.bin` files to render.
+ * @created 2024-03-30
+ * @author Jamison Grudem (grude013)
+ *
+ * @grace_days Using 2 grace days
+ */
+
+package src;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+public class LogRenderer {
+
+    /**
+     * Render a single binary event log
+     * @param path The path of the `.bin` file
+     * @return [int] The number of events rendered
+     */
+    public static int render(String path) throws IOException {
+        int count = 0;
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path), 1 << 16))) {
+            // Read the header
+            if(in.readInt() != EventLog.MAGIC)
+                throw new IOException(path + " is not a binary event log");
+            short version = in.readShort();
+            if(version != EventLog.VERSION)
+                throw new IOException(path + " has unsupported version " + version);
+            Printer.File file = Printer.File.values()[in.readByte()];
+            String id = in.readUTF();
+            String links = in.readUTF();
+            long wallBase = in.readLong();
+            long nanoBase = in.readLong();
+
+            // Write every event through the Printer, timestamped relative to when the log was opened
+            Printer.initHtmlLog(file, id, links);
+            while(true) {
+                EventLog.Event e;
+                try {
+                    e = EventLog.read(in);
+                } catch(EOFException eof) {
+                    break;
+                }
+                String line = EventLog.format(e, EventLog.toLocalDateTime(wallBase + (e.nanos - nanoBase)));
+                Printer.print(line, file, id, e.type.color);
+                count++;
+            }
+            Printer.closeHtmlLog(file, id);
+        }
+        return count;
+    }
+
+    /**
+     * Main method for the LogRenderer
+     * @param args The `.bin` files to render
+     */
+    public static void main(String[] args) {
+        if(args.length == 0) {
+            System.out.println("Usage: java LogRenderer <file.bin> [file.bin ...]");
+            return;
+        }
+        // Write the output in the background, the input is already complete so never drop lines
+        Printer.startAsync(1 << 16);
+        for(String path : args) {
+            try {
+                int count = render(path);
+                System.out.println("Rendered " + count + " events from " + path);
+            } catch(IOException e) {
+                System.out.println("Error rendering " + path + ": " + e);
+            }
+        }
+    }
+}
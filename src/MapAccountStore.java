@@ -0,0 +1,82 @@
+/**
+ * @file src/MapAccountStore.java
+ * @brief The default AccountStore, keeping an Account object per account in a ConcurrentHashMap.
+ * @created 2024-03-30
+ * @author Jamison Grudem (grude013)
+ *
+ * @grace_days Using 2 grace days
+ */
+
+package src;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+public class MapAccountStore implements AccountStore {
+
+    // Hash map of accounts
+    private ConcurrentHashMap<Integer, Account> accounts = new ConcurrentHashMap<Integer, Account>();
+
+    /**
+     * Create an account with a balance of 0, replacing any existing account with the same uid
+     * @param uid The account id
+     */
+    public void create(int uid) {
+        accounts.put(uid, new Account(uid));
+    }
+
+    /**
+     * Check whether an account exists
+     * @param uid The account id
+     * @return [boolean] True if the account exists
+     */
+    public boolean contains(int uid) {
+        return accounts.containsKey(uid);
+    }
+
+    /**
+     * Get the balance of an account
+     * @param uid The account id
+     * @return [long] The balance
+     */
+    public long get(int uid) {
+        return accounts.get(uid).getBalance();
+    }
+
+    /**
+     * Atomically add to the balance of an account
+     * @param uid The account id
+     * @param delta The amount to add
+     * @return [long] The new balance
+     */
+    public long addAndGet(int uid, long delta) {
+        return accounts.get(uid).addAndGet(delta);
+    }
+
+    /**
+     * Atomically withdraw from an account if it has enough money
+     * @param uid The account id
+     * @param amount The amount to withdraw
+     * @return [boolean] True if the amount was withdrawn, false if it would overdraw the account
+     */
+    public boolean tryWithdraw(int uid, long amount) {
+        return accounts.get(uid).tryWithdraw(amount);
+    }
+
+    /**
+     * Get the number of accounts
+     * @return [int] The number of accounts
+     */
+    public int size() {
+        return accounts.size();
+    }
+
+    /**
+     * Visit every account with its current balance
+     * @param visitor Receives each account
+     */
+    public void forEach(Visitor visitor) {
+        for(Account a : accounts.values()) {
+            visitor.visit(a.getUid(), a.getBalance());
+        }
+    }
+}
@@ -0,0 +1,474 @@
+/**
+ * @file src/MappedLedger.java
+ * @brief AccountStore that keeps fixed-width account records (uid, balance, last applied clock) in a memory-mapped file
+ *          instead of on the Java heap. The records form an open-addressing hash table inside the file, so the heap
+ *          stays small as the number of accounts grows and the operating system's page cache does the I/O. Because
+ *          the file outlives the process, a restarted server reopens the mapping and serves the persisted balances
+ *          immediately. Writes reach the file when the ledger is closed or when the operating system writes the pages
+ *          back; a crash of the machine itself can lose recent updates.
+ *
+ *          With a write-ahead log, closing the ledger forces it and records the last lsn it holds. While it is open the
+ *          recorded lsn is -1, forced to disk when the ledger is opened, because pages written back since then may hold
+ *          any mix of updates. A ledger closed cleanly is continued by replaying the log after its lsn; one that was
+ *          not is rebuilt from the latest snapshot and the log.
+ *
+ *          The ledger is a single mapping, and a mapping is indexed by int, so it holds at most MAX_CAPACITY records
+ *          (2^25, 1 GiB of records) and MAX_ACCOUNTS accounts (2^24) at its load factor. Creating an account beyond
+ *          that, or opening a ledger for more, fails with an error naming the limit.
+ *
+ *          File layout (native byte order):
+ *              header  MAGIC int, VERSION int, capacity int, size int, last applied clock long, lsn held when last
+ *                      closed long (-1 while open), padding to 64 bytes
+ *              records key long (0 = empty, otherwise OCCUPIED | uid), balance long, last applied clock long, unused long
+ * @created 2024-03-30
+ * @author Jamison Grudem (grude013)
+ *
+ * @grace_days Using 2 grace days
+ */
+
+package src;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.StampedLock;
+
+public class MappedLedger implements AccountStore {
+
+    // Identifies a ledger file, the characters 'LDGR'
+    public static final int MAGIC = 0x4c444752;
+    // Ledger file format version
+    public static final int VERSION = 1;
+
+    // Atomic access to the ints and longs of the mapping
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+    private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    // Header fields
+    private static final int HEADER_BYTES = 64;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int SIZE_OFFSET = 12;
+    private static final int APPLIED_OFFSET = 16;
+    private static final int LSN_OFFSET = 24;
+    // Record fields
+    private static final int RECORD_BYTES = 32;
+    private static final int BALANCE_OFFSET = 8;
+    private static final int CLOCK_OFFSET = 16;
+    // Set in the key of every occupied record, so uid 0 is distinct from an empty record
+    private static final long OCCUPIED = 1L << 32;
+    // The ledger is grown once it is more than half full
+    private static final int MAX_LOAD_PERCENT = 50;
+    // Largest number of records a single mapping can hold
+    private static final int MAX_CAPACITY = Integer.highestOneBit((Integer.MAX_VALUE - HEADER_BYTES) / RECORD_BYTES);
+    // Largest number of accounts the ledger holds, MAX_CAPACITY records at the load factor
+    public static final int MAX_ACCOUNTS = (int) ((long) MAX_CAPACITY * MAX_LOAD_PERCENT / 100);
+
+    // Path of the ledger file
+    private Path path;
+    // The current mapping, replaced when the ledger is resized
+    private volatile MappedByteBuffer map;
+    // Number of records in the current mapping
+    private volatile int capacity;
+    // Held shared by operations and exclusively by a resize
+    private StampedLock resizeLock = new StampedLock();
+    // The write-ahead log lsn the ledger held when it was last closed, -1 if it was not closed cleanly
+    private long closedLsn;
+    // The write-ahead log lsn to record when the ledger is closed
+    private volatile long lsn = -1;
+
+    /**
+     * Open a ledger file, creating it if it does not exist
+     * @param path The path of the ledger file
+     * @param capacity The expected number of accounts, used when the file is created, at most MAX_ACCOUNTS
+     * @param logged Whether a write-ahead log is kept: a ledger that was not closed cleanly is then discarded and
+     *          created empty, to be rebuilt from the snapshot and the log
+     */
+    public MappedLedger(Path path, int capacity, boolean logged) throws IOException {
+        if(capacity > MAX_ACCOUNTS)
+            throw new IllegalArgumentException("Ledger " + path + " holds at most " + MAX_ACCOUNTS + " accounts, " + capacity
+                + " were asked for");
+        this.path = path;
+        if(path.getParent() != null)
+            Files.createDirectories(path.getParent());
+        if(Files.exists(path) && Files.size(path) > 0 && !(logged && readClosedLsn(path) < 0)) {
+            this.map = open(path, -1);
+            if((int) INT.get(map, 0) != MAGIC)
+                throw new IOException(path + " is not an account ledger");
+            int version = (int) INT.get(map, 4);
+            if(version != VERSION)
+                throw new IOException(path + " has unsupported version " + version);
+            this.capacity = (int) INT.get(map, CAPACITY_OFFSET);
+            this.closedLsn = (long) LONG.get(map, LSN_OFFSET);
+        }
+        else {
+            long records = Long.highestOneBit(Math.max(16, (long) capacity * 100 / MAX_LOAD_PERCENT) - 1) << 1;
+            this.map = create(path, (int) Math.min(records, MAX_CAPACITY));
+            this.capacity = (int) INT.get(map, CAPACITY_OFFSET);
+            this.closedLsn = -1;
+        }
+        // Until it is closed again, the file no longer matches any lsn
+        LONG.setVolatile(map, LSN_OFFSET, -1L);
+        map.force(0, HEADER_BYTES);
+    }
+
+    /**
+     * Read the lsn a ledger file recorded when it was last closed, without mapping it
+     * @param path The path of the file
+     * @return [long] The lsn, -1 if it was not closed cleanly or is too short to be a ledger
+     */
+    private static long readClosedLsn(Path path) throws IOException {
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.nativeOrder());
+            channel.read(header, 0);
+            return header.position() < HEADER_BYTES ? -1 : header.getLong(LSN_OFFSET);
+        }
+    }
+
+    /**
+     * Map an existing ledger file
+     * @param path The path of the file
+     * @param records The number of records to map, or -1 to map the whole file
+     * @return [MappedByteBuffer] The mapping
+     */
+    private static MappedByteBuffer open(Path path, int records) throws IOException {
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long bytes = records < 0 ? channel.size() : HEADER_BYTES + (long) records * RECORD_BYTES;
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+        }
+    }
+
+    /**
+     * Create an empty ledger file and map it
+     * @param path The path of the file
+     * @param records The number of records, a power of two
+     * @return [MappedByteBuffer] The mapping
+     */
+    private static MappedByteBuffer create(Path path, int records) throws IOException {
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            // The file is sparse, unused records read back as zero (empty)
+            MappedByteBuffer m = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + (long) records * RECORD_BYTES);
+            INT.set(m, 4, VERSION);
+            INT.set(m, CAPACITY_OFFSET, records);
+            INT.set(m, SIZE_OFFSET, 0);
+            LONG.set(m, APPLIED_OFFSET, 0L);
+            LONG.set(m, LSN_OFFSET, -1L);
+            // Written last so a partially created file is never mistaken for a ledger
+            INT.setVolatile(m, 0, MAGIC);
+            return m;
+        }
+    }
+
+    /**
+     * Spread the bits of a uid so contiguous uids do not cluster
+     * @param uid The account id
+     * @return [int] The hash of the uid
+     */
+    private static int hash(int uid) {
+        int h = uid * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Get the key stored for an account
+     * @param uid The account id
+     * @return [long] The key
+     */
+    private static long key(int uid) {
+        return OCCUPIED | (uid & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Get the byte offset of a record
+     * @param index The record index
+     * @return [int] The offset of the record in the mapping
+     */
+    private static int offset(int index) {
+        return HEADER_BYTES + index * RECORD_BYTES;
+    }
+
+    /**
+     * Find the offset of the record of an account
+     * @param m The mapping to search
+     * @param records The number of records in the mapping
+     * @param uid The account id
+     * @return [int] The offset of the record, or -1 if the account does not exist
+     */
+    private static int find(MappedByteBuffer m, int records, int uid) {
+        long key = key(uid);
+        int mask = records - 1;
+        int i = hash(uid) & mask;
+        while(true) {
+            long k = (long) LONG.getVolatile(m, offset(i));
+            if(k == key)
+                return offset(i);
+            if(k == 0)
+                return -1;
+            i = (i + 1) & mask;
+        }
+    }
+
+    /**
+     * Find the offset of the record of an account, throwing if it does not exist
+     * @param uid The account id
+     * @return [int] The offset of the record
+     */
+    private int record(int uid) {
+        int off = find(map, capacity, uid);
+        if(off < 0)
+            throw new IllegalArgumentException("Account " + uid + " not found");
+        return off;
+    }
+
+    /**
+     * Create an account with a balance of 0, replacing any existing account with the same uid
+     * @param uid The account id
+     * @throws IllegalStateException If the ledger already holds MAX_ACCOUNTS accounts
+     */
+    public void create(int uid) {
+        long key = key(uid);
+        boolean added = false;
+        long stamp = resizeLock.readLock();
+        try {
+            MappedByteBuffer m = map;
+            int mask = capacity - 1;
+            int i = hash(uid) & mask;
+            while(true) {
+                int off = offset(i);
+                long k = (long) LONG.getVolatile(m, off);
+                // Claim an empty record - records are never freed, so its fields are still 0
+                if(k == 0) {
+                    if((int) INT.get(m, SIZE_OFFSET) >= MAX_ACCOUNTS)
+                        throw new IllegalStateException("Ledger " + path + " is full, it holds at most " + MAX_ACCOUNTS + " accounts");
+                    if(LONG.compareAndSet(m, off, 0L, key)) {
+                        added = true;
+                        break;
+                    }
+                    // Lost the record to another insert, look at it again
+                    continue;
+                }
+                if(k == key) {
+                    LONG.setVolatile(m, off + BALANCE_OFFSET, 0L);
+                    LONG.setVolatile(m, off + CLOCK_OFFSET, 0L);
+                    break;
+                }
+                i = (i + 1) & mask;
+            }
+        } finally {
+            resizeLock.unlockRead(stamp);
+        }
+        if(added && ((int) INT.getAndAdd(map, SIZE_OFFSET, 1) + 1) * 100L > (long) capacity * MAX_LOAD_PERCENT)
+            resize();
+    }
+
+    /**
+     * Double the number of records once the ledger is more than half full. The records are rehashed into a new
+     * file which then replaces the old one, so the ledger on disk is always complete.
+     */
+    private void resize() {
+        long stamp = resizeLock.writeLock();
+        try {
+            MappedByteBuffer old = map;
+            int records = capacity;
+            // Another thread may have resized already
+            if((int) INT.get(old, SIZE_OFFSET) * 100L <= (long) records * MAX_LOAD_PERCENT)
+                return;
+            // Creates stop at MAX_ACCOUNTS, the load factor of the largest mapping
+            if(records >= MAX_CAPACITY)
+                return;
+            Path grownPath = path.resolveSibling(path.getFileName() + ".grow");
+            MappedByteBuffer grown = create(grownPath, records * 2);
+            int mask = records * 2 - 1;
+            for(int i = 0; i < records; i++) {
+                int off = offset(i);
+                long k = (long) LONG.get(old, off);
+                if(k == 0)
+                    continue;
+                int j = hash((int) k) & mask;
+                while((long) LONG.get(grown, offset(j)) != 0) {
+                    j = (j + 1) & mask;
+                }
+                LONG.set(grown, offset(j), k);
+                LONG.set(grown, offset(j) + BALANCE_OFFSET, (long) LONG.get(old, off + BALANCE_OFFSET));
+                LONG.set(grown, offset(j) + CLOCK_OFFSET, (long) LONG.get(old, off + CLOCK_OFFSET));
+            }
+            INT.set(grown, SIZE_OFFSET, (int) INT.get(old, SIZE_OFFSET));
+            LONG.set(grown, APPLIED_OFFSET, (long) LONG.get(old, APPLIED_OFFSET));
+            grown.force();
+            Files.move(grownPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            this.map = grown;
+            this.capacity = records * 2;
+        } catch(IOException e) {
+            throw new UncheckedIOException("Error resizing ledger " + path, e);
+        } finally {
+            resizeLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Check whether an account exists
+     * @param uid The account id
+     * @return [boolean] True if the account exists
+     */
+    public boolean contains(int uid) {
+        long stamp = resizeLock.readLock();
+        try {
+            return find(map, capacity, uid) >= 0;
+        } finally {
+            resizeLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Get the balance of an account
+     * @param uid The account id
+     * @return [long] The balance
+     */
+    public long get(int uid) {
+        long stamp = resizeLock.readLock();
+        try {
+            return (long) LONG.getVolatile(map, record(uid) + BALANCE_OFFSET);
+        } finally {
+            resizeLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Atomically add to the balance of an account
+     * @param uid The account id
+     * @param delta The amount to add
+     * @return [long] The new balance
+     */
+    public long addAndGet(int uid, long delta) {
+        long stamp = resizeLock.readLock();
+        try {
+            return (long) LONG.getAndAdd(map, record(uid) + BALANCE_OFFSET, delta) + delta;
+        } finally {
+            resizeLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Atomically withdraw from an account if it has enough money
+     * @param uid The account id
+     * @param amount The amount to withdraw
+     * @return [boolean] True if the amount was withdrawn, false if it would overdraw the account
+     */
+    public boolean tryWithdraw(int uid, long amount) {
+        long stamp = resizeLock.readLock();
+        try {
+            MappedByteBuffer m = map;
+            int off = record(uid) + BALANCE_OFFSET;
+            while(true) {
+                long current = (long) LONG.getVolatile(m, off);
+                if(current < amount)
+                    return false;
+                if(LONG.compareAndSet(m, off, current, current - amount))
+                    return true;
+            }
+        } finally {
+            resizeLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Record the clock of the last request applied to an account
+     * @param uid The account id
+     * @param clock The packed lamport clock of the request
+     */
+    public void markApplied(int uid, long clock) {
+        long stamp = resizeLock.readLock();
+        try {
+            MappedByteBuffer m = map;
+            maxOf(m, record(uid) + CLOCK_OFFSET, clock);
+            maxOf(m, APPLIED_OFFSET, clock);
+        } finally {
+            resizeLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Atomically raise a long in the mapping to at least a value
+     * @param m The mapping
+     * @param off The offset of the long
+     * @param value The value
+     */
+    private static void maxOf(MappedByteBuffer m, int off, long value) {
+        long current = (long) LONG.getVolatile(m, off);
+        while(current < value && !LONG.compareAndSet(m, off, current, value)) {
+            current = (long) LONG.getVolatile(m, off);
+        }
+    }
+
+    /**
+     * Get the clock of the last request applied to the ledger
+     * @return [long] The highest packed lamport clock recorded, 0 if none
+     */
+    public long lastApplied() {
+        return (long) LONG.getVolatile(map, APPLIED_OFFSET);
+    }
+
+    /**
+     * Get the number of accounts
+     * @return [int] The number of accounts
+     */
+    public int size() {
+        return (int) INT.getVolatile(map, SIZE_OFFSET);
+    }
+
+    /**
+     * Visit every account with its current balance, in ledger order
+     * @param visitor Receives each account
+     */
+    public void forEach(Visitor visitor) {
+        long stamp = resizeLock.readLock();
+        try {
+            MappedByteBuffer m = map;
+            for(int i = 0; i < capacity; i++) {
+                long k = (long) LONG.getVolatile(m, offset(i));
+                if(k != 0)
+                    visitor.visit((int) k, (long) LONG.getVolatile(m, offset(i) + BALANCE_OFFSET));
+            }
+        } finally {
+            resizeLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Record the last write-ahead log lsn applied to the ledger, saved when it is closed
+     * @param lsn The lsn
+     */
+    public void setLsn(long lsn) {
+        this.lsn = lsn;
+    }
+
+    /**
+     * Get the write-ahead log lsn the ledger held when it was last closed
+     * @return [long] The lsn, -1 if it was not closed cleanly or never held a logged request
+     */
+    public long getClosedLsn() {
+        return closedLsn;
+    }
+
+    /**
+     * Write all changes to the ledger file, then record the lsn it holds once they are on disk
+     */
+    public void close() {
+        long stamp = resizeLock.writeLock();
+        try {
+            map.force();
+            LONG.setVolatile(map, LSN_OFFSET, lsn);
+            map.force(0, HEADER_BYTES);
+        } finally {
+            resizeLock.unlockWrite(stamp);
+        }
+    }
+}
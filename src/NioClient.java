@@ -0,0 +1,291 @@
+/**
+ * @file src/NioClient.java
+ * @brief Client side of the NIO transport - an IBankServer that makes its calls over one persistent socket channel to
+ *          a NioServer instead of through RMI. Calls from any number of threads are written to the channel as they are
+ *          made, each tagged with a call id, and a reader thread hands each reply to the thread waiting for it. Many
+ *          calls are therefore in flight on one connection at once.
+ * @created 2024-03-30
+ * @author Jamison Grudem (grude013)
+ *
+ * @grace_days Using 2 grace days
+ */
+
+package src;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class NioClient implements IBankServer {
+
+    // Address of the server, used in error messages
+    private String address;
+    // The connection
+    private SocketChannel channel;
+    // Serializes writes so frames are never interleaved. A lock rather than a monitor, so a virtual thread blocked
+    // writing does not pin its carrier thread
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // Id of the next call
+    private AtomicLong nextCall = new AtomicLong(0);
+    // Calls waiting for their reply, by call id
+    private ConcurrentHashMap<Long, CompletableFuture<byte[]>> pending = new ConcurrentHashMap<Long, CompletableFuture<byte[]>>();
+    // Set once the connection has failed
+    private volatile IOException failure;
+    // ms a call waits for its reply before failing, 0 waits forever
+    private long callTimeout;
+
+    /**
+     * Connect to a NioServer
+     * @param host The hostname of the server
+     * @param port The port of the server
+     * @param callTimeout ms a call waits for its reply before failing, 0 waits forever
+     */
+    public NioClient(String host, int port, long callTimeout) throws IOException {
+        this.address = host + ":" + port;
+        this.callTimeout = callTimeout;
+        this.channel = SocketChannel.open(new InetSocketAddress(host, port));
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        Thread reader = new Thread(this::readReplies, "nio-client-" + address);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Reader thread: read reply frames and complete the calls waiting for them
+     */
+    private void readReplies() {
+        ByteBuffer length = ByteBuffer.allocate(4);
+        try {
+            while(true) {
+                length.clear();
+                readFully(length);
+                int n = length.getInt(0);
+                if(n < 8 || n > WireCodec.MAX_FRAME)
+                    throw new IOException("Bad frame length " + n);
+                ByteBuffer frame = ByteBuffer.allocate(n);
+                readFully(frame);
+                CompletableFuture<byte[]> call = pending.remove(frame.getLong(0));
+                if(call != null)
+                    call.complete(frame.array());
+            }
+        } catch(IOException e) {
+            // Fail every call still waiting, and any made from now on
+            failure = e;
+            for(CompletableFuture<byte[]> call : pending.values()) {
+                call.completeExceptionally(e);
+            }
+            pending.clear();
+        }
+    }
+
+    /**
+     * Read until a buffer is full
+     * @param buf The buffer
+     */
+    private void readFully(ByteBuffer buf) throws IOException {
+        while(buf.hasRemaining()) {
+            if(channel.read(buf) < 0)
+                throw new IOException("Connection to " + address + " closed");
+        }
+    }
+
+    /**
+     * Start a call frame
+     * @param method The method being called
+     * @return [WireCodec.FrameOutput] The frame, ready for the arguments
+     */
+    private WireCodec.FrameOutput start(byte method) throws IOException {
+        WireCodec.FrameOutput out = new WireCodec.FrameOutput(nextCall.incrementAndGet());
+        out.writeByte(method);
+        return out;
+    }
+
+    /**
+     * Send a call and wait for its reply, at most `callTimeout` ms. A call that times out may still be run by the
+     * server, its late reply is dropped.
+     * @param out The call frame
+     * @return [WireCodec.FrameInput] The reply, positioned at the result
+     */
+    private WireCodec.FrameInput call(WireCodec.FrameOutput out) throws RemoteException {
+        ByteBuffer frame = out.toFrame();
+        long callId = frame.getLong(4);
+        CompletableFuture<byte[]> reply = new CompletableFuture<byte[]>();
+        pending.put(callId, reply);
+        try {
+            if(failure != null)
+                throw failure;
+            writeLock.lock();
+            try {
+                while(frame.hasRemaining()) {
+                    channel.write(frame);
+                }
+            } finally {
+                writeLock.unlock();
+            }
+            WireCodec.FrameInput in = new WireCodec.FrameInput(callTimeout > 0 ? reply.get(callTimeout, TimeUnit.MILLISECONDS) : reply.get());
+            in.readLong();
+            if(in.readByte() == WireCodec.ERROR)
+                throw new RemoteException("[" + address + "] " + in.readUTF());
+            return in;
+        } catch(IOException e) {
+            pending.remove(callId);
+            if(e instanceof RemoteException)
+                throw (RemoteException) e;
+            throw new RemoteException("Call to " + address + " failed", e);
+        } catch(TimeoutException e) {
+            pending.remove(callId);
+            throw new RemoteException("Call to " + address + " got no reply within " + callTimeout + " ms", e);
+        } catch(InterruptedException e) {
+            pending.remove(callId);
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted during call to " + address, e);
+        } catch(ExecutionException e) {
+            pending.remove(callId);
+            throw new RemoteException("Call to " + address + " failed", e.getCause());
+        }
+    }
+
+    /**
+     * Get the id of the server
+     * @return [int] The server id
+     */
+    public int getId() throws RemoteException {
+        try {
+            return call(start(WireCodec.GET_ID)).readInt();
+        } catch(RemoteException e) {
+            throw e;
+        } catch(IOException e) {
+            throw new RemoteException("Call to " + address + " failed", e);
+        }
+    }
+
+    /**
+     * Call a method that takes a request and returns a response
+     * @param method The method
+     * @param req The request
+     * @return [Response] The response
+     */
+    private Response requestCall(byte method, Request req) throws RemoteException {
+        try {
+            WireCodec.FrameOutput out = start(method);
+            WireCodec.writeRequest(out, req);
+            return WireCodec.readResponse(call(out));
+        } catch(RemoteException e) {
+            throw e;
+        } catch(IOException e) {
+            throw new RemoteException("Call to " + address + " failed", e);
+        }
+    }
+
+    /**
+     * Send a client request to the server
+     * @param req The request
+     * @return [Response] The response
+     */
+    public Response clientRequest(Request req) throws RemoteException {
+        return requestCall(WireCodec.CLIENT_REQUEST, req);
+    }
+
+    /**
+     * Send a request from a peer server to the server
+     * @param req The request
+     * @return [Response] The response
+     */
+    public Response serverRequest(Request req) throws RemoteException {
+        return requestCall(WireCodec.SERVER_REQUEST, req);
+    }
+
+    /**
+     * Send a batch of requests from a peer server to the server
+     * @param batch The requests
+     * @return [Response] The response
+     */
+    public Response serverBatchRequest(Request[] batch) throws RemoteException {
+        try {
+            WireCodec.FrameOutput out = start(WireCodec.SERVER_BATCH_REQUEST);
+            out.writeInt(batch.length);
+            for(Request r : batch) {
+                WireCodec.writeRequest(out, r);
+            }
+            return WireCodec.readResponse(call(out));
+        } catch(RemoteException e) {
+            throw e;
+        } catch(IOException e) {
+            throw new RemoteException("Call to " + address + " failed", e);
+        }
+    }
+
+    /**
+     * Ask the server to execute a request
+     * @param req The request
+     * @return [Response] The response
+     */
+    public Response execute(Request req) throws RemoteException {
+        return requestCall(WireCodec.EXECUTE, req);
+    }
+
+    /**
+     * Ask the sequencer to number a request and broadcast it
+     * @param req The request
+     * @return [Response] The response
+     */
+    public Response sequence(Request req) throws RemoteException {
+        return requestCall(WireCodec.SEQUENCE, req);
+    }
+
+    /**
+     * Send a sequenced request to the server
+     * @param req The request
+     * @return [Response] The response
+     */
+    public Response deliver(Request req) throws RemoteException {
+        return requestCall(WireCodec.DELIVER, req);
+    }
+
+    /**
+     * Get the recently sequenced requests after a stamp
+     * @param after The stamp, exclusive
+     * @param epoch The caller's sequencer epoch
+     * @return [Request] A batch holding the requests
+     */
+    public Request fetch(long after, long epoch) throws RemoteException {
+        try {
+            WireCodec.FrameOutput out = start(WireCodec.FETCH);
+            out.writeLong(after);
+            out.writeLong(epoch);
+            return WireCodec.readRequest(call(out));
+        } catch(RemoteException e) {
+            throw e;
+        } catch(IOException e) {
+            throw new RemoteException("Call to " + address + " failed", e);
+        }
+    }
+
+    /**
+     * Send a peer's safe clock to the server
+     * @param serverId The id of the peer
+     * @param clock The packed safe clock
+     */
+    public void acknowledge(int serverId, long clock) throws RemoteException {
+        try {
+            WireCodec.FrameOutput out = start(WireCodec.ACKNOWLEDGE);
+            out.writeInt(serverId);
+            out.writeLong(clock);
+            call(out);
+        } catch(RemoteException e) {
+            throw e;
+        } catch(IOException e) {
+            throw new RemoteException("Call to " + address + " failed", e);
+        }
+    }
+}
@@ -0,0 +1,298 @@
+/**
+ * @file src/NioServer.java
+ * @brief Server side of the NIO transport, used instead of RMI with <transport>nio</transport>. A single selector
+ *          thread accepts connections, reads length-prefixed call frames from persistent socket channels and writes
+ *          the replies back. Calls can block (a request waits for its turn in the queue), so each call runs on a
+ *          worker thread and its reply is handed back to the selector thread to write. Clients keep many calls in
+ *          flight on one connection and match the replies by call id.
+ * @created 2024-03-30
+ * @author Jamison Grudem (grude013)
+ *
+ * @grace_days Using 2 grace days
+ */
+
+package src;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+public class NioServer {
+
+    /**
+     * State of one client or peer connection
+     */
+    private static class Connection {
+        // The socket
+        SocketChannel channel;
+        // Bytes read that do not yet form a complete frame
+        ByteBuffer readBuffer = ByteBuffer.allocate(1 << 16);
+        // Replies waiting to be written, in order
+        ConcurrentLinkedQueue<ByteBuffer> replies = new ConcurrentLinkedQueue<ByteBuffer>();
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    // The server the calls are made on
+    private IBankServer target;
+    // The selector and listening socket
+    private Selector selector;
+    private ServerSocketChannel listener;
+    // Runs the calls, one thread per call in flight
+    private ExecutorService workers;
+    // Connections with replies ready to write, handed from the workers to the selector thread
+    private ConcurrentLinkedQueue<Connection> ready = new ConcurrentLinkedQueue<Connection>();
+
+    /**
+     * Initialize a new NioServer
+     * @param target The server the calls are made on
+     * @param port The port to listen on
+     * @param virtual Whether the calls run on virtual threads
+     */
+    public NioServer(IBankServer target, int port, boolean virtual) throws IOException {
+        this.target = target;
+        this.selector = Selector.open();
+        this.listener = ServerSocketChannel.open();
+        listener.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        listener.bind(new InetSocketAddress(port));
+        listener.configureBlocking(false);
+        listener.register(selector, SelectionKey.OP_ACCEPT);
+        this.workers = Threads.perTask("nio-worker", virtual);
+    }
+
+    /**
+     * Start the selector thread
+     */
+    public void start() {
+        Thread t = new Thread(this::run, "nio-selector");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Stop accepting calls and close every connection
+     */
+    public void close() {
+        try {
+            for(SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+        } catch(IOException e) {
+            System.out.println("Error closing NIO server: " + e);
+        }
+        workers.shutdownNow();
+    }
+
+    /**
+     * Selector loop: accept connections, read call frames, and write replies
+     */
+    private void run() {
+        try {
+            while(selector.isOpen()) {
+                selector.select();
+                // Write the replies the workers have finished
+                Connection c;
+                while((c = ready.poll()) != null) {
+                    try {
+                        flush(c);
+                    } catch(IOException e) {
+                        c.channel.close();
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while(keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if(!key.isValid())
+                            continue;
+                        if(key.isAcceptable())
+                            accept();
+                        else {
+                            if(key.isReadable())
+                                read(key);
+                            if(key.isValid() && key.isWritable())
+                                flush((Connection) key.attachment());
+                        }
+                    } catch(IOException e) {
+                        // The other side went away
+                        key.cancel();
+                        key.channel().close();
+                    }
+                }
+            }
+        } catch(IOException | ClosedSelectorException e) {
+            if(selector.isOpen())
+                System.out.println("NIO server stopped: " + e);
+        }
+    }
+
+    /**
+     * Accept a new connection
+     */
+    private void accept() throws IOException {
+        SocketChannel channel = listener.accept();
+        if(channel == null)
+            return;
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        Connection c = new Connection(channel);
+        channel.register(selector, SelectionKey.OP_READ, c);
+    }
+
+    /**
+     * Read from a connection and start a call for every complete frame
+     * @param key The selection key of the connection
+     */
+    private void read(SelectionKey key) throws IOException {
+        Connection c = (Connection) key.attachment();
+        if(c.channel.read(c.readBuffer) < 0)
+            throw new IOException("Connection closed");
+        ByteBuffer buf = c.readBuffer;
+        buf.flip();
+        while(buf.remaining() >= 4) {
+            int length = buf.getInt(buf.position());
+            if(length < 0 || length > WireCodec.MAX_FRAME)
+                throw new IOException("Bad frame length " + length);
+            if(buf.remaining() < 4 + length) {
+                // Make room for a frame larger than the buffer
+                if(4 + length > buf.capacity()) {
+                    ByteBuffer grown = ByteBuffer.allocate(4 + length);
+                    grown.put(buf);
+                    c.readBuffer = grown;
+                    return;
+                }
+                break;
+            }
+            buf.getInt();
+            byte[] frame = new byte[length];
+            buf.get(frame);
+            workers.execute(() -> call(c, frame));
+        }
+        buf.compact();
+    }
+
+    /**
+     * Run a call and queue its reply. A call whose arguments cannot be decoded is answered with an error like a call
+     * that fails; one without a call id cannot be answered, so the connection is closed and the client fails every
+     * call it has in flight on it.
+     * @param c The connection the call came from
+     * @param frame The call frame, without its length
+     */
+    private void call(Connection c, byte[] frame) {
+        WireCodec.FrameInput in = new WireCodec.FrameInput(frame);
+        long callId;
+        try {
+            callId = in.readLong();
+        } catch(IOException e) {
+            System.out.println("Error decoding call, closing the connection: " + e);
+            try {
+                c.channel.close();
+            } catch(IOException ignored) {
+            }
+            selector.wakeup();
+            return;
+        }
+        ByteBuffer reply;
+        try {
+            byte method = in.readByte();
+            WireCodec.FrameOutput out = new WireCodec.FrameOutput(callId);
+            out.writeByte(WireCodec.OK);
+            switch(method) {
+                case WireCodec.GET_ID:
+                    out.writeInt(target.getId());
+                    break;
+                case WireCodec.CLIENT_REQUEST:
+                    WireCodec.writeResponse(out, target.clientRequest(WireCodec.readRequest(in)));
+                    break;
+                case WireCodec.SERVER_REQUEST:
+                    WireCodec.writeResponse(out, target.serverRequest(WireCodec.readRequest(in)));
+                    break;
+                case WireCodec.SERVER_BATCH_REQUEST:
+                    Request[] batch = new Request[in.readInt()];
+                    for(int i = 0; i < batch.length; i++) {
+                        batch[i] = WireCodec.readRequest(in);
+                    }
+                    WireCodec.writeResponse(out, target.serverBatchRequest(batch));
+                    break;
+                case WireCodec.EXECUTE:
+                    WireCodec.writeResponse(out, target.execute(WireCodec.readRequest(in)));
+                    break;
+                case WireCodec.SEQUENCE:
+                    WireCodec.writeResponse(out, target.sequence(WireCodec.readRequest(in)));
+                    break;
+                case WireCodec.DELIVER:
+                    WireCodec.writeResponse(out, target.deliver(WireCodec.readRequest(in)));
+                    break;
+                case WireCodec.FETCH:
+                    WireCodec.writeRequest(out, target.fetch(in.readLong(), in.readLong()));
+                    break;
+                case WireCodec.ACKNOWLEDGE:
+                    target.acknowledge(in.readInt(), in.readLong());
+                    break;
+                default:
+                    throw new RemoteException("Unknown method " + method);
+            }
+            reply = out.toFrame();
+        } catch(IOException | RuntimeException e) {
+            // Arguments that could not be decoded are reported like a failed call
+            if(e instanceof IOException && !(e instanceof RemoteException))
+                System.out.println("Error decoding call " + callId + ": " + e);
+            reply = error(callId, e);
+        }
+        c.replies.add(reply);
+        ready.add(c);
+        selector.wakeup();
+    }
+
+    /**
+     * Encode the reply to a failed call
+     * @param callId The call id
+     * @param e Why the call failed
+     * @return [ByteBuffer] The ERROR reply frame
+     */
+    private static ByteBuffer error(long callId, Exception e) {
+        try {
+            WireCodec.FrameOutput out = new WireCodec.FrameOutput(callId);
+            out.writeByte(WireCodec.ERROR);
+            out.writeUTF(String.valueOf(e));
+            return out.toFrame();
+        } catch(IOException unreachable) {
+            // Frames are written to memory
+            throw new IllegalStateException(unreachable);
+        }
+    }
+
+    /**
+     * Write as many queued replies as the connection accepts, waiting for it to become writable for the rest
+     * @param c The connection
+     */
+    private void flush(Connection c) throws IOException {
+        SelectionKey key = c.channel.keyFor(selector);
+        if(key == null || !key.isValid())
+            return;
+        ByteBuffer reply;
+        while((reply = c.replies.peek()) != null) {
+            c.channel.write(reply);
+            if(reply.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            c.replies.poll();
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+}
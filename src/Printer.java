@@ -12,6 +12,11 @@ package src;
 import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 public class Printer {
 
@@ -26,6 +31,58 @@ public class Printer {
         SERVER
     }
 
+    // Supported logging modes - write on the calling thread, or hand off to a background writer
+    public static enum Mode {
+        SYNC,
+        ASYNC
+    }
+
+    // What to do with a log line when the async buffer is full
+    public static enum FullPolicy {
+        BLOCK,  // Wait for the writer to make room
+        DROP,   // Drop the line
+        SAMPLE  // Keep one in every `sampleRate` lines, drop the rest
+    }
+
+    /**
+     * A log line waiting to be written by the background writer
+     */
+    private static class Event {
+        // The '|' delimited log line
+        String line;
+        // The file and identifier to write to
+        File file;
+        String id;
+        // The color of the HTML row
+        String color;
+        // Set for closing events, counted down once the file is closed
+        CountDownLatch done;
+
+        Event(String line, File file, String id, String color) {
+            this.line = line;
+            this.file = file;
+            this.id = id;
+            this.color = color;
+        }
+    }
+
+    // Closing tags written at the end of an HTML log
+    private static final String HTML_FOOTER = "</table>\n<button onclick='document.body.scrollTop = 0;'>Scroll To Top</button></body>\n</html>\n";
+
+    // The current logging mode
+    static Mode mode = Mode.SYNC;
+    // Policy applied when the async buffer is full
+    static FullPolicy fullPolicy = FullPolicy.BLOCK;
+    // Buffered events waiting for the background writer
+    static LogRingBuffer<Event> buffer;
+    // How often (ms) the background writer flushes its files
+    static long flushInterval = 200;
+    // When sampling, one in every `sampleRate` overflowing lines is kept
+    static int sampleRate = 10;
+    // Number of lines that did not fit in the buffer, and how many of those were dropped
+    static AtomicLong overflowed = new AtomicLong(0);
+    static AtomicLong dropped = new AtomicLong(0);
+
     /**
      * Resolves the actual filename from a File enum value
      * @return [String] The filename
@@ -39,6 +96,37 @@ public class Printer {
             return "";
     }
 
+    /**
+     * Configure the logging mode from the configuration file, starting the background writer in async mode
+     * @param config The configuration
+     */
+    public static synchronized void configure(Config config) {
+        if(!config.getString("logMode", "sync").equalsIgnoreCase("async") || mode == Mode.ASYNC)
+            return;
+        try {
+            fullPolicy = FullPolicy.valueOf(config.getString("logFullPolicy", "block").toUpperCase());
+        } catch(IllegalArgumentException e) {
+            System.out.println("Invalid value for <logFullPolicy>, using default block");
+        }
+        flushInterval = config.getLong("logFlushInterval", flushInterval);
+        sampleRate = Math.max(1, config.getInt("logSampleRate", sampleRate));
+        startAsync(config.getInt("logBufferSize", 8192));
+    }
+
+    /**
+     * Switch to async mode and start the background writer
+     * @param bufferSize The number of log lines that can be buffered
+     */
+    public static synchronized void startAsync(int bufferSize) {
+        if(mode == Mode.ASYNC)
+            return;
+        buffer = new LogRingBuffer<Event>(bufferSize);
+        Thread writerThread = new Thread(Printer::runWriter, "log-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        mode = Mode.ASYNC;
+    }
+
     /**
      * Initializes the writer and buffered writer
      */
@@ -53,30 +141,8 @@ public class Printer {
      * @param file The enum value of the file to write to
      * @param id An optional identifier for the file
      */
-    public static synchronized void print(String arg, File file, String id) {
-        try {
-            // Write to the .log file as is
-            String filename = "../log/" + getFilenameFromFile(file) + id + ".log";
-            writer = new FileWriter(filename, true);
-            bwriter = new BufferedWriter(writer);
-            bwriter.write(arg + "\n");
-            bwriter.flush();
-
-            // Write to the HTML file with a table row delimited by '|'
-            String htmlFilename = "../log/html/" + getFilenameFromFile(file) + id + ".html";
-            FileWriter htmlWriter = new FileWriter(htmlFilename, true);
-            BufferedWriter htmlBwriter = new BufferedWriter(htmlWriter);
-            String[] args = arg.split("\\|");
-            htmlBwriter.write("<tr>\n");
-            for(String a : args) {
-                htmlBwriter.write("<td style='padding: 0 5px; border: 1px solid black;'>" + a + "</td>\n");
-            }
-            htmlBwriter.write("</tr>\n");
-            htmlBwriter.flush();
-            htmlBwriter.close();
-        } catch(Exception e) {
-            e.printStackTrace();
-        }
+    public static void print(String arg, File file, String id) {
+        print(arg, file, id, null);
     }   
 
     /**
@@ -86,29 +152,124 @@ public class Printer {
      * @param id An optional identifier for the file
      * @param htmlColor The color to use for the HTML row
      */
-    public static synchronized void print(String arg, File file, String id, String htmlColor) {
-        try {
-            // System.out.println(arg);
-            String filename = "../log/" + getFilenameFromFile(file) + id + ".log";
-            writer = new FileWriter(filename, true);
-            bwriter = new BufferedWriter(writer);
-            bwriter.write(arg + "\n");
-            bwriter.flush();
-
-            // Write to the html file - with specified color
-            String htmlFilename = "../log/html/" + getFilenameFromFile(file) + id + ".html";
-            FileWriter htmlWriter = new FileWriter(htmlFilename, true);
-            BufferedWriter htmlBwriter = new BufferedWriter(htmlWriter);
-            String[] args = arg.split("\\|");
-            htmlBwriter.write("<tr style='background-color:" + htmlColor + ";'>\n");
-            for(String a : args) {
-                htmlBwriter.write("<td style='padding: 0 5px; border: 1px solid black;'>" + a.trim() + "</td>\n");
+    public static void print(String arg, File file, String id, String htmlColor) {
+        // Hand the line to the background writer
+        if(mode == Mode.ASYNC) {
+            enqueue(new Event(arg, file, id, htmlColor));
+            return;
+        }
+        synchronized(Printer.class) {
+            try {
+                // System.out.println(arg);
+                String filename = "../log/" + getFilenameFromFile(file) + id + ".log";
+                writer = new FileWriter(filename, true);
+                bwriter = new BufferedWriter(writer);
+                bwriter.write(arg + "\n");
+                bwriter.flush();
+
+                // Write to the html file - with specified color
+                String htmlFilename = "../log/html/" + getFilenameFromFile(file) + id + ".html";
+                FileWriter htmlWriter = new FileWriter(htmlFilename, true);
+                BufferedWriter htmlBwriter = new BufferedWriter(htmlWriter);
+                htmlBwriter.write(htmlRow(arg, htmlColor));
+                htmlBwriter.flush();
+                htmlBwriter.close();
+            } catch(Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Build the HTML table row for a log line, with a table cell for each '|' delimited column
+     * @param arg The log line
+     * @param htmlColor The color to use for the row, or null for no color
+     * @return [String] The HTML table row
+     */
+    private static String htmlRow(String arg, String htmlColor) {
+        StringBuilder row = new StringBuilder();
+        String[] args = arg.split("\\|");
+        row.append(htmlColor == null ? "<tr>\n" : "<tr style='background-color:" + htmlColor + ";'>\n");
+        for(String a : args) {
+            row.append("<td style='padding: 0 5px; border: 1px solid black;'>").append(htmlColor == null ? a : a.trim()).append("</td>\n");
+        }
+        row.append("</tr>\n");
+        return row.toString();
+    }
+
+    /**
+     * Add an event to the async buffer, applying the configured policy when the buffer is full
+     * @param event The event to add
+     */
+    private static void enqueue(Event event) {
+        if(buffer.offer(event))
+            return;
+        // Buffer is full - closing events are never dropped
+        FullPolicy policy = event.done != null ? FullPolicy.BLOCK : fullPolicy;
+        if(policy == FullPolicy.DROP || (policy == FullPolicy.SAMPLE && overflowed.incrementAndGet() % sampleRate != 0)) {
+            dropped.incrementAndGet();
+            return;
+        }
+        // Wait for the writer to make room
+        while(!buffer.offer(event)) {
+            LockSupport.parkNanos(100_000);
+        }
+    }
+
+    /**
+     * Background writer loop - keeps the files open, writes events in the order they were buffered and
+     * flushes every `flushInterval` ms
+     */
+    private static void runWriter() {
+        HashMap<String, BufferedWriter> logWriters = new HashMap<String, BufferedWriter>();
+        HashMap<String, BufferedWriter> htmlWriters = new HashMap<String, BufferedWriter>();
+        long lastFlush = System.currentTimeMillis();
+        while(true) {
+            Event event = buffer.poll();
+            try {
+                // Nothing to write, flush if it is time and wait for more events
+                if(event == null) {
+                    if(System.currentTimeMillis() - lastFlush >= flushInterval) {
+                        for(BufferedWriter w : logWriters.values()) w.flush();
+                        for(BufferedWriter w : htmlWriters.values()) w.flush();
+                        lastFlush = System.currentTimeMillis();
+                    }
+                    LockSupport.parkNanos(1_000_000);
+                    continue;
+                }
+                String name = getFilenameFromFile(event.file) + event.id;
+                BufferedWriter log = logWriters.get(name);
+                BufferedWriter html = htmlWriters.get(name);
+                if(log == null) {
+                    log = new BufferedWriter(new FileWriter("../log/" + name + ".log", true), 1 << 16);
+                    html = new BufferedWriter(new FileWriter("../log/html/" + name + ".html", true), 1 << 16);
+                    logWriters.put(name, log);
+                    htmlWriters.put(name, html);
+                }
+                // Closing event - record dropped lines, finish the HTML file and release the writers
+                if(event.done != null) {
+                    long lost = dropped.getAndSet(0);
+                    if(lost > 0) {
+                        String line = "LOGGER | | | " + LocalDateTime.now() + " | | DROPPED | lines=" + lost;
+                        log.write(line + "\n");
+                        html.write(htmlRow(line, "#f7b2b2"));
+                    }
+                    html.write(HTML_FOOTER);
+                    log.close();
+                    html.close();
+                    logWriters.remove(name);
+                    htmlWriters.remove(name);
+                    event.done.countDown();
+                    continue;
+                }
+                log.write(event.line);
+                log.write("\n");
+                html.write(htmlRow(event.line, event.color));
+            } catch(Exception e) {
+                e.printStackTrace();
+                if(event != null && event.done != null)
+                    event.done.countDown();
             }
-            htmlBwriter.write("</tr>\n");
-            htmlBwriter.flush();
-            htmlBwriter.close();
-        } catch(Exception e) {
-            e.printStackTrace();
         }
     }
 
@@ -162,12 +323,35 @@ public class Printer {
      * @param file The file to write to
      * @param id The identifier for the file
      */
-    public static synchronized void closeHtmlLog(File file, String id) {
+    public static void closeHtmlLog(File file, String id) {
+        // Let the background writer drain everything buffered before the footer, then wait for it
+        if(mode == Mode.ASYNC) {
+            Event close = new Event(null, file, id, null);
+            close.done = new CountDownLatch(1);
+            enqueue(close);
+            try {
+                close.done.await(10, TimeUnit.SECONDS);
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+        synchronized(Printer.class) {
+            closeHtmlLogSync(file, id);
+        }
+    }
+
+    /**
+     * Writes the closing table and body tags directly to the HTML file
+     * @param file The file to write to
+     * @param id The identifier for the file
+     */
+    private static void closeHtmlLogSync(File file, String id) {
         try {
             String htmlFilename = "../log/html/" + getFilenameFromFile(file) + id + ".html";
             FileWriter htmlWriter = new FileWriter(htmlFilename, true);
             BufferedWriter htmlBwriter = new BufferedWriter(htmlWriter);
-            htmlBwriter.write("</table>\n<button onclick='document.body.scrollTop = 0;'>Scroll To Top</button></body>\n</html>\n");
+            htmlBwriter.write(HTML_FOOTER);
             htmlBwriter.flush();
             htmlBwriter.close();
         } catch(Exception e) {
@@ -3,6 +3,8 @@
  * @brief Request class used for sending requests between clients and servers (and server-server communication).
  *          This class has been created using the builder pattern to easily add parameters to the request without
  *          having to create a constructor with many parameters or many subclasses of the Request class.
+ *          Requests are written with a hand-written Externalizable format - fixed-width fields, the lamport clock packed
+ *          into a long and the origin as a numeric origin id - instead of default Java serialization.
  * @created 2024-03-30
  * @author Jamison Grudem (grude013)
  * 
@@ -11,9 +13,12 @@
 
 package src;
 
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 
-public class Request implements Serializable {
+public class Request implements Externalizable {
 
     // Supported operations
     public static enum Type {
@@ -21,11 +26,30 @@ public class Request implements Serializable {
         GET_BALANCE,
         DEPOSIT,
         TRANSFER,
-        HALT
+        HALT,
+        BATCH,
+        // Takes up sequence numbers that no server received, in sequencer ordering
+        SKIP,
+        // The phases of a two-phase commit of a transfer between accounts in different shards, each sent to both
+        // shards: reserve the amount in the source account and hold the destination account and vote, move the
+        // amount, or release what was reserved and held
+        PREPARE,
+        COMMIT,
+        ABORT
     }
+    // Cached to avoid copying the enum values for every request read
+    private static final Type[] TYPES = Type.values();
 
-    // Stores the lamport clock
-    private LamportClock clock;
+    // Consistency of a balance read
+    public static enum Consistency {
+        // The balance as of the latest request the server has applied
+        LATEST,
+        // Wait until the server has applied the request with the read token's clock, usually the client's last write
+        READ_YOUR_WRITES
+    }
+
+    // Stores the lamport clock as a packed stamp, 0 when not set
+    private long stamp;
     // Stores the type of request
     private Type type;
     // Store the uid for the account
@@ -36,14 +60,51 @@ public class Request implements Serializable {
     private int fromUid;
     // Stores the uid of the account to transfer to
     private int toUid;
-    // Stores the origin of the request, used for loggin
-    private String origin;
+    // Stores the origin of the request as an origin id (see EventLog), used for logging
+    private int origin = EventLog.ORIGIN_NONE;
+    // Stores the requests contained in a batch, in execution order
+    private Request[] batch;
+    // Stores the consistency of a balance read
+    private Consistency consistency = Consistency.LATEST;
+    // Stores the packed clock a READ_YOUR_WRITES read waits for
+    private long readToken;
+    // Stores the id of the request in sequencer ordering, the stamp given by the server that received it, 0 if not set
+    private long id;
+    // Stores the outcome of a transfer or debit once the server that ordered it applied it: 0 if not yet applied,
+    // 1 if it succeeded, 2 if it failed. Replicas apply the same outcome when deposits are not ordered.
+    private byte outcome;
+    // Stores, for each account of the request, the stamp of the latest earlier request on that account that must be
+    // applied first, in dependency ordering; null if not set
+    private long[] dependencies;
+    // Stores the sender's safe clock in ack-driven delivery: every request the sender stamped at or below it has
+    // reached the receiver, 0 if not set
+    private long safeClock;
+    // Stores, for a PREPARE, COMMIT or ABORT, the stamp the coordinating server gave its cross-shard transfer, 0 if not
+    // set. The owning shard applies each phase of a transfer once, however many times it is sent.
+    private long parent;
+    // Stores, for a PREPARE, COMMIT or ABORT, the lowest stamp of the transfers its coordinator has not finished, 0 if
+    // not set. The coordinator never sends a transfer below it again, so shards forget those transfers.
+    private long oldestTransfer;
+    // Stores, in sequencer ordering, the epoch of the sequencer that numbered the request, 0 if not set. A server
+    // rejects requests numbered in an epoch older than the newest one it has seen.
+    private long epoch;
+    // Stores, in sequencer ordering, the lowest id of the requests the server that received this one is still
+    // ordering, 0 if not set. That server never sends a request with a lower id again, so servers forget those ids.
+    private long oldestId;
 
     /**
      * Add a lamport clock to the request
      */
     public Request withClock(LamportClock clock) {
-        this.clock = clock;
+        this.stamp = clock == null ? 0 : clock.pack();
+        return this;
+    }
+
+    /**
+     * Add a lamport clock to the request from its packed stamp
+     */
+    public Request withStamp(long stamp) {
+        this.stamp = stamp;
         return this;
     }
 
@@ -91,16 +152,65 @@ public class Request implements Serializable {
      * Set the origin of the request
      */
     public Request withOrigin(String origin) {
+        this.origin = EventLog.encodeOrigin(origin);
+        return this;
+    }
+
+    /**
+     * Set the origin of the request from its origin id
+     */
+    public Request withOriginId(int origin) {
         this.origin = origin;
         return this;
     }
 
+    /**
+     * Set the requests contained in a batch
+     */
+    public Request withBatch(Request[] batch) {
+        this.batch = batch;
+        return this;
+    }
+
+    /**
+     * Set the id of the request, used in sequencer ordering
+     */
+    public Request withId(long id) {
+        this.id = id;
+        return this;
+    }
+
+    /**
+     * Set the consistency of a balance read
+     */
+    public Request withConsistency(Consistency consistency) {
+        this.consistency = consistency;
+        return this;
+    }
+
+    /**
+     * Read at least the state after the request with the given stamp, usually the stamp of the client's last write.
+     * A token of 0 reads the latest state.
+     */
+    public Request readYourWrites(long token) {
+        this.readToken = token;
+        return withConsistency(token == 0 ? Consistency.LATEST : Consistency.READ_YOUR_WRITES);
+    }
+
     /**
      * Get the lamport clock
      * @return [LamportClock] The lamport clock
      */
     public LamportClock getClock() {
-        return clock;
+        return stamp == 0 ? null : LamportClock.unpack(stamp);
+    }
+
+    /**
+     * Get the lamport clock as a packed stamp, without allocating a clock
+     * @return [long] The packed lamport clock, 0 if not set
+     */
+    public long getStamp() {
+        return stamp;
     }
 
     /**
@@ -148,9 +258,191 @@ public class Request implements Serializable {
      * @return [String] The origin of the request
      */
     public String getOrigin() {
+        return origin == EventLog.ORIGIN_NONE ? null : EventLog.decodeOrigin(origin);
+    }
+
+    /**
+     * Get the origin id of the request
+     * @return [int] The origin id
+     */
+    public int getOriginId() {
         return origin;
     }
 
+    /**
+     * Get the requests contained in a batch
+     * @return [Request[]] The batched requests, in execution order
+     */
+    public Request[] getBatch() {
+        return batch;
+    }
+
+    /**
+     * Get the id of the request, used in sequencer ordering
+     * @return [long] The id, 0 if not set
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * Record the outcome of a transfer or debit, so replicas apply the same outcome
+     */
+    public Request withOutcome(boolean success) {
+        this.outcome = (byte) (success ? 1 : 2);
+        return this;
+    }
+
+    /**
+     * Check whether the outcome of the request has been decided
+     * @return [boolean] True if the server that ordered it has applied it
+     */
+    public boolean hasOutcome() {
+        return outcome != 0;
+    }
+
+    /**
+     * Get the decided outcome of the request
+     * @return [boolean] True if it succeeded
+     */
+    public boolean getOutcome() {
+        return outcome == 1;
+    }
+
+    /**
+     * Set the stamps of the requests that must be applied first, one for each account of the request
+     */
+    public Request withDependencies(long[] dependencies) {
+        this.dependencies = dependencies;
+        return this;
+    }
+
+    /**
+     * Get the stamps of the requests that must be applied first, used in dependency ordering
+     * @return [long[]] The stamps, in the same order as the request's accounts, or null if not set
+     */
+    public long[] getDependencies() {
+        return dependencies;
+    }
+
+    /**
+     * Set the sender's safe clock, used in ack-driven delivery
+     */
+    public Request withSafeClock(long safeClock) {
+        this.safeClock = safeClock;
+        return this;
+    }
+
+    /**
+     * Get the sender's safe clock, used in ack-driven delivery
+     * @return [long] The packed clock, 0 if not set
+     */
+    public long getSafeClock() {
+        return safeClock;
+    }
+
+    /**
+     * Set the stamp of the cross-shard transfer a PREPARE, COMMIT or ABORT is a phase of
+     */
+    public Request withParent(long parent) {
+        this.parent = parent;
+        return this;
+    }
+
+    /**
+     * Set the lowest stamp of the transfers the coordinator of a PREPARE, COMMIT or ABORT has not finished
+     */
+    public Request withOldestTransfer(long oldestTransfer) {
+        this.oldestTransfer = oldestTransfer;
+        return this;
+    }
+
+    /**
+     * Get the lowest stamp of the transfers the coordinator has not finished
+     * @return [long] The packed clock, 0 if not set
+     */
+    public long getOldestTransfer() {
+        return oldestTransfer;
+    }
+
+    /**
+     * Get the stamp of the cross-shard transfer the request is a phase of
+     * @return [long] The packed clock, 0 if not set
+     */
+    public long getParent() {
+        return parent;
+    }
+
+    /**
+     * Set the epoch of the sequencer that numbered the request
+     */
+    public Request withEpoch(long epoch) {
+        this.epoch = epoch;
+        return this;
+    }
+
+    /**
+     * Get the epoch of the sequencer that numbered the request
+     * @return [long] The packed epoch, 0 if not set
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Set the lowest id of the requests the receiving server is still ordering
+     */
+    public Request withOldestId(long oldestId) {
+        this.oldestId = oldestId;
+        return this;
+    }
+
+    /**
+     * Get the lowest id of the requests the receiving server is still ordering
+     * @return [long] The id, 0 if not set
+     */
+    public long getOldestId() {
+        return oldestId;
+    }
+
+    /**
+     * Get the accounts the request touches
+     * @return [int[]] The account ids, or null for a request that is not tied to accounts (a halt or a batch)
+     */
+    public int[] getAccounts() {
+        switch(type) {
+            case CREATE_ACCOUNT:
+            case GET_BALANCE:
+            case DEPOSIT:
+            case PREPARE:
+            case COMMIT:
+            case ABORT:
+                return new int[] { uid };
+            case TRANSFER:
+                return new int[] { fromUid, toUid };
+            case SKIP:
+                return new int[0];
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Get the consistency of a balance read
+     * @return [Consistency] The consistency
+     */
+    public Consistency getConsistency() {
+        return consistency;
+    }
+
+    /**
+     * Get the clock a READ_YOUR_WRITES read waits for
+     * @return [long] The packed lamport clock
+     */
+    public long getReadToken() {
+        return readToken;
+    }
+
     /**
      * Convert the request's parameters to a string, used for logging
      * @return [String] The request's parameters as a string
@@ -162,11 +454,110 @@ public class Request implements Serializable {
             case GET_BALANCE:
                 return "uid=" + uid;
             case DEPOSIT:
+            case PREPARE:
+            case COMMIT:
+            case ABORT:
                 return "uid=" + uid + ", amount=" + amount;
             case TRANSFER:
                 return "from=" + fromUid + ", to=" + toUid + ", amount=" + amount;
+            case BATCH:
+                return "size=" + batch.length + ", last=" + LamportClock.toString(batch[batch.length - 1].getStamp());
             default:
                 return "";
         }
     }
+
+    /**
+     * Write the request: type, flags (including the decided outcome), packed clock (if set), read token (for
+     * READ_YOUR_WRITES), id (if set), dependencies (if set), safe clock (if set), parent (if set), epoch (if set), oldest
+     * id (if set), oldest transfer (if set), uid, amount, from, to and origin id, followed by the batched requests for a batch
+     * @param out The stream to write to
+     */
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeByte(type == null ? 0 : type.ordinal() + 1);
+        boolean token = consistency == Consistency.READ_YOUR_WRITES;
+        out.writeShort((stamp == 0 ? 0 : 1) | (token ? 2 : 0) | (id == 0 ? 0 : 4) | (outcome << 3) | (dependencies == null ? 0 : 32) | (safeClock == 0 ? 0 : 64)
+            | (parent == 0 ? 0 : 128) | (epoch == 0 ? 0 : 256) | (oldestId == 0 ? 0 : 512)
+            | (oldestTransfer == 0 ? 0 : 1024));
+        if(stamp != 0)
+            out.writeLong(stamp);
+        if(token)
+            out.writeLong(readToken);
+        if(id != 0)
+            out.writeLong(id);
+        if(dependencies != null) {
+            out.writeInt(dependencies.length);
+            for(long d : dependencies) {
+                out.writeLong(d);
+            }
+        }
+        if(safeClock != 0)
+            out.writeLong(safeClock);
+        if(parent != 0)
+            out.writeLong(parent);
+        if(epoch != 0)
+            out.writeLong(epoch);
+        if(oldestId != 0)
+            out.writeLong(oldestId);
+        if(oldestTransfer != 0)
+            out.writeLong(oldestTransfer);
+        out.writeInt(uid);
+        out.writeInt(amount);
+        out.writeInt(fromUid);
+        out.writeInt(toUid);
+        out.writeInt(origin);
+        if(type == Type.BATCH) {
+            out.writeInt(batch.length);
+            for(Request r : batch) {
+                r.writeExternal(out);
+            }
+        }
+    }
+
+    /**
+     * Read a request written with `writeExternal`
+     * @param in The stream to read from
+     */
+    public void readExternal(ObjectInput in) throws IOException {
+        int t = in.readByte();
+        this.type = t == 0 ? null : TYPES[t - 1];
+        int flags = in.readShort();
+        if((flags & 1) != 0)
+            this.stamp = in.readLong();
+        if((flags & 2) != 0) {
+            this.consistency = Consistency.READ_YOUR_WRITES;
+            this.readToken = in.readLong();
+        }
+        if((flags & 4) != 0)
+            this.id = in.readLong();
+        this.outcome = (byte) ((flags >> 3) & 3);
+        if((flags & 32) != 0) {
+            this.dependencies = new long[in.readInt()];
+            for(int i = 0; i < dependencies.length; i++) {
+                dependencies[i] = in.readLong();
+            }
+        }
+        if((flags & 64) != 0)
+            this.safeClock = in.readLong();
+        if((flags & 128) != 0)
+            this.parent = in.readLong();
+        if((flags & 256) != 0)
+            this.epoch = in.readLong();
+        if((flags & 512) != 0)
+            this.oldestId = in.readLong();
+        if((flags & 1024) != 0)
+            this.oldestTransfer = in.readLong();
+        this.uid = in.readInt();
+        this.amount = in.readInt();
+        this.fromUid = in.readInt();
+        this.toUid = in.readInt();
+        this.origin = in.readInt();
+        if(type == Type.BATCH) {
+            this.batch = new Request[in.readInt()];
+            for(int i = 0; i < batch.length; i++) {
+                batch[i] = new Request();
+                batch[i].readExternal(in);
+            }
+        }
+    }
 }
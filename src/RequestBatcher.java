@@ -0,0 +1,132 @@
+/**
+ * @file src/RequestBatcher.java
+ * @brief Accumulates client requests on a server for a short window (or until a size limit is reached) so that many
+ *          requests can be ordered and replicated in a single protocol round. Each flushed batch is handed to the
+ *          BankServer, which assigns the batch a contiguous range of lamport timestamps, multicasts it to its peers as
+ *          one message and executes it in order once it reaches the head of the request queue.
+ * @created 2024-03-30
+ * @author Jamison Grudem (grude013)
+ *
+ * @grace_days Using 2 grace days
+ */
+
+package src;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class RequestBatcher {
+
+    /**
+     * A client request waiting to be batched, along with the future completed by its response
+     */
+    private static class Pending {
+        // The client request
+        Request req;
+        // Completed once the batch containing the request has executed
+        CompletableFuture<Response> future = new CompletableFuture<Response>();
+
+        Pending(Request req) {
+            this.req = req;
+        }
+    }
+
+    // The server the batches are sent to
+    private BankServer server;
+    // Maximum number of requests in a batch
+    private int batchSize;
+    // Maximum time (ms) to wait for a batch to fill after its first request arrives
+    private long batchWindow;
+    // Requests waiting to be batched
+    private LinkedBlockingQueue<Pending> pending = new LinkedBlockingQueue<Pending>();
+    // Runs flushed batches so several batches can be in flight at once
+    private ExecutorService batchExecutor;
+
+    /**
+     * Initialize a new RequestBatcher and start its flushing thread
+     * @param server The server that orders and executes the batches
+     * @param batchSize The maximum number of requests in a batch
+     * @param batchWindow The maximum time (ms) to wait for a batch to fill
+     * @param virtual Whether the batches run on virtual threads
+     */
+    public RequestBatcher(BankServer server, int batchSize, long batchWindow, boolean virtual) {
+        this.server = server;
+        this.batchSize = batchSize;
+        this.batchWindow = batchWindow;
+        this.batchExecutor = Threads.perTask("Server-" + server.getId() + "-batch", virtual);
+        Thread flusher = new Thread(this::run, "Server-" + server.getId() + "-batcher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Add a request to the next batch and wait for it to be executed
+     * @param req The client request
+     * @return [Response] The response from executing the request
+     */
+    public Response submit(Request req) throws RemoteException {
+        Pending p = new Pending(req);
+        pending.add(p);
+        try {
+            return p.future.get();
+        } catch(ExecutionException e) {
+            if(e.getCause() instanceof RemoteException)
+                throw (RemoteException) e.getCause();
+            throw new RemoteException("Batch failed", e.getCause());
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for batch");
+        }
+    }
+
+    /**
+     * Flushing loop - wait for a first request, collect more until the batch is full or the window
+     * expires, then hand the batch off to the server
+     */
+    private void run() {
+        while(true) {
+            try {
+                ArrayList<Pending> batch = new ArrayList<Pending>();
+                batch.add(pending.take());
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchWindow);
+                while(batch.size() < batchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    // Take whatever is already queued once the window has expired
+                    Pending next = remaining > 0 ? pending.poll(remaining, TimeUnit.NANOSECONDS) : pending.poll();
+                    if(next == null)
+                        break;
+                    batch.add(next);
+                }
+                batchExecutor.execute(() -> flush(batch));
+            } catch(InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Order and execute a batch, completing each request's future with its response
+     * @param batch The requests in the batch
+     */
+    private void flush(ArrayList<Pending> batch) {
+        Request[] reqs = new Request[batch.size()];
+        for(int i = 0; i < reqs.length; i++) {
+            reqs[i] = batch.get(i).req;
+        }
+        try {
+            Response[] responses = server.orderBatch(reqs);
+            for(int i = 0; i < reqs.length; i++) {
+                batch.get(i).future.complete(responses[i]);
+            }
+        } catch(Exception e) {
+            for(Pending p : batch) {
+                p.future.completeExceptionally(e);
+            }
+        }
+    }
+}
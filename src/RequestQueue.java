@@ -0,0 +1,427 @@
+/**
+ * @file src/RequestQueue.java
+ * @brief Ordered queue of pending requests keyed by their packed lamport clock (stamp). The queue is a skip list whose
+ *          nodes live in parallel primitive arrays - stamps, requests, waiting threads and the forward links of every
+ *          level - so inserting, finding and removing a request take O(log n) expected steps wherever it lands, and
+ *          queueing allocates nothing once the arrays have grown. Removed nodes are reused from a free list. The last
+ *          node of each level is kept as well, so a request newer than every queued one, the usual case, is appended
+ *          without a search. The stamp of the head is published in a volatile field, so checking whether a request is
+ *          the head takes no lock. Threads waiting for their request to reach the head are parked and only the waiter
+ *          of the new head is woken when the head changes. The queue also tracks its current and maximum depth as
+ *          metrics, and the highest clock applied so far, which lets a read-your-writes balance read wait until the
+ *          write it must observe is applied.
+ * @created 2024-03-30
+ * @author Jamison Grudem (grude013)
+ *
+ * @grace_days Using 2 grace days
+ */
+
+package src;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class RequestQueue implements Iterable<Request> {
+
+    // Stamp of the head when the queue is empty, never a valid clock
+    private static final long NONE = 0;
+    // Number of skip list levels, enough for millions of queued requests
+    private static final int LEVELS = 24;
+    // Node 0 is the header, so a link to node 0 marks the end of a level
+    private static final int HEADER = 0;
+
+    // Guards the arrays below
+    private final ReentrantLock lock = new ReentrantLock();
+    // The stamp, request and waiting thread (or null) of each node
+    private long[] stamps = new long[64];
+    private Request[] requests = new Request[64];
+    private Thread[] waiters = new Thread[64];
+    // The next node on each level, at `node * LEVELS + level`; level 0 of a free node links the free list
+    private int[] next = new int[64 * LEVELS];
+    // First free node, or HEADER when every node is in use
+    private int free = HEADER;
+    // Number of nodes ever used, the header included
+    private int used = 1;
+    // Number of levels in use
+    private int levels = 1;
+    // The last node on each level, or HEADER if the level is empty, so a request with the newest clock is appended
+    // without a search
+    private int[] last = new int[LEVELS];
+    // The last node before the search position on each level, filled by `search`
+    private int[] update = new int[LEVELS];
+    // State of the generator picking node levels
+    private int seed = 0x2545F491;
+    // Stamp of the current head, readable without the lock
+    private volatile long head = NONE;
+    // Current number of requests in the queue
+    private AtomicInteger depth = new AtomicInteger(0);
+    // Largest number of requests seen in the queue at once
+    private AtomicInteger maxDepth = new AtomicInteger(0);
+    // Highest packed clock of the requests applied so far
+    private AtomicLong applied = new AtomicLong(0);
+    // Highest packed clock of the requests whose application has begun, raised before any balance changes
+    private AtomicLong started = new AtomicLong(0);
+    // Reads parked until the request they must observe has been applied
+    private ConcurrentLinkedQueue<Thread> readers = new ConcurrentLinkedQueue<Thread>();
+
+    /**
+     * Find the last node before a stamp on every level and store them in `update` - caller holds `lock`
+     * @param stamp The stamp
+     * @return [int] The node with the stamp, or HEADER if it is not queued
+     */
+    private int search(long stamp) {
+        // Newer than every queued request, the usual case for a new request: it goes after the last node of each level
+        int tail = last[0];
+        if(tail != HEADER && stamps[tail] < stamp) {
+            System.arraycopy(last, 0, update, 0, levels);
+            return HEADER;
+        }
+        int x = HEADER;
+        for(int level = levels - 1; level >= 0; level--) {
+            int n;
+            while((n = next[x * LEVELS + level]) != HEADER && stamps[n] < stamp) {
+                x = n;
+            }
+            update[level] = x;
+        }
+        int n = next[x * LEVELS];
+        return n != HEADER && stamps[n] == stamp ? n : HEADER;
+    }
+
+    /**
+     * Pick the level of a new node, each level half as likely as the one below - caller holds `lock`
+     * @return [int] The number of levels the node is linked on
+     */
+    private int randomLevels() {
+        seed ^= seed << 13;
+        seed ^= seed >>> 17;
+        seed ^= seed << 5;
+        return Math.min(LEVELS, Integer.numberOfTrailingZeros(seed | (1 << (LEVELS - 1))) + 1);
+    }
+
+    /**
+     * Take a node from the free list, growing the arrays if none is free - caller holds `lock`
+     * @return [int] The node
+     */
+    private int allocate() {
+        if(free != HEADER) {
+            int n = free;
+            free = next[n * LEVELS];
+            return n;
+        }
+        if(used == stamps.length) {
+            int capacity = stamps.length * 2;
+            stamps = Arrays.copyOf(stamps, capacity);
+            requests = Arrays.copyOf(requests, capacity);
+            waiters = Arrays.copyOf(waiters, capacity);
+            next = Arrays.copyOf(next, capacity * LEVELS);
+        }
+        return used++;
+    }
+
+    /**
+     * Insert a request in clock order - O(log n) expected
+     * @param req The request to add
+     */
+    public void add(Request req) {
+        long stamp = req.getStamp();
+        lock.lock();
+        try {
+            int found = search(stamp);
+            if(found != HEADER) {
+                requests[found] = req;
+                return;
+            }
+            int lv = randomLevels();
+            while(levels < lv) {
+                update[levels++] = HEADER;
+            }
+            int n = allocate();
+            stamps[n] = stamp;
+            requests[n] = req;
+            waiters[n] = null;
+            for(int level = 0; level < LEVELS; level++) {
+                if(level < lv) {
+                    next[n * LEVELS + level] = next[update[level] * LEVELS + level];
+                    next[update[level] * LEVELS + level] = n;
+                    if(next[n * LEVELS + level] == HEADER)
+                        last[level] = n;
+                }
+                else
+                    next[n * LEVELS + level] = HEADER;
+            }
+            int d = depth.incrementAndGet();
+            maxDepth.accumulateAndGet(d, Math::max);
+            // The new request may have become the head
+            if(update[0] == HEADER)
+                updateHead();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the request at the head of the queue without removing it
+     * @return [Request] The head request, or null if the queue is empty
+     */
+    public Request peek() {
+        lock.lock();
+        try {
+            int n = next[HEADER * LEVELS];
+            return n == HEADER ? null : requests[n];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the first requests of the queue without removing them
+     * @param max The maximum number of requests
+     * @return [Request[]] Up to `max` requests from the head, in clock order
+     */
+    public Request[] peek(int max) {
+        lock.lock();
+        try {
+            Request[] first = new Request[Math.min(max, depth.get())];
+            int n = next[HEADER * LEVELS];
+            for(int i = 0; i < first.length; i++) {
+                first[i] = requests[n];
+                n = next[n * LEVELS];
+            }
+            return first;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove a request by its stamp - O(log n) expected
+     * @param stamp The packed clock of the request to remove
+     * @return [Request] The removed request, or null if it was not queued
+     */
+    public Request remove(long stamp) {
+        Request removed;
+        lock.lock();
+        try {
+            int n = search(stamp);
+            if(n == HEADER)
+                return null;
+            removed = requests[n];
+            for(int level = 0; level < levels && next[update[level] * LEVELS + level] == n; level++) {
+                next[update[level] * LEVELS + level] = next[n * LEVELS + level];
+                if(last[level] == n)
+                    last[level] = update[level];
+            }
+            while(levels > 1 && next[HEADER * LEVELS + levels - 1] == HEADER) {
+                levels--;
+            }
+            requests[n] = null;
+            waiters[n] = null;
+            next[n * LEVELS] = free;
+            free = n;
+            depth.decrementAndGet();
+            // Removing the head lets the next request proceed
+            if(update[0] == HEADER)
+                updateHead();
+        } finally {
+            lock.unlock();
+        }
+        wakeReaders();
+        return removed;
+    }
+
+    /**
+     * Publish the stamp of the head and unpark its waiter, if any - caller holds `lock`
+     */
+    private void updateHead() {
+        int n = next[HEADER * LEVELS];
+        if(n == HEADER) {
+            head = NONE;
+            return;
+        }
+        head = stamps[n];
+        if(waiters[n] != null)
+            LockSupport.unpark(waiters[n]);
+    }
+
+    /**
+     * Record that a request has been applied - called before it is removed from the queue
+     * @param clock The packed clock of the request, the last request's clock for a batch
+     */
+    public void markApplied(long clock) {
+        applied.accumulateAndGet(clock, Math::max);
+    }
+
+    /**
+     * Get the highest clock applied so far
+     * @return [long] The packed lamport clock, 0 if nothing has been applied
+     */
+    public long getApplied() {
+        return applied.get();
+    }
+
+    /**
+     * Record that a request is about to be applied - called before it changes any balance
+     * @param clock The packed clock of the request, the last request's clock for a batch
+     */
+    public void markStarted(long clock) {
+        started.accumulateAndGet(clock, Math::max);
+    }
+
+    /**
+     * Get the highest clock whose application has begun. Read after a balance, it is at least the clock of every
+     * request the balance reflects, including one still being applied.
+     * @return [long] The packed lamport clock, never below `getApplied()`
+     */
+    public long getStarted() {
+        return Math.max(started.get(), applied.get());
+    }
+
+    /**
+     * Check whether a request that this server has received is applied. It is applied once a clock at least as high
+     * has been applied and no request with a clock at or below it is still queued.
+     * @param token The packed clock of the request
+     * @return [boolean] True if the request is applied
+     */
+    public boolean isApplied(long token) {
+        if(applied.get() < token)
+            return false;
+        long h = head;
+        return h == NONE || h > token;
+    }
+
+    /**
+     * Park the calling thread until the request with the given clock is applied or the timeout expires
+     * @param token The packed clock of the request
+     * @param timeoutMs The maximum time to wait in milliseconds
+     * @return [boolean] True if the request is applied
+     * @throws InterruptedException If the waiting thread is interrupted
+     */
+    public boolean awaitApplied(long token, long timeoutMs) throws InterruptedException {
+        if(isApplied(token))
+            return true;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        Thread self = Thread.currentThread();
+        readers.add(self);
+        try {
+            // Re-check after registering so a removal between the check and park is not missed
+            while(!isApplied(token)) {
+                long remaining = deadline - System.nanoTime();
+                if(remaining <= 0)
+                    return false;
+                LockSupport.parkNanos(this, remaining);
+                if(Thread.interrupted())
+                    throw new InterruptedException();
+            }
+            return true;
+        } finally {
+            readers.remove(self);
+        }
+    }
+
+    /**
+     * Unpark every waiting read so it re-checks its request
+     */
+    private void wakeReaders() {
+        for(Thread reader : readers) {
+            LockSupport.unpark(reader);
+        }
+    }
+
+    /**
+     * Check whether a request is at the head of the queue, without locking
+     * @param req The request to check
+     * @return [boolean] True if the request is the head
+     */
+    public boolean isHead(Request req) {
+        return head == req.getStamp();
+    }
+
+    /**
+     * Register or clear the thread waiting for a request to reach the head
+     * @param stamp The packed clock of the request
+     * @param waiter The waiting thread, or null to clear it
+     */
+    private void setWaiter(long stamp, Thread waiter) {
+        lock.lock();
+        try {
+            int n = search(stamp);
+            if(n != HEADER)
+                waiters[n] = waiter;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Park the calling thread until the request is at the head of the queue or the timeout expires
+     * @param req The request to wait for
+     * @param timeoutMs The maximum time to wait in milliseconds, or 0 to wait indefinitely
+     * @return [boolean] True if the request is at the head of the queue
+     * @throws InterruptedException If the waiting thread is interrupted
+     */
+    public boolean awaitHead(Request req, long timeoutMs) throws InterruptedException {
+        if(isHead(req))
+            return true;
+        long stamp = req.getStamp();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        setWaiter(stamp, Thread.currentThread());
+        try {
+            // Re-check after registering so a head change between the check and park is not missed
+            while(!isHead(req)) {
+                if(timeoutMs <= 0)
+                    LockSupport.park(this);
+                else {
+                    long remaining = deadline - System.nanoTime();
+                    if(remaining <= 0)
+                        return false;
+                    LockSupport.parkNanos(this, remaining);
+                }
+                if(Thread.interrupted())
+                    throw new InterruptedException();
+            }
+            return true;
+        } finally {
+            setWaiter(stamp, null);
+        }
+    }
+
+    /**
+     * Get the current number of queued requests
+     * @return [int] The queue depth
+     */
+    public int getDepth() {
+        return depth.get();
+    }
+
+    /**
+     * Get the largest number of requests queued at once
+     * @return [int] The maximum queue depth
+     */
+    public int getMaxDepth() {
+        return maxDepth.get();
+    }
+
+    /**
+     * Iterate over a copy of the queued requests in clock order
+     */
+    public Iterator<Request> iterator() {
+        lock.lock();
+        try {
+            ArrayList<Request> copy = new ArrayList<Request>(depth.get());
+            for(int n = next[HEADER * LEVELS]; n != HEADER; n = next[n * LEVELS]) {
+                copy.add(requests[n]);
+            }
+            return copy.iterator();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -3,6 +3,8 @@
  * @brief Response class used for replying to requests between clients and servers (and server-server communication).
  *          This class has been created using the builder pattern to easily add parameters to the response without
  *          having to create a constructor with many parameters or many subclasses of the Response class.
+ *          Responses are written with a hand-written Externalizable format - fixed-width fields and the lamport clock
+ *          packed into a long - instead of default Java serialization.
  * @created 2024-03-30
  * @author Jamison Grudem (grude013)
  * 
@@ -11,9 +13,12 @@
 
 package src;
 
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 
-public class Response implements Serializable {
+public class Response implements Externalizable {
 
     // Supported operations
     public static enum Type {
@@ -23,25 +28,48 @@ public class Response implements Serializable {
         TRANSFER,
         ACK,
         NACK,
-        HALT
+        HALT,
+        BATCH,
+        PREPARE,
+        COMMIT,
+        ABORT
     }
+    // Cached to avoid copying the enum values for every response read
+    private static final Type[] TYPES = Type.values();
 
-    // Stores the lamport clock
-    private LamportClock clock;
+    // Stores the lamport clock as a packed stamp, 0 when not set
+    private long stamp;
     // Stores the type of response
     private Type type;
     // Store the uid for the account
     private int uid;
     // Stores the balance for the account
-    private int balance;
+    private long balance;
     // Stores the success of the operation
     private boolean success;
+    // Stores the responses to the requests of a batch, in execution order
+    private Response[] batch;
+    // Stores the stamps of the earlier requests the acknowledged request depends on, in dependency ordering
+    private long[] dependencies;
+    // Stores the sender's safe clock for the receiver in ack-driven delivery, 0 if not set
+    private long safeClock;
+    // Set on the response to a cross-shard transfer step that had already been applied, so it changed no balance and
+    // is not logged. Only used by the server that applied it, never sent.
+    private boolean repeated;
 
     /**
      * Add a lamport clock to the response
      */
     public Response withClock(LamportClock clock) {
-        this.clock = clock;
+        this.stamp = clock == null ? 0 : clock.pack();
+        return this;
+    }
+
+    /**
+     * Add a lamport clock to the response from its packed stamp
+     */
+    public Response withStamp(long stamp) {
+        this.stamp = stamp;
         return this;
     }
 
@@ -64,7 +92,7 @@ public class Response implements Serializable {
     /**
      * Set the balance of the account
      */
-    public Response withBalance(int balance) {
+    public Response withBalance(long balance) {
         this.balance = balance;
         return this;
     }
@@ -77,11 +105,51 @@ public class Response implements Serializable {
         return this;
     }
 
+    /**
+     * Set the responses to the requests of a batch
+     */
+    public Response withBatch(Response[] batch) {
+        this.batch = batch;
+        return this;
+    }
+
+    /**
+     * Set the stamps of the earlier requests the acknowledged request depends on
+     */
+    public Response withDependencies(long[] dependencies) {
+        this.dependencies = dependencies;
+        return this;
+    }
+
+    /**
+     * Set the sender's safe clock for the receiver, used in ack-driven delivery
+     */
+    public Response withSafeClock(long safeClock) {
+        this.safeClock = safeClock;
+        return this;
+    }
+
+    /**
+     * Mark the response as that of a transfer step that had already been applied
+     */
+    public Response asRepeated() {
+        this.repeated = true;
+        return this;
+    }
+
     /**
      * Return a string representation of the Response
      */
     public LamportClock getClock() {
-        return clock;
+        return stamp == 0 ? null : LamportClock.unpack(stamp);
+    }
+
+    /**
+     * Get the lamport clock as a packed stamp, without allocating a clock
+     * @return [long] The packed lamport clock, 0 if not set
+     */
+    public long getStamp() {
+        return stamp;
     }
 
     /**
@@ -101,7 +169,7 @@ public class Response implements Serializable {
     /**
      * Return the balance of the account
      */
-    public int getBalance() {
+    public long getBalance() {
         return balance;
     }
 
@@ -111,4 +179,90 @@ public class Response implements Serializable {
     public boolean getSuccess() {
         return success;
     }
+
+    /**
+     * Return the responses to the requests of a batch
+     */
+    public Response[] getBatch() {
+        return batch;
+    }
+
+    /**
+     * Return the stamps of the earlier requests the acknowledged request depends on, or null if not set
+     */
+    public long[] getDependencies() {
+        return dependencies;
+    }
+
+    /**
+     * Return the sender's safe clock for the receiver, 0 if not set
+     */
+    public long getSafeClock() {
+        return safeClock;
+    }
+
+    /**
+     * Return whether the response is that of a transfer step that had already been applied
+     */
+    public boolean isRepeated() {
+        return repeated;
+    }
+
+    /**
+     * Write the response: type, flags (clock set, success, dependencies set, safe clock set), packed clock (if set),
+     * dependencies (if set), safe clock (if set), uid and balance, followed by the batched responses for a batch
+     * @param out The stream to write to
+     */
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeByte(type == null ? 0 : type.ordinal() + 1);
+        out.writeByte((stamp == 0 ? 0 : 1) | (success ? 2 : 0) | (dependencies == null ? 0 : 4) | (safeClock == 0 ? 0 : 8));
+        if(stamp != 0)
+            out.writeLong(stamp);
+        if(dependencies != null) {
+            out.writeInt(dependencies.length);
+            for(long d : dependencies) {
+                out.writeLong(d);
+            }
+        }
+        if(safeClock != 0)
+            out.writeLong(safeClock);
+        out.writeInt(uid);
+        out.writeLong(balance);
+        if(type == Type.BATCH) {
+            out.writeInt(batch.length);
+            for(Response r : batch) {
+                r.writeExternal(out);
+            }
+        }
+    }
+
+    /**
+     * Read a response written with `writeExternal`
+     * @param in The stream to read from
+     */
+    public void readExternal(ObjectInput in) throws IOException {
+        int t = in.readByte();
+        this.type = t == 0 ? null : TYPES[t - 1];
+        int flags = in.readByte();
+        if((flags & 1) != 0)
+            this.stamp = in.readLong();
+        this.success = (flags & 2) != 0;
+        if((flags & 4) != 0) {
+            this.dependencies = new long[in.readInt()];
+            for(int i = 0; i < dependencies.length; i++) {
+                dependencies[i] = in.readLong();
+            }
+        }
+        if((flags & 8) != 0)
+            this.safeClock = in.readLong();
+        this.uid = in.readInt();
+        this.balance = in.readLong();
+        if(type == Type.BATCH) {
+            this.batch = new Response[in.readInt()];
+            for(int i = 0; i < batch.length; i++) {
+                batch[i] = new Response();
+                batch[i].readExternal(in);
+            }
+        }
+    }
 }
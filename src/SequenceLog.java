@@ -0,0 +1,337 @@
+/**
+ * @file src/SequenceLog.java
+ * @brief Log of the sequenced requests a server has accepted in sequencer ordering. A server writes a request here
+ *          before it acknowledges the delivery, so a request counted towards a majority is not lost if the server
+ *          restarts before applying it, and servers that fall behind fetch what they are missing from it. With a
+ *          SYNC write-ahead log each accepted request is forced before the acknowledgement; concurrent deliveries share
+ *          one `force()` call. Otherwise it is only written, like the write-ahead log records it sits next to.
+ *
+ *          Requests are written in the order they arrive, which is close to but not exactly sequence order. Every
+ *          INDEX_EVERY records the log notes where it is and the highest sequence number before that point, so a
+ *          fetch reads from the last point that cannot have a wanted request before it. Once the file grows past
+ *          COMPACT_BYTES it is rewritten with only the requests a lagging server could still ask for.
+ *
+ *          File layout: MAGIC int, VERSION int, then records of
+ *              length int, stamp long, the request as written to the wire, CRC32 of the preceding bytes of the
+ *              record int. The length counts the stamp and the request.
+ * @created 2024-03-30
+ * @author Jamison Grudem (grude013)
+ *
+ * @grace_days Using 2 grace days
+ */
+
+package src;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+public class SequenceLog {
+
+    // Identifies a sequence log file, the characters 'SEQL'
+    public static final int MAGIC = 0x5345514c;
+    // Sequence log file format version
+    public static final int VERSION = 1;
+    // Size of the file header
+    public static final int HEADER_BYTES = 8;
+    // Number of records between index points
+    private static final int INDEX_EVERY = 256;
+    // Size past which the file is rewritten with only the requests that may still be fetched
+    private static final long COMPACT_BYTES = 16 << 20;
+
+    // The log file
+    private Path path;
+    private FileChannel channel;
+    // Whether an accepted request is forced before `append` returns
+    private boolean force;
+    // Guards the file, the index and the counters. A lock rather than a monitor, so a virtual thread waiting for the
+    // file does not pin its carrier thread
+    private final ReentrantLock lock = new ReentrantLock();
+    // Held by the thread forcing the file, the others wait for it and find their record already forced
+    private final ReentrantLock forceLock = new ReentrantLock();
+    // Bytes in the file, guarded by `lock`
+    private long size;
+    // Bytes in the file known to be on disk, guarded by `forceLock`
+    private long forced;
+    // Size the file is compacted at, guarded by `lock`
+    private long compactAt = COMPACT_BYTES;
+    // Number of records in the file, guarded by `lock`
+    private long records;
+    // Highest sequence number in the file, guarded by `lock`
+    private long highestSeq;
+    // Highest epoch in the file, guarded by `lock`
+    private long highestEpoch;
+    // Index points: file offset, highest sequence number of the records before it; guarded by `lock`
+    private ArrayList<long[]> index = new ArrayList<long[]>();
+    // Size of the record last read by `read`, guarded by `lock`
+    private int recordBytes;
+    // Reused to checksum records, guarded by `lock`
+    private CRC32 crc = new CRC32();
+
+    /**
+     * Open a sequence log, creating it if it does not exist. Records after the last complete record are discarded.
+     * @param path The path of the log file
+     * @param force Whether each accepted request is forced to disk before `append` returns
+     */
+    public SequenceLog(Path path, boolean force) throws IOException {
+        this.path = path;
+        this.force = force;
+        if(path.getParent() != null)
+            Files.createDirectories(path.getParent());
+        this.channel = open(path);
+        this.size = scan(channel);
+        channel.truncate(size);
+        channel.position(size);
+        this.forced = size;
+    }
+
+    /**
+     * Open a log file, writing its header if it is new
+     * @param path The path of the log file
+     * @return [FileChannel] The file
+     */
+    private static FileChannel open(Path path) throws IOException {
+        FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        if(ch.size() < HEADER_BYTES) {
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            ch.truncate(0);
+            ch.write(header, 0);
+            ch.force(true);
+            return ch;
+        }
+        ch.read(header, 0);
+        header.flip();
+        if(header.getInt() != MAGIC)
+            throw new IOException(path + " is not a sequence log");
+        int version = header.getInt();
+        if(version != VERSION)
+            throw new IOException(path + " has unsupported version " + version);
+        return ch;
+    }
+
+    /**
+     * Read every complete record of the file, rebuilding the index and counters - caller holds `lock`, or the log is
+     * being opened
+     * @param ch The log file
+     * @return [long] The end of the last complete record
+     */
+    private long scan(FileChannel ch) throws IOException {
+        records = 0;
+        highestSeq = 0;
+        index.clear();
+        long end = HEADER_BYTES;
+        Request req;
+        while((req = read(ch, end)) != null) {
+            note(end, req);
+            end += recordBytes;
+        }
+        return end;
+    }
+
+    /**
+     * Read the record at an offset - caller holds `lock`, or the log is being opened
+     * @param ch The log file
+     * @param pos The offset
+     * @return [Request] The request, or null at the end of the file or at a torn or corrupt record
+     */
+    private Request read(FileChannel ch, long pos) throws IOException {
+        ByteBuffer len = ByteBuffer.allocate(4);
+        if(ch.read(len, pos) < 4)
+            return null;
+        int length = len.flip().getInt();
+        if(length < 8 || length > WireCodec.MAX_FRAME)
+            return null;
+        ByteBuffer buf = ByteBuffer.allocate(4 + length + 4);
+        while(buf.hasRemaining()) {
+            if(ch.read(buf, pos + buf.position()) < 0)
+                return null;
+        }
+        crc.reset();
+        crc.update(buf.array(), 0, 4 + length);
+        if(buf.getInt(4 + length) != (int) crc.getValue())
+            return null;
+        recordBytes = buf.capacity();
+        WireCodec.FrameInput in = new WireCodec.FrameInput(Arrays.copyOfRange(buf.array(), 4, 4 + length));
+        in.readLong();
+        return WireCodec.readRequest(in);
+    }
+
+    /**
+     * Count a record and add an index point before it when one is due - caller holds `lock`
+     * @param pos The offset of the record
+     * @param req The request
+     */
+    private void note(long pos, Request req) {
+        if(records++ % INDEX_EVERY == 0)
+            index.add(new long[] { pos, highestSeq });
+        highestSeq = Math.max(highestSeq, LamportClock.timestamp(req.getStamp()));
+        highestEpoch = Math.max(highestEpoch, req.getEpoch());
+    }
+
+    /**
+     * Encode a record
+     * @param req The sequenced request
+     * @return [ByteBuffer] The record, ready to be written
+     */
+    private ByteBuffer encode(Request req) throws IOException {
+        WireCodec.FrameOutput out = new WireCodec.FrameOutput(req.getStamp());
+        WireCodec.writeRequest(out, req);
+        ByteBuffer frame = out.toFrame();
+        ByteBuffer buf = ByteBuffer.allocate(frame.capacity() + 4);
+        buf.put(frame);
+        crc.reset();
+        crc.update(buf.array(), 0, frame.capacity());
+        buf.putInt((int) crc.getValue()).flip();
+        return buf;
+    }
+
+    /**
+     * Log an accepted request, waiting for it to be on disk when the log forces
+     * @param req The sequenced request
+     * @param keepAfter Requests up to this sequence number are no longer fetched, they may be dropped
+     */
+    public void append(Request req, long keepAfter) throws IOException {
+        long end;
+        boolean full;
+        lock.lock();
+        try {
+            ByteBuffer buf = encode(req);
+            note(size, req);
+            while(buf.hasRemaining()) {
+                size += channel.write(buf, size);
+            }
+            end = size;
+            full = size > compactAt;
+        } finally {
+            lock.unlock();
+        }
+        if(full) {
+            compact(keepAfter);
+            return;
+        }
+        if(!force)
+            return;
+        forceLock.lock();
+        try {
+            if(forced >= end)
+                return;
+            long upTo;
+            lock.lock();
+            try {
+                upTo = size;
+            } finally {
+                lock.unlock();
+            }
+            channel.force(false);
+            forced = upTo;
+        } finally {
+            forceLock.unlock();
+        }
+    }
+
+    /**
+     * Get the logged requests after a sequence number. A sequence number logged more than once, because a new
+     * sequencer sent it again, gives the request of the newest epoch.
+     * @param afterSeq The sequence number, exclusive
+     * @return [Request[]] The requests, in sequence order
+     */
+    public Request[] after(long afterSeq) throws IOException {
+        TreeMap<Long, Request> found = new TreeMap<Long, Request>();
+        lock.lock();
+        try {
+            // The last index point with nothing wanted before it
+            long pos = HEADER_BYTES;
+            for(int i = index.size() - 1; i >= 0; i--) {
+                if(index.get(i)[1] <= afterSeq) {
+                    pos = index.get(i)[0];
+                    break;
+                }
+            }
+            Request req;
+            while(pos < size && (req = read(channel, pos)) != null) {
+                pos += recordBytes;
+                long seq = LamportClock.timestamp(req.getStamp());
+                Request held = found.get(seq);
+                if(seq > afterSeq && (held == null || held.getEpoch() <= req.getEpoch()))
+                    found.put(seq, req);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return found.values().toArray(new Request[0]);
+    }
+
+    /**
+     * Rewrite the log with only the requests after a sequence number, replacing the file once the new one is on disk
+     * @param keepAfter Requests up to this sequence number are dropped
+     */
+    private void compact(long keepAfter) throws IOException {
+        forceLock.lock();
+        lock.lock();
+        try {
+            if(size <= compactAt)
+                return;
+            Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+            Files.deleteIfExists(tmp);
+            FileChannel ch = open(tmp);
+            long end = HEADER_BYTES;
+            for(Request req : after(keepAfter)) {
+                ByteBuffer buf = encode(req);
+                while(buf.hasRemaining()) {
+                    end += ch.write(buf, end);
+                }
+            }
+            ch.force(false);
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            channel.close();
+            channel = ch;
+            size = scan(channel);
+            forced = size;
+            // Requests that cannot be dropped yet do not make every append compact again
+            compactAt = Math.max(COMPACT_BYTES, size * 2);
+        } finally {
+            lock.unlock();
+            forceLock.unlock();
+        }
+    }
+
+    /**
+     * Get the highest epoch logged, a restarted server rejects requests from older ones
+     * @return [long] The packed epoch, 0 if the log is empty
+     */
+    public long getHighestEpoch() {
+        lock.lock();
+        try {
+            return highestEpoch;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Force and close the log
+     */
+    public void close() {
+        forceLock.lock();
+        lock.lock();
+        try {
+            channel.force(false);
+            channel.close();
+        } catch(IOException e) {
+            System.out.println("Error closing sequence log " + path + ": " + e);
+        } finally {
+            lock.unlock();
+            forceLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,826 @@
+/**
+ * @file src/Sequencer.java
+ * @brief Sequencer ordering, used instead of the all-to-all lamport protocol with <ordering>sequencer</ordering>. One
+ *          server, the first reachable server in the <sequencers> list, hands out global sequence numbers. A server
+ *          that receives a write sends it to the sequencer (one round trip), the sequencer numbers it and broadcasts it
+ *          to every server without waiting, and every server applies the requests it receives strictly in sequence
+ *          order, holding back any that arrive early in the request queue. The server that received the write
+ *          answers the client once it has applied the write itself.
+ *
+ *          In this mode a request's stamp is its sequence number packed with the id of the first sequencer candidate,
+ *          so stamps still order the requests, serve as read tokens, and name the shard that ordered them. Each request also carries an id (the lamport stamp it was given by
+ *          the server that received it), so a request that is retried after a failure is never sequenced twice. Every
+ *          server keeps the ids of the requests it accepts, so a sequencer that takes over knows them too. Each
+ *          request names the lowest id its server is still ordering, and that server's ids below it are dropped.
+ *
+ *          Failover: when the sequencer cannot be reached, the next reachable server in the list takes over. It
+ *          collects every sequenced request any reachable server holds beyond what it has applied, fills sequence
+ *          numbers that no reachable server received with SKIP requests, broadcasts them, and continues numbering
+ *          after the highest sequence number it found. A server whose write is not applied within `queueWaitTimeout`
+ *          fetches what it is missing from the sequencer, which also detects a failed sequencer.
+ *
+ *          Fencing: a server that takes over starts a new epoch, a round packed with its own id, and passes it with
+ *          the fetches it collects requests with. Every request it numbers carries that epoch. A server rejects a
+ *          request numbered in an older epoch than the newest it has seen, answering with the newer epoch, so a
+ *          sequencer that was only thought to have failed can no longer get its requests applied. A sequencer that
+ *          sees a newer epoch stops numbering requests and follows the server that started it.
+ *
+ *          With a write-ahead log, every server logs the requests it accepts in a sequence log before acknowledging
+ *          them, queues them again after a restart, and serves fetches from it, so a server that fell behind by more
+ *          than the requests kept in memory, or that restarted, still catches up.
+ *
+ *          Majority commit (<commit>majority</commit>): the sequencer answers a write once a majority of servers,
+ *          itself included, have accepted it and it has applied the write itself, and the receiving server returns
+ *          that response to the client without waiting to apply the write locally. A slow replica then no longer sets
+ *          the latency of a write; it applies the write when it gets to it, and fetches from the sequencer any
+ *          sequence numbers that stay missing for longer than `queueWaitTimeout`.
+ * @created 2024-03-30
+ * @author Jamison Grudem (grude013)
+ *
+ * @grace_days Using 2 grace days
+ */
+
+package src;
+
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class Sequencer {
+
+    // Number of recently delivered requests kept, without a sequence log, for servers that fall behind. A sequence log
+    // keeps at least this many sequence numbers before the last one applied.
+    private static final int RECENT = 1 << 16;
+    // Largest number of consecutive requests applied as one window when execution is parallel
+    private static final int WINDOW = 256;
+
+    // The server this sequencer orders requests for
+    private BankServer server;
+    // Server ids that may act as the sequencer, in order of preference
+    private int[] candidates;
+    // Server id packed into every stamp, the same on every server of the group
+    private int tag;
+    // Index in `candidates` of the current sequencer
+    private volatile int current = 0;
+    // Last sequence number handed out, only used while this server is the sequencer, guarded by `sequenceLock`
+    private long lastSeq = 0;
+    // Whether this server has taken over as the sequencer, set while holding `sequenceLock`
+    private volatile boolean leading = false;
+    // Epoch this server numbers requests in while it is the sequencer, guarded by `sequenceLock`
+    private long leaderEpoch = 0;
+    // Newest epoch seen, the round packed with the id of the sequencer that started it, 0 before any takeover
+    private AtomicLong epoch = new AtomicLong(0);
+    // Serializes numbering and takeover
+    private final ReentrantLock sequenceLock = new ReentrantLock();
+    // Last sequence number applied, written only while holding `applyLock`
+    private volatile long appliedSeq = 0;
+    // Held by the thread applying requests, so requests are applied one at a time in order
+    private final ReentrantLock applyLock = new ReentrantLock();
+    // Requests received by this server, waiting for their turn, by request id
+    private ConcurrentHashMap<Long, CompletableFuture<Response>> pending = new ConcurrentHashMap<Long, CompletableFuture<Response>>();
+    // Ids of the requests this server received and is still ordering, lowest first, each added together with taking
+    // it under `idLock`
+    private ConcurrentSkipListSet<Long> ordering = new ConcurrentSkipListSet<Long>();
+    private final ReentrantLock idLock = new ReentrantLock();
+    // Numbered requests by the id of the server that received them, then by request id. Every server keeps them, so a
+    // server that takes over never numbers a request twice; ids below the lowest one their server is still ordering
+    // are dropped.
+    private ConcurrentHashMap<Integer, ConcurrentSkipListMap<Long, Request>> numbered = new ConcurrentHashMap<Integer, ConcurrentSkipListMap<Long, Request>>();
+    // Recently delivered requests by request id, oldest first, guarded by `recentLock`
+    private LinkedHashMap<Long, Request> recent = new LinkedHashMap<Long, Request>() {
+        protected boolean removeEldestEntry(Map.Entry<Long, Request> eldest) {
+            return size() > RECENT;
+        }
+    };
+    private final ReentrantLock recentLock = new ReentrantLock();
+    // Whether a write commits once a majority of servers have accepted it, rather than once its origin applies it
+    private boolean majority;
+    // Time (ns) since a gap in the sequence has been waiting to be filled, 0 if there is none
+    private volatile long gapSince = 0;
+    // Set while missing requests are being fetched in the background
+    private AtomicBoolean catchingUp = new AtomicBoolean(false);
+    // Log of the accepted requests, null to keep only the recent ones in memory
+    private SequenceLog log;
+
+    /**
+     * Initialize a new Sequencer
+     * @param server The server to order requests for
+     * @param candidates Server ids that may act as the sequencer, in order of preference
+     * @param majority Whether writes commit once a majority of servers have accepted them
+     * @param log Log of the accepted requests, or null to keep only the recent ones in memory
+     */
+    public Sequencer(BankServer server, int[] candidates, boolean majority, SequenceLog log) {
+        this.server = server;
+        this.candidates = candidates;
+        this.tag = candidates[0];
+        this.majority = majority;
+        this.log = log;
+    }
+
+    /**
+     * Parse the list of sequencer candidates
+     * @param list Comma separated server ids
+     * @return [int[]] The server ids, in order
+     */
+    public static int[] parseCandidates(String list) {
+        String[] parts = list.split(",");
+        int[] ids = new int[parts.length];
+        for(int i = 0; i < parts.length; i++) {
+            ids[i] = Integer.parseInt(parts[i].trim());
+        }
+        return ids;
+    }
+
+    /**
+     * Continue from the state restored after a restart. Requests the sequence log holds beyond it were accepted but
+     * not applied, they are queued again and applied once the sequence reaches them.
+     * @param stamp The stamp of the last request restored, every request numbered up to it has been applied
+     */
+    public void resume(long stamp) {
+        appliedSeq = LamportClock.timestamp(stamp);
+        lastSeq = appliedSeq;
+        if(log == null)
+            return;
+        observe(log.getHighestEpoch());
+        try {
+            Request[] accepted = log.after(appliedSeq);
+            for(Request r : accepted) {
+                remember(r);
+                record(r);
+                server.addRequestInSequence(r);
+            }
+            if(accepted.length > 0)
+                System.out.println("Queued " + accepted.length + " accepted requests after " + appliedSeq + " from the sequence log");
+        } catch(IOException e) {
+            System.out.println("Error reading sequence log: " + e);
+        }
+        drain();
+    }
+
+    /**
+     * Close the sequence log
+     */
+    public void close() {
+        if(log != null)
+            log.close();
+    }
+
+    /**
+     * Get the number of sequence numbers a request takes up
+     * @param req The request
+     * @return [int] One per request in a batch, the skipped count for a SKIP, otherwise 1
+     */
+    private static int span(Request req) {
+        if(req.getType() == Request.Type.BATCH)
+            return req.getBatch().length;
+        if(req.getType() == Request.Type.SKIP)
+            return req.getAmount();
+        return 1;
+    }
+
+    /**
+     * Get the sequence number of a request
+     * @param req The request
+     * @return [long] The sequence number
+     */
+    private static long seq(Request req) {
+        return LamportClock.timestamp(req.getStamp());
+    }
+
+    /**
+     * Get the id of the current sequencer
+     * @return [int] The server id
+     */
+    public int getSequencerId() {
+        return candidates[current];
+    }
+
+    /**
+     * Get a connection to a server
+     * @param id The server id
+     * @return [IBankServer] The server, or null for this server or an unknown id
+     */
+    private IBankServer peer(int id) {
+        for(int i = 0; i < server.peerIds.length; i++) {
+            if(server.peerIds[i] == id)
+                return server.peerServers[i];
+        }
+        return null;
+    }
+
+    /**
+     * Find the sequencer: the server that started the newest epoch if it can be reached, otherwise the first reachable
+     * server in the candidate list
+     * @return [int] The id of the sequencer
+     */
+    private int resolve() {
+        long newest = epoch.get();
+        int owner = newest == 0 ? -1 : LamportClock.serverId(newest);
+        for(int i = 0; i < candidates.length; i++) {
+            IBankServer p = peer(candidates[i]);
+            if(candidates[i] != owner || p == null)
+                continue;
+            try {
+                p.getId();
+                current = i;
+                return owner;
+            } catch(RemoteException e) {
+                System.out.println("Sequencer Server-" + owner + " is unreachable");
+            }
+        }
+        for(int i = 0; i < candidates.length; i++) {
+            if(candidates[i] == server.getId()) {
+                current = i;
+                return candidates[i];
+            }
+            IBankServer p = peer(candidates[i]);
+            if(p == null)
+                continue;
+            try {
+                p.getId();
+                current = i;
+                return candidates[i];
+            } catch(RemoteException e) {
+                System.out.println("Sequencer candidate Server-" + candidates[i] + " is unreachable");
+            }
+        }
+        throw new IllegalStateException("No reachable sequencer");
+    }
+
+    /**
+     * Give a request received from a client its id, a fresh clock, and note that this server is ordering it. Every
+     * request given an id must then be passed to `order`.
+     * @param req The request
+     * @return [Request] The request
+     */
+    public Request assignId(Request req) {
+        idLock.lock();
+        try {
+            long id = server.clockManager.tickAndGet();
+            ordering.add(id);
+            return req.withId(id);
+        } finally {
+            idLock.unlock();
+        }
+    }
+
+    /**
+     * Get the lowest id of the requests this server is still ordering. Read under `idLock`, so a request whose id has
+     * been taken but not yet noted can never be below it.
+     * @return [long] The id, 0 if there is none
+     */
+    private long oldestId() {
+        idLock.lock();
+        try {
+            return ordering.isEmpty() ? 0 : ordering.first();
+        } finally {
+            idLock.unlock();
+        }
+    }
+
+    /**
+     * Order a request received from a client, wait for this server to apply it, and return the response
+     * @param req The request, with its id given by `assignId`
+     * @return [Response] The response from applying the request here
+     */
+    public Response order(Request req) throws RemoteException {
+        CompletableFuture<Response> done = new CompletableFuture<Response>();
+        pending.put(req.getId(), done);
+        try {
+            // Under majority commit the sequencer answers with the committed response
+            long start = System.nanoTime();
+            Response committed = send(req);
+            server.latency.since(req.getType(), LatencyRecorder.Phase.MULTICAST, start);
+            if(committed.getType() != Response.Type.ACK)
+                return committed;
+            start = System.nanoTime();
+            long timeout = server.getQueueWaitTimeout();
+            while(true) {
+                try {
+                    Response res = done.get(timeout > 0 ? timeout : 1000, TimeUnit.MILLISECONDS);
+                    server.latency.since(req.getType(), LatencyRecorder.Phase.QUEUE_WAIT, start);
+                    return res;
+                } catch(TimeoutException e) {
+                    if(timeout > 0)
+                        System.out.println("Waiting for request " + LamportClock.toString(req.getId()) + ", applied: " + appliedSeq
+                            + ", sequencer: Server-" + getSequencerId());
+                    catchUp();
+                    // Numbered by a sequencer that failed before any server received it, send it again. A sequencer that
+                    // has numbered it only sends it again.
+                    if(!done.isDone() && numbered(req.getId()) == null && (committed = send(req)).getType() != Response.Type.ACK)
+                        return committed;
+                }
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for request " + LamportClock.toString(req.getId()));
+        } catch(ExecutionException e) {
+            throw new RemoteException("Request failed", e.getCause());
+        } finally {
+            pending.remove(req.getId());
+            ordering.remove(req.getId());
+        }
+    }
+
+    /**
+     * Send a request to the sequencer, failing over to the next reachable candidate until one accepts it
+     * @param req The request
+     * @return [Response] The committed response under majority commit, otherwise an ACK
+     */
+    private Response send(Request req) throws RemoteException {
+        while(true) {
+            req.withOldestId(oldestId());
+            int id = getSequencerId();
+            try {
+                if(id == server.getId())
+                    return sequence(req);
+                long start = System.nanoTime();
+                Response res = peer(id).sequence(req);
+                EventLog.Event e = EventLog.event(EventLog.Type.SRV_RES, server.getId(), req);
+                e.target = id;
+                e.e = System.nanoTime() - start;
+                server.log.record(e);
+                return res;
+            } catch(RemoteException e) {
+                System.out.println("Sequencer Server-" + id + " failed: " + e.getMessage());
+                resolve();
+            }
+        }
+    }
+
+    /**
+     * [Sequencer] Number a request and broadcast it to every server. A request already numbered keeps its number.
+     * Under majority commit, wait until a majority of servers have accepted the request and this server has applied
+     * it, and return the response.
+     * @param req The request
+     * @return [Response] The response under majority commit, otherwise an ACK carrying the request's stamp
+     */
+    public Response sequence(Request req) throws RemoteException {
+        sequenceLock.lock();
+        Request sequenced;
+        boolean fresh = false;
+        try {
+            if(!leading) {
+                if(resolve() != server.getId())
+                    throw new RemoteException("Server-" + server.getId() + " is not the sequencer, Server-" + getSequencerId() + " is");
+                if(!takeOver())
+                    throw new RemoteException("Server-" + server.getId() + " was replaced as the sequencer by Server-" + getSequencerId());
+            }
+            sequenced = numbered(req.getId());
+            if(sequenced == null) {
+                long first = lastSeq + 1;
+                lastSeq += span(req);
+                req.withStamp(LamportClock.pack((int) first, tag));
+                if(req.getType() == Request.Type.BATCH) {
+                    Request[] batch = req.getBatch();
+                    for(int i = 0; i < batch.length; i++) {
+                        batch[i].withStamp(LamportClock.pack((int) (first + i), tag));
+                    }
+                }
+                sequenced = req;
+                fresh = true;
+                record(req);
+            }
+            sequenced.withEpoch(leaderEpoch);
+        } finally {
+            sequenceLock.unlock();
+        }
+        // Only a newly numbered request is sure to be applied after this point, a repeated one may already be
+        CompletableFuture<Response> applied = null;
+        boolean own = false;
+        if(majority && fresh) {
+            applied = new CompletableFuture<Response>();
+            CompletableFuture<Response> existing = pending.putIfAbsent(sequenced.getId(), applied);
+            own = existing == null;
+            if(!own)
+                applied = existing;
+        }
+        try {
+            // A halt must reach every server before this one shuts down
+            ArrayList<CompletableFuture<Boolean>> sends = broadcast(sequenced, sequenced.getType() == Request.Type.HALT);
+            if(deliver(sequenced).getType() == Response.Type.NACK)
+                throw new RemoteException("Server-" + server.getId() + " was replaced as the sequencer by Server-" + getSequencerId());
+            if(applied == null)
+                return (new Response()).ofType(Response.Type.ACK).withStamp(sequenced.getStamp());
+            awaitMajority(sequenced, sends);
+            return applied.join();
+        } finally {
+            if(own)
+                pending.remove(sequenced.getId());
+        }
+    }
+
+    /**
+     * Wait until a majority of servers, this one included, have accepted a request
+     * @param req The request
+     * @param sends The deliveries to the peers, each completing with whether the peer accepted the request
+     */
+    private void awaitMajority(Request req, ArrayList<CompletableFuture<Boolean>> sends) throws RemoteException {
+        int needed = (sends.size() + 1) / 2;
+        if(needed == 0)
+            return;
+        CompletableFuture<Void> quorum = new CompletableFuture<Void>();
+        AtomicInteger accepted = new AtomicInteger(0);
+        AtomicInteger answered = new AtomicInteger(0);
+        for(CompletableFuture<Boolean> send : sends) {
+            send.thenAccept(ok -> {
+                if(ok && accepted.incrementAndGet() == needed)
+                    quorum.complete(null);
+                if(answered.incrementAndGet() == sends.size())
+                    quorum.complete(null);
+            });
+        }
+        quorum.join();
+        if(accepted.get() < needed)
+            throw new RemoteException("Request " + LamportClock.toString(req.getStamp()) + " was accepted by " + (accepted.get() + 1)
+                + " of " + (sends.size() + 1) + " servers, no majority");
+    }
+
+    /**
+     * Send a sequenced request to every peer
+     * @param req The request
+     * @param wait Whether to wait for every peer to receive it
+     * @return [ArrayList<CompletableFuture<Boolean>>] The deliveries, each completing with whether the peer accepted it
+     */
+    private ArrayList<CompletableFuture<Boolean>> broadcast(Request req, boolean wait) {
+        ArrayList<CompletableFuture<Boolean>> sends = new ArrayList<CompletableFuture<Boolean>>();
+        for(int i = 0; i < server.peerServers.length; i++) {
+            IBankServer p = server.peerServers[i];
+            int id = server.peerIds[i];
+            sends.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    Response res = p.deliver(req);
+                    if(res.getType() != Response.Type.NACK)
+                        return true;
+                    System.out.println("Server-" + id + " rejected " + LamportClock.toString(req.getStamp()) + " from an older epoch");
+                    observe(res.getStamp());
+                    return false;
+                } catch(RemoteException e) {
+                    System.out.println("Could not deliver " + LamportClock.toString(req.getStamp()) + " to Server-" + id + ": " + e.getMessage());
+                    return false;
+                }
+            }, server.peerExecutor));
+        }
+        if(wait)
+            CompletableFuture.allOf(sends.toArray(new CompletableFuture<?>[0])).join();
+        return sends;
+    }
+
+    /**
+     * [Replica] Receive a sequenced request and apply every request that is now next in sequence, unless it was
+     * numbered in an older epoch than the newest one seen
+     * @param req The sequenced request
+     * @return [Response] An ACK carrying the request's stamp, or a NACK carrying the newest epoch as its stamp
+     */
+    public Response deliver(Request req) throws RemoteException {
+        if(!observe(req.getEpoch()))
+            return (new Response()).ofType(Response.Type.NACK).withStamp(epoch.get());
+        if(!accept(req))
+            throw new RemoteException("Server-" + server.getId() + " could not log " + LamportClock.toString(req.getStamp()));
+        return (new Response()).ofType(Response.Type.ACK).withStamp(req.getStamp());
+    }
+
+    /**
+     * Log and queue a sequenced request, then apply every request that is now next in sequence. Under majority
+     * commit the request is accepted once logged and queued and applied in the background, so a slow replica
+     * acknowledges it without first applying everything before it.
+     * @param req The sequenced request
+     * @return [boolean] Whether the request was accepted, false if it could not be logged
+     */
+    private boolean accept(Request req) {
+        remember(req);
+        record(req);
+        if(seq(req) > appliedSeq) {
+            if(log != null) {
+                try {
+                    log.append(req, appliedSeq - RECENT);
+                } catch(IOException e) {
+                    System.out.println("Error writing sequence log: " + e);
+                    return false;
+                }
+            }
+            server.addRequestInSequence(req);
+        }
+        if(majority)
+            server.peerExecutor.execute(this::drain);
+        else
+            drain();
+        return true;
+    }
+
+    /**
+     * Apply queued requests for as long as the head of the queue is the next sequence number. Only one thread
+     * applies at a time; a thread that finds another one applying leaves the work to it.
+     */
+    private void drain() {
+        while(true) {
+            if(!applyLock.tryLock())
+                return;
+            try {
+                Request head;
+                while((head = server.requestQueue.peek()) != null) {
+                    long s = seq(head);
+                    // Already applied, delivered more than once
+                    if(s <= appliedSeq) {
+                        server.requestQueue.remove(head.getStamp());
+                        continue;
+                    }
+                    if(s != appliedSeq + 1)
+                        break;
+                    Request[] window = window(s);
+                    if(window.length > 1) {
+                        Response[] responses = server.executeWindow(window);
+                        appliedSeq = s + window.length - 1;
+                        for(int i = 0; i < window.length; i++) {
+                            complete(window[i], responses[i]);
+                        }
+                        continue;
+                    }
+                    Response res = server.executeDelivered(head);
+                    appliedSeq = s + span(head) - 1;
+                    complete(head, res);
+                }
+            } finally {
+                applyLock.unlock();
+            }
+            // Re-check in case a request arrived after the last check but before the lock was released
+            Request head = server.requestQueue.peek();
+            if(head == null || seq(head) > appliedSeq + 1) {
+                if(majority)
+                    checkGap(head != null);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Collect the requests that follow each other without a gap from the head of the queue, to be applied together.
+     * Halts and batches end a window, they are applied on their own.
+     * @param first The sequence number of the head
+     * @return [Request[]] The requests, empty or a single one when execution is serial
+     */
+    private Request[] window(long first) {
+        if(!server.scheduler.isParallel())
+            return new Request[0];
+        Request[] ready = server.requestQueue.peek(WINDOW);
+        int n = 0;
+        while(n < ready.length && seq(ready[n]) == first + n && span(ready[n]) == 1
+                && ready[n].getType() != Request.Type.HALT && ready[n].getType() != Request.Type.BATCH) {
+            n++;
+        }
+        return Arrays.copyOf(ready, n);
+    }
+
+    /**
+     * Hand the response of an applied request to the thread waiting for it, if this server received it
+     * @param req The request
+     * @param res The response
+     */
+    private void complete(Request req, Response res) {
+        CompletableFuture<Response> done = pending.get(req.getId());
+        if(done != null)
+            done.complete(res);
+    }
+
+    /**
+     * Under majority commit a replica may miss deliveries without any of its own writes waiting on them, so fetch
+     * the missing requests in the background once a gap has stayed open for `queueWaitTimeout`
+     * @param gap Whether requests are held back behind a missing sequence number
+     */
+    private void checkGap(boolean gap) {
+        if(!gap) {
+            gapSince = 0;
+            return;
+        }
+        long now = System.nanoTime();
+        if(gapSince == 0) {
+            gapSince = now;
+            return;
+        }
+        long timeout = server.getQueueWaitTimeout();
+        if(now - gapSince < TimeUnit.MILLISECONDS.toNanos(timeout > 0 ? timeout : 1000) || !catchingUp.compareAndSet(false, true))
+            return;
+        server.peerExecutor.execute(() -> {
+            try {
+                catchUp();
+            } finally {
+                gapSince = 0;
+                catchingUp.set(false);
+            }
+        });
+    }
+
+    /**
+     * Note an epoch carried by a request, a fetch or a rejection. A newer epoch means another server has taken over
+     * as the sequencer: follow it, and stop numbering requests if this server was the sequencer.
+     * @param e The packed epoch
+     * @return [boolean] Whether the epoch is at least the newest one seen
+     */
+    private boolean observe(long e) {
+        long seen = epoch.get();
+        while(e > seen) {
+            if(epoch.compareAndSet(seen, e)) {
+                for(int i = 0; i < candidates.length; i++) {
+                    if(candidates[i] == LamportClock.serverId(e))
+                        current = i;
+                }
+                // Only a sequencer waits for the lock, a server taking over checks the epoch again once it leads
+                if(leading) {
+                    sequenceLock.lock();
+                    try {
+                        if(leading && leaderEpoch < e) {
+                            leading = false;
+                            System.out.println("Server-" + server.getId() + " is no longer the sequencer, Server-" + LamportClock.serverId(e) + " took over");
+                        }
+                    } finally {
+                        sequenceLock.unlock();
+                    }
+                }
+                return true;
+            }
+            seen = epoch.get();
+        }
+        return e == seen;
+    }
+
+    /**
+     * Remember a delivered request
+     * @param req The sequenced request
+     */
+    private void remember(Request req) {
+        recentLock.lock();
+        try {
+            recent.put(req.getId(), req);
+        } finally {
+            recentLock.unlock();
+        }
+    }
+
+    /**
+     * Note that a request has been numbered, and forget the ids its server will not send again
+     * @param req The sequenced request
+     */
+    private void record(Request req) {
+        // SKIP requests have negative ids, no server sends them
+        if(req.getId() <= 0)
+            return;
+        ConcurrentSkipListMap<Long, Request> ids = numbered.computeIfAbsent(LamportClock.serverId(req.getId()),
+            k -> new ConcurrentSkipListMap<Long, Request>());
+        ids.put(req.getId(), req);
+        if(req.getOldestId() > 0)
+            ids.headMap(req.getOldestId()).clear();
+    }
+
+    /**
+     * Find a numbered request by its id
+     * @param id The request id
+     * @return [Request] The sequenced request, or null if it has not been numbered
+     */
+    private Request numbered(long id) {
+        ConcurrentSkipListMap<Long, Request> ids = numbered.get(LamportClock.serverId(id));
+        return ids == null ? null : ids.get(id);
+    }
+
+    /**
+     * [Replica] Get the delivered requests after a stamp from the sequence log, or the recently delivered ones without
+     * it, first raising the newest epoch seen to the caller's
+     * @param after The stamp, exclusive
+     * @param e The caller's epoch
+     * @return [Request] A BATCH request holding them, in sequence order, carrying the newest epoch seen
+     */
+    public Request fetch(long after, long e) {
+        observe(e);
+        if(log != null) {
+            try {
+                return (new Request()).ofType(Request.Type.BATCH).withBatch(log.after(LamportClock.timestamp(after))).withEpoch(epoch.get());
+            } catch(IOException ex) {
+                System.out.println("Error reading sequence log, fetching recent requests: " + ex);
+            }
+        }
+        TreeMap<Long, Request> found = new TreeMap<Long, Request>();
+        recentLock.lock();
+        try {
+            for(Request r : recent.values()) {
+                if(r.getStamp() > after)
+                    found.put(r.getStamp(), r);
+            }
+        } finally {
+            recentLock.unlock();
+        }
+        return (new Request()).ofType(Request.Type.BATCH).withBatch(found.values().toArray(new Request[0])).withEpoch(epoch.get());
+    }
+
+    /**
+     * Fetch the requests this server is missing from the sequencer, failing over if it cannot be reached
+     */
+    private void catchUp() {
+        int id = getSequencerId();
+        if(id == server.getId())
+            return;
+        try {
+            Request batch = peer(id).fetch(LamportClock.pack((int) appliedSeq, tag), epoch.get());
+            // A sequencer that has been replaced may hold requests the new one numbered differently
+            if(!observe(batch.getEpoch()))
+                return;
+            for(Request r : batch.getBatch()) {
+                if(!accept(r))
+                    return;
+            }
+        } catch(RemoteException e) {
+            System.out.println("Sequencer Server-" + id + " failed: " + e.getMessage());
+            if(resolve() == server.getId()) {
+                sequenceLock.lock();
+                try {
+                    if(!leading && !takeOver())
+                        System.out.println("Server-" + server.getId() + " could not take over, Server-" + getSequencerId() + " did");
+                } finally {
+                    sequenceLock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Become the sequencer - caller holds `sequenceLock`. Start a new epoch, collect the sequenced requests every
+     * reachable server holds beyond what this server has applied, which also fences the previous sequencer on those
+     * servers, fill the gaps no reachable server received with SKIP requests, send them all to every server in the
+     * new epoch, and continue numbering after the highest sequence number found.
+     * @return [boolean] Whether this server is now the sequencer, false if a server has started a newer epoch
+     */
+    private boolean takeOver() {
+        long mine = LamportClock.pack(LamportClock.timestamp(epoch.get()) + 1, server.getId());
+        long after = LamportClock.pack((int) appliedSeq, tag);
+        TreeMap<Long, Request> found = new TreeMap<Long, Request>();
+        for(Request r : fetch(after, mine).getBatch()) {
+            found.put(seq(r), r);
+        }
+        for(int i = 0; i < server.peerServers.length; i++) {
+            try {
+                Request batch = server.peerServers[i].fetch(after, mine);
+                observe(batch.getEpoch());
+                for(Request r : batch.getBatch()) {
+                    // A request numbered in a newer epoch replaces one numbered in an older epoch
+                    Request held = found.get(seq(r));
+                    if(held == null || held.getEpoch() <= r.getEpoch())
+                        found.put(seq(r), r);
+                }
+            } catch(RemoteException e) {
+                // Unreachable servers are left behind
+            }
+        }
+        ArrayList<Request> resend = new ArrayList<Request>();
+        long next = appliedSeq + 1;
+        Iterator<Request> it = found.values().iterator();
+        while(it.hasNext()) {
+            Request r = it.next();
+            if(seq(r) < next)
+                continue;
+            if(seq(r) > next)
+                resend.add(skip(next, (int) (seq(r) - next)));
+            resend.add(r);
+            next = seq(r) + span(r);
+        }
+        lastSeq = Math.max(lastSeq, next - 1);
+        leaderEpoch = mine;
+        leading = true;
+        if(epoch.get() != mine) {
+            leading = false;
+            return false;
+        }
+        System.out.println("Server-" + server.getId() + " is now the sequencer in epoch " + LamportClock.toString(mine) + ", continuing after " + lastSeq);
+        for(Request r : resend) {
+            r.withEpoch(mine);
+            broadcast(r, false);
+            accept(r);
+        }
+        return true;
+    }
+
+    /**
+     * Create a request that takes up sequence numbers no server received
+     * @param first The first sequence number
+     * @param count The number of sequence numbers
+     * @return [Request] The SKIP request
+     */
+    private Request skip(long first, int count) {
+        // Client request ids are positive, so a negative id can never collide with one
+        return (new Request()).ofType(Request.Type.SKIP).withAmount(count).withStamp(LamportClock.pack((int) first, tag))
+            .withId(LamportClock.pack((int) first, 0) | Long.MIN_VALUE).withOriginId(server.getId());
+    }
+}
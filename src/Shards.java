@@ -0,0 +1,120 @@
+/**
+ * @file src/Shards.java
+ * @brief Splits the accounts between groups of servers, set with a <shard> element inside each <server> of the
+ *          configuration file. Servers with the same shard number form a replica group that stores and orders only the
+ *          accounts its shard owns, so adding shards adds capacity instead of only adding replicas. Accounts are
+ *          assigned to shards by hash (uid modulo the number of shards, the default) or by range of
+ *          <shardRangeSize> uids each, chosen with <shardBy>. Servers without a <shard> element belong to shard 0,
+ *          so a configuration without any is a single group holding every account.
+ * @created 2024-03-30
+ * @author Jamison Grudem (grude013)
+ *
+ * @grace_days Using 2 grace days
+ */
+
+package src;
+
+import java.util.ArrayList;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+public class Shards {
+
+    // Shard of each server, by its index in the configuration file
+    private int[] serverShard;
+    // Number of shards
+    private int count;
+    // Whether accounts are assigned by range instead of by hash
+    private boolean byRange;
+    // Number of uids in each range, when assigning by range
+    private int rangeSize;
+
+    /**
+     * Initialize a new Shards
+     * @param serverShard The shard of each server, by index
+     * @param byRange Whether accounts are assigned by range instead of by hash
+     * @param rangeSize The number of uids in each range
+     */
+    private Shards(int[] serverShard, boolean byRange, int rangeSize) {
+        this.serverShard = serverShard;
+        this.byRange = byRange;
+        this.rangeSize = Math.max(1, rangeSize);
+        for(int s : serverShard) {
+            count = Math.max(count, s + 1);
+        }
+    }
+
+    /**
+     * Read the shards from the configuration file
+     * @param configDoc The parsed configuration file
+     * @param config The configuration
+     * @return [Shards] The shards, or null when every server is in one shard
+     */
+    public static Shards load(Document configDoc, Config config) {
+        NodeList servers = configDoc.getElementsByTagName("server");
+        int[] serverShard = new int[servers.getLength()];
+        for(int i = 0; i < serverShard.length; i++) {
+            NodeList shard = ((Element) servers.item(i)).getElementsByTagName("shard");
+            serverShard[i] = shard.getLength() == 0 ? 0 : Integer.parseInt(shard.item(0).getTextContent().trim());
+        }
+        Shards shards = new Shards(serverShard, config.getString("shardBy", "hash").equalsIgnoreCase("range"),
+            config.getInt("shardRangeSize", 10));
+        return shards.count > 1 ? shards : null;
+    }
+
+    /**
+     * Get the number of shards
+     * @return [int] The shard count
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * Get the number of servers in the configuration
+     * @return [int] The server count
+     */
+    public int servers() {
+        return serverShard.length;
+    }
+
+    /**
+     * Get the shard of a server
+     * @param serverId The server id
+     * @return [int] The shard
+     */
+    public int ofServer(int serverId) {
+        return serverShard[serverId];
+    }
+
+    /**
+     * Get the shard that owns an account
+     * @param uid The account id
+     * @return [int] The shard
+     */
+    public int ofAccount(int uid) {
+        if(byRange)
+            return Math.min(Math.max(uid - 1, 0) / rangeSize, count - 1);
+        return Math.floorMod(uid, count);
+    }
+
+    /**
+     * Get the servers in a shard
+     * @param shard The shard
+     * @return [int[]] The server ids, in configuration order
+     */
+    public int[] members(int shard) {
+        ArrayList<Integer> ids = new ArrayList<Integer>();
+        for(int i = 0; i < serverShard.length; i++) {
+            if(serverShard[i] == shard)
+                ids.add(i);
+        }
+        int[] members = new int[ids.size()];
+        for(int i = 0; i < members.length; i++) {
+            members[i] = ids.get(i);
+        }
+        return members;
+    }
+}
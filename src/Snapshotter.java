@@ -0,0 +1,337 @@
+/**
+ * @file src/Snapshotter.java
+ * @brief Takes periodic snapshots of a server's accounts in the background and restores them on restart. A snapshot
+ *          records every balance as of a cut in the write-ahead log, so a restarted server loads the latest snapshot and
+ *          replays only the log records after the cut. The cut is an lsn, the only boundary between what the snapshot
+ *          holds and what is replayed: records are not logged in clock order under parallel or dependency execution,
+ *          so no clock separates them. The clocks kept with the cut only tell a restarted server where to continue.
+ *
+ *          Taking a snapshot does not stop request execution. Requests are applied and logged while holding a shared
+ *          lock, and the snapshot holds it exclusively only for the moment it takes to note the last logged lsn (the
+ *          cut). From then until the snapshot is written, a request saves the pre-cut balance of each account it
+ *          touches before changing it (copy-on-write), and the snapshot writes the saved balance when there is one.
+ *
+ *          The snapshot also keeps the cross-shard transfers the shard holds, see `TransferHolds`, copied at the cut so
+ *          they match the balances. Replaying the log applies the phases logged after the cut to them.
+ *
+ *          File layout: MAGIC int, VERSION int, cut lsn long, clock of the record at the cut lsn long, highest clock
+ *              logged up to the cut long, then for each account a
+ *              1 byte, uid int and balance long, then a 0 byte, the number of accounts int, the transfer holds as
+ *              written by `TransferHolds.write`, and a CRC32 of everything before it long
+ * @created 2024-03-30
+ * @author Jamison Grudem (grude013)
+ *
+ * @grace_days Using 2 grace days
+ */
+
+package src;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+public class Snapshotter {
+
+    // Identifies a snapshot file, the characters 'SNAP'
+    public static final int MAGIC = 0x534e4150;
+    // Snapshot file format version
+    public static final int VERSION = 4;
+    // Pre-cut balance of an account created after the cut, which is left out of the snapshot
+    private static final long ABSENT = Long.MIN_VALUE;
+
+    // The accounts to snapshot
+    private AccountStore accounts;
+    // The cross-shard transfers the shard holds
+    private TransferHolds holds;
+    // The write-ahead log the snapshot is cut from
+    private WriteAheadLog wal;
+    // Path of the write-ahead log file, read during recovery
+    private Path walPath;
+    // Path of the snapshot file
+    private Path path;
+    // ms between snapshots, 0 disables periodic snapshots
+    private long interval;
+    // Held shared while a request is applied and logged, and exclusively to take the cut
+    private StampedLock cutLock = new StampedLock();
+    // Pre-cut balances of the accounts changed since the cut, null when no snapshot is being taken
+    private volatile ConcurrentHashMap<Integer, Long> preImages;
+    // Only one snapshot is taken at a time
+    private final Object snapshotLock = new Object();
+    // After `recover`: the clock of the last record restored, by lsn, and the highest clock restored
+    private long recoveredClock, highestClock;
+
+    /**
+     * Initialize a new Snapshotter
+     * @param accounts The accounts to snapshot
+     * @param holds The cross-shard transfers the shard holds, saved with the accounts
+     * @param wal The write-ahead log
+     * @param walPath The path of the write-ahead log file
+     * @param path The path of the snapshot file
+     * @param interval ms between snapshots, 0 disables periodic snapshots
+     */
+    public Snapshotter(AccountStore accounts, TransferHolds holds, WriteAheadLog wal, Path walPath, Path path, long interval) {
+        this.accounts = accounts;
+        this.holds = holds;
+        this.wal = wal;
+        this.walPath = walPath;
+        this.path = path;
+        this.interval = interval;
+    }
+
+    /**
+     * Start taking snapshots periodically in the background
+     */
+    public void start() {
+        if(interval <= 0)
+            return;
+        Thread t = new Thread(() -> {
+            while(true) {
+                try {
+                    Thread.sleep(interval);
+                    snapshot();
+                } catch(InterruptedException e) {
+                    return;
+                } catch(IOException e) {
+                    System.out.println("Error writing snapshot " + path + ": " + e);
+                }
+            }
+        }, "snapshotter");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Called before a request is applied. Saves the pre-cut balance of the accounts it touches if a snapshot is
+     * being taken.
+     * @param req The request about to be applied
+     * @return [long] The stamp to pass to `endApply`
+     */
+    public long beginApply(Request req) {
+        long stamp = cutLock.readLock();
+        ConcurrentHashMap<Integer, Long> pre = preImages;
+        if(pre != null)
+            preserve(pre, req);
+        return stamp;
+    }
+
+    /**
+     * Called once a request has been applied and logged
+     * @param stamp The stamp returned by `beginApply`
+     */
+    public void endApply(long stamp) {
+        cutLock.unlockRead(stamp);
+    }
+
+    /**
+     * Save the pre-cut balance of every account a request touches, unless it is already saved
+     * @param pre The saved balances
+     * @param req The request
+     */
+    private void preserve(ConcurrentHashMap<Integer, Long> pre, Request req) {
+        switch(req.getType()) {
+            case CREATE_ACCOUNT:
+            case DEPOSIT:
+            case COMMIT:
+                preserve(pre, req.getUid());
+                break;
+            case TRANSFER:
+                preserve(pre, req.getFrom());
+                preserve(pre, req.getTo());
+                break;
+            case BATCH:
+                for(Request r : req.getBatch()) {
+                    preserve(pre, r);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Save the pre-cut balance of an account, unless it is already saved. The balance is read outside the map so the
+     * account store is never locked from inside a map update. Whichever save wins read the balance before any change
+     * made after the cut, because every change saves first.
+     * @param pre The saved balances
+     * @param uid The account id
+     */
+    private void preserve(ConcurrentHashMap<Integer, Long> pre, int uid) {
+        if(pre.containsKey(uid))
+            return;
+        pre.putIfAbsent(uid, accounts.contains(uid) ? accounts.get(uid) : ABSENT);
+    }
+
+    /**
+     * Take a snapshot and write it, replacing the previous snapshot once the new one is on disk
+     */
+    public void snapshot() throws IOException {
+        synchronized(snapshotLock) {
+            // Take the cut - no request is between being applied and being logged
+            ConcurrentHashMap<Integer, Long> pre = new ConcurrentHashMap<Integer, Long>();
+            long cutLsn, cutClock, cutHighest;
+            TransferHolds held;
+            long stamp = cutLock.writeLock();
+            try {
+                cutLsn = wal.getLastLsn();
+                cutClock = wal.getLastClock();
+                cutHighest = wal.getHighestClock();
+                held = holds.copy();
+                preImages = pre;
+            } finally {
+                cutLock.unlockWrite(stamp);
+            }
+
+            Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+            try {
+                CRC32 crc = new CRC32();
+                FileOutputStream file = new FileOutputStream(tmp.toFile());
+                try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(file, crc), 1 << 16))) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    out.writeLong(cutLsn);
+                    out.writeLong(cutClock);
+                    out.writeLong(cutHighest);
+                    int[] count = { 0 };
+                    IOException[] error = { null };
+                    accounts.forEach((uid, balance) -> {
+                        // A request that changed the account since the cut saved its pre-cut balance first
+                        Long saved = pre.putIfAbsent(uid, balance);
+                        long value = saved == null ? balance : saved;
+                        // The account has been written, so later changes no longer need saving
+                        pre.remove(uid);
+                        if(value == ABSENT || error[0] != null)
+                            return;
+                        try {
+                            out.writeByte(1);
+                            out.writeInt(uid);
+                            out.writeLong(value);
+                            count[0]++;
+                        } catch(IOException e) {
+                            error[0] = e;
+                        }
+                    });
+                    if(error[0] != null)
+                        throw error[0];
+                    out.writeByte(0);
+                    out.writeInt(count[0]);
+                    held.write(out);
+                    out.flush();
+                    out.writeLong(crc.getValue());
+                    out.flush();
+                    file.getFD().sync();
+                }
+            } finally {
+                preImages = null;
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            // The snapshot holds every record up to the cut, so the log no longer needs them
+            wal.truncate(cutLsn);
+        }
+    }
+
+    /**
+     * Restore the accounts from the latest snapshot and replay the write-ahead log records after its cut lsn. An
+     * account store that already holds every record up to an lsn (a ledger closed cleanly) keeps its balances and
+     * only has the records after that lsn replayed into it.
+     * @param heldLsn The lsn the account store already holds, -1 to restore it from the snapshot
+     * @return [boolean] True if the accounts were restored, false if there is no snapshot to restore from
+     */
+    public boolean recover(long heldLsn) throws IOException {
+        if(!Files.exists(path))
+            return false;
+        long cutLsn, clock, highest;
+        CRC32 crc = new CRC32();
+        try(DataInputStream in = new DataInputStream(new CheckedInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16), crc))) {
+            if(in.readInt() != MAGIC)
+                throw new IOException(path + " is not a snapshot");
+            int version = in.readInt();
+            if(version != VERSION)
+                throw new IOException(path + " has unsupported version " + version);
+            cutLsn = in.readLong();
+            clock = in.readLong();
+            highest = in.readLong();
+            if(heldLsn >= 0 && heldLsn < cutLsn)
+                throw new IOException("The accounts hold lsn " + heldLsn + ", before the cut of " + path + " at " + cutLsn);
+            int count = 0;
+            while(in.readByte() != 0) {
+                int uid = in.readInt();
+                long balance = in.readLong();
+                if(heldLsn < 0) {
+                    accounts.create(uid);
+                    accounts.addAndGet(uid, balance);
+                }
+                count++;
+            }
+            if(in.readInt() != count)
+                throw new IOException(path + " is incomplete");
+            holds.read(in);
+            long expected = crc.getValue();
+            if(in.readLong() != expected)
+                throw new IOException(path + " is corrupt");
+        }
+
+        // Replay the effects of the requests logged after the cut, those the accounts already hold only for the
+        // transfers they hold
+        this.recoveredClock = clock;
+        this.highestClock = highest;
+        WriteAheadLog.read(walPath, cutLsn, r -> {
+            recoveredClock = r.clock;
+            highestClock = Math.max(highestClock, r.clock);
+            if(r.lsn <= heldLsn) {
+                holds.replay(r, false);
+                return;
+            }
+            switch(r.type) {
+                case CREATE_ACCOUNT:
+                    accounts.create(r.uid);
+                    break;
+                case DEPOSIT:
+                    if(r.success)
+                        accounts.addAndGet(r.uid, r.amount);
+                    break;
+                case PREPARE:
+                case COMMIT:
+                case ABORT:
+                    holds.replay(r, true);
+                    break;
+                case TRANSFER:
+                    if(r.success) {
+                        accounts.addAndGet(r.from, -r.amount);
+                        accounts.addAndGet(r.to, r.amount);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Get the clock of the last record restored by `recover`, by lsn. In sequencer ordering records are logged in
+     * sequence order, so every request up to it has been restored.
+     * @return [long] The packed lamport clock, 0 if nothing was logged
+     */
+    public long getRecoveredClock() {
+        return recoveredClock;
+    }
+
+    /**
+     * Get the highest clock restored by `recover`, used only to continue the lamport clock above every logged request
+     * @return [long] The packed lamport clock, 0 if nothing was logged
+     */
+    public long getHighestClock() {
+        return highestClock;
+    }
+}
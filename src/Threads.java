@@ -0,0 +1,111 @@
+/**
+ * @file src/Threads.java
+ * @brief Creates the threads that handle requests, set with <threads> in the configuration file. "platform" (the
+ *          default) uses ordinary daemon threads. "virtual" runs every request handler, peer call, batch and client
+ *          worker on its own virtual thread, so a blocked request only costs a small heap object instead of an OS
+ *          thread and one JVM can hold a very large number of requests waiting for their turn in the queue. Virtual
+ *          threads need Java 21; they are looked up reflectively so the code still builds and runs on older JVMs,
+ *          which fall back to platform threads.
+ * @created 2024-03-30
+ * @author Jamison Grudem (grude013)
+ *
+ * @grace_days Using 2 grace days
+ */
+
+package src;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+public class Threads {
+
+    // Thread.ofVirtual(), null when the JVM has no virtual threads
+    private static final Method OF_VIRTUAL;
+    // Thread.Builder.name(String, long) and Thread.Builder.factory()
+    private static final Method BUILDER_NAME;
+    private static final Method BUILDER_FACTORY;
+    // Executors.newThreadPerTaskExecutor(ThreadFactory)
+    private static final Method PER_TASK_EXECUTOR;
+
+    static {
+        Method ofVirtual = null, name = null, factory = null, perTask = null;
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            name = builder.getMethod("name", String.class, long.class);
+            factory = builder.getMethod("factory");
+            perTask = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+        } catch(ReflectiveOperationException e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = name;
+        BUILDER_FACTORY = factory;
+        PER_TASK_EXECUTOR = perTask;
+    }
+
+    /**
+     * Check whether the JVM supports virtual threads
+     * @return [boolean] True on Java 21 and newer
+     */
+    public static boolean virtualAvailable() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Check whether virtual threads are configured, warning when the JVM cannot provide them
+     * @param config The configuration
+     * @return [boolean] True when virtual threads are configured and available
+     */
+    public static boolean isVirtual(Config config) {
+        if(!config.getString("threads", "platform").equalsIgnoreCase("virtual"))
+            return false;
+        if(!virtualAvailable()) {
+            System.out.println("Virtual threads need Java 21 or newer, using platform threads");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Get a factory for named threads
+     * @param name The thread name, virtual threads are numbered after it
+     * @param virtual Whether to create virtual threads
+     * @return [ThreadFactory] The factory
+     */
+    public static ThreadFactory factory(String name, boolean virtual) {
+        if(virtual && virtualAvailable()) {
+            try {
+                Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), name + "-", 0L);
+                return (ThreadFactory) BUILDER_FACTORY.invoke(builder);
+            } catch(ReflectiveOperationException e) {
+                throw new IllegalStateException("Cannot create virtual threads", e);
+            }
+        }
+        return r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * Get an executor that runs every task on a thread of its own. Virtual threads are created fresh for every task;
+     * platform threads are cached and reused once idle.
+     * @param name The thread name
+     * @param virtual Whether to use virtual threads
+     * @return [ExecutorService] The executor
+     */
+    public static ExecutorService perTask(String name, boolean virtual) {
+        if(virtual && virtualAvailable()) {
+            try {
+                return (ExecutorService) PER_TASK_EXECUTOR.invoke(null, factory(name, true));
+            } catch(ReflectiveOperationException e) {
+                throw new IllegalStateException("Cannot create virtual threads", e);
+            }
+        }
+        return Executors.newCachedThreadPool(factory(name, false));
+    }
+}
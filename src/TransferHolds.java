@@ -0,0 +1,337 @@
+/**
+ * @file src/TransferHolds.java
+ * @brief The part a shard plays in the two-phase commit of cross-shard transfers. The coordinating server sends each
+ *          phase to both shards as an ordinary request, ordered within the shard like any other write:
+ *              PREPARE - the source shard reserves the amount if the account can cover it, without changing its
+ *                        visible balance, and the destination shard checks that the account exists and holds it;
+ *                        each votes with its success
+ *              COMMIT  - sent once both voted yes: the source takes the reserved amount out, the destination adds it
+ *              ABORT   - releases what PREPARE reserved and held, or marks a transfer the shard never prepared as
+ *                        aborted, so a PREPARE that arrives late votes no
+ *          A reserved amount still counts in the balance that reads see, but no withdrawal may use it. Each phase is
+ *          applied once per transfer, however many times it is sent: a repeated phase only returns the outcome of the
+ *          first one.
+ *
+ *          Every phase carries the lowest stamp of the transfers its coordinator has not finished. Its coordinator
+ *          never sends a transfer below it again, so the shard forgets the decided transfers of that coordinator
+ *          below it, and the holds only grow with the transfers in flight. A PREPARE below it can only be a late copy
+ *          of one whose transfer has finished, so it votes no without holding anything.
+ * @created 2024-03-30
+ * @author Jamison Grudem (grude013)
+ *
+ * @grace_days Using 2 grace days
+ */
+
+package src;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+public class TransferHolds {
+
+    // Decisions a shard has applied for a transfer
+    private static final byte OPEN = 0;
+    private static final byte COMMITTED = 1;
+    private static final byte ABORTED = 2;
+
+    /**
+     * What the shard holds for one transfer
+     */
+    private static class Hold {
+        // The transfer's stamp
+        long parent;
+        // The account of this shard, and the amount
+        int uid, amount;
+        // Whether the account is the source of the transfer
+        boolean source;
+        // Whether the shard voted yes
+        boolean prepared;
+        // The decision applied, OPEN until then
+        byte decision;
+
+        Hold(long parent, int uid, int amount, boolean source, boolean prepared, byte decision) {
+            this.parent = parent;
+            this.uid = uid;
+            this.amount = amount;
+            this.source = source;
+            this.prepared = prepared;
+            this.decision = decision;
+        }
+
+        Hold copy() {
+            return new Hold(parent, uid, amount, source, prepared, decision);
+        }
+    }
+
+    // The accounts of the shard
+    private AccountStore accounts;
+    // The holds by the id of the coordinating server, then by transfer stamp. Phases on one account are applied one
+    // at a time, and every phase of a transfer in a shard is on the same account.
+    private ConcurrentHashMap<Integer, ConcurrentSkipListMap<Long, Hold>> holds = new ConcurrentHashMap<Integer, ConcurrentSkipListMap<Long, Hold>>();
+    // The oldest transfer each coordinator had not finished, as carried by the last of its phases applied
+    private ConcurrentHashMap<Integer, Long> floors = new ConcurrentHashMap<Integer, Long>();
+    // Amount reserved in each source account by prepared transfers
+    private ConcurrentHashMap<Integer, Long> reserved = new ConcurrentHashMap<Integer, Long>();
+
+    /**
+     * Initialize the holds of a shard
+     * @param accounts The accounts of the shard
+     */
+    public TransferHolds(AccountStore accounts) {
+        this.accounts = accounts;
+    }
+
+    /**
+     * Get the holds of a transfer's coordinator
+     * @param parent The transfer's stamp
+     * @return [ConcurrentSkipListMap<Long, Hold>] The coordinator's holds
+     */
+    private ConcurrentSkipListMap<Long, Hold> of(long parent) {
+        return holds.computeIfAbsent(LamportClock.serverId(parent), k -> new ConcurrentSkipListMap<Long, Hold>());
+    }
+
+    /**
+     * Forget the decided transfers a coordinator has finished
+     * @param req A phase of one of its transfers
+     */
+    private void prune(Request req) {
+        if(req.getOldestTransfer() == 0)
+            return;
+        floors.merge(LamportClock.serverId(req.getParent()), req.getOldestTransfer(), Math::max);
+        Iterator<Hold> it = of(req.getParent()).headMap(req.getOldestTransfer()).values().iterator();
+        while(it.hasNext()) {
+            if(it.next().decision != OPEN)
+                it.remove();
+        }
+    }
+
+    /**
+     * Get the part of an account's balance no prepared transfer has reserved
+     * @param uid The account id
+     * @return [long] The balance a withdrawal may use
+     */
+    public long available(int uid) {
+        return accounts.get(uid) - reserved.getOrDefault(uid, 0L);
+    }
+
+    /**
+     * Change the amount reserved in an account
+     * @param uid The account id
+     * @param delta The amount to add to the reservation
+     */
+    private void reserve(int uid, long delta) {
+        reserved.merge(uid, delta, (a, b) -> a + b == 0 ? null : a + b);
+    }
+
+    /**
+     * Apply a PREPARE: vote on the transfer, reserving the amount in the source account or holding the destination
+     * account when voting yes
+     * @param req The PREPARE request, its uid the account of this shard
+     * @param decide Whether to record the vote in the request, for replicas that must apply the same one
+     * @return [Response] The vote as its success, repeated if the shard had already voted or decided
+     */
+    public Response prepare(Request req, boolean decide) {
+        prune(req);
+        ConcurrentSkipListMap<Long, Hold> held = of(req.getParent());
+        Hold hold = held.get(req.getParent());
+        if(hold != null)
+            return (new Response()).ofType(Response.Type.PREPARE).withSuccess(hold.prepared && hold.decision != ABORTED)
+                .withStamp(req.getStamp()).asRepeated();
+        if(req.getParent() < floors.getOrDefault(LamportClock.serverId(req.getParent()), 0L))
+            return (new Response()).ofType(Response.Type.PREPARE).withSuccess(false).withStamp(req.getStamp()).asRepeated();
+        boolean source = req.getUid() == req.getFrom();
+        boolean vote;
+        // Vote as the ordering server decided, deposits it saw may not have arrived here yet
+        if(req.hasOutcome())
+            vote = req.getOutcome();
+        else {
+            vote = accounts.contains(req.getUid()) && (!source || available(req.getUid()) >= req.getAmount());
+            if(decide)
+                req.withOutcome(vote);
+        }
+        if(vote && source)
+            reserve(req.getUid(), req.getAmount());
+        held.put(req.getParent(), new Hold(req.getParent(), req.getUid(), req.getAmount(), source, vote, OPEN));
+        return (new Response()).ofType(Response.Type.PREPARE).withSuccess(vote).withStamp(req.getStamp());
+    }
+
+    /**
+     * Apply a COMMIT: take the reserved amount out of the source account, or add it to the destination account
+     * @param req The COMMIT request
+     * @return [Response] Successful if the transfer is committed here, repeated if it already was
+     */
+    public Response commit(Request req) {
+        prune(req);
+        Hold hold = of(req.getParent()).get(req.getParent());
+        if(hold == null || hold.decision != OPEN || !hold.prepared)
+            return (new Response()).ofType(Response.Type.COMMIT).withSuccess(hold != null && hold.decision == COMMITTED)
+                .withStamp(req.getStamp()).asRepeated();
+        move(hold);
+        return (new Response()).ofType(Response.Type.COMMIT).withSuccess(true).withStamp(req.getStamp());
+    }
+
+    /**
+     * Apply an ABORT: release what the transfer reserved or held, or mark a transfer this shard has not prepared as
+     * aborted
+     * @param req The ABORT request
+     * @return [Response] Successful if the transfer is aborted here, repeated if it was already decided
+     */
+    public Response abort(Request req) {
+        prune(req);
+        ConcurrentSkipListMap<Long, Hold> held = of(req.getParent());
+        Hold hold = held.get(req.getParent());
+        if(hold == null) {
+            if(req.getParent() < floors.getOrDefault(LamportClock.serverId(req.getParent()), 0L))
+                return (new Response()).ofType(Response.Type.ABORT).withSuccess(true).withStamp(req.getStamp()).asRepeated();
+            held.put(req.getParent(), new Hold(req.getParent(), req.getUid(), req.getAmount(), req.getUid() == req.getFrom(), false, ABORTED));
+        }
+        else if(hold.decision != OPEN)
+            return (new Response()).ofType(Response.Type.ABORT).withSuccess(hold.decision == ABORTED).withStamp(req.getStamp()).asRepeated();
+        else
+            release(hold);
+        return (new Response()).ofType(Response.Type.ABORT).withSuccess(true).withStamp(req.getStamp());
+    }
+
+    /**
+     * Commit a prepared transfer
+     * @param hold The hold
+     */
+    private void move(Hold hold) {
+        if(hold.source) {
+            accounts.addAndGet(hold.uid, -hold.amount);
+            reserve(hold.uid, -hold.amount);
+        }
+        else
+            accounts.addAndGet(hold.uid, hold.amount);
+        hold.decision = COMMITTED;
+    }
+
+    /**
+     * Abort an undecided transfer
+     * @param hold The hold
+     */
+    private void release(Hold hold) {
+        if(hold.prepared && hold.source)
+            reserve(hold.uid, -hold.amount);
+        hold.decision = ABORTED;
+    }
+
+    /**
+     * Apply a logged phase again while recovering. Only phases that changed something are logged, so each record is
+     * applied as it was the first time.
+     * @param r The write-ahead log record
+     * @param balances Whether to change the balances, false for records the accounts already hold
+     */
+    public void replay(WriteAheadLog.Record r, boolean balances) {
+        ConcurrentSkipListMap<Long, Hold> held = of(r.parent());
+        Hold hold = held.get(r.parent());
+        switch(r.type) {
+            case PREPARE:
+                if(hold != null)
+                    return;
+                if(r.success && r.source)
+                    reserve(r.uid, r.amount);
+                held.put(r.parent(), new Hold(r.parent(), r.uid, r.amount, r.source, r.success, OPEN));
+                break;
+            case COMMIT:
+                if(hold == null || hold.decision != OPEN)
+                    return;
+                if(balances)
+                    move(hold);
+                else {
+                    if(hold.source)
+                        reserve(hold.uid, -hold.amount);
+                    hold.decision = COMMITTED;
+                }
+                break;
+            case ABORT:
+                if(hold == null)
+                    held.put(r.parent(), new Hold(r.parent(), r.uid, r.amount, r.source, false, ABORTED));
+                else if(hold.decision == OPEN)
+                    release(hold);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Copy the holds, called while no phase is being applied so the copy matches the balances
+     * @return [TransferHolds] The copy, without the accounts, only to be written
+     */
+    public TransferHolds copy() {
+        TransferHolds copied = new TransferHolds(null);
+        copied.floors.putAll(floors);
+        for(Map.Entry<Integer, ConcurrentSkipListMap<Long, Hold>> e : holds.entrySet()) {
+            ConcurrentSkipListMap<Long, Hold> held = new ConcurrentSkipListMap<Long, Hold>();
+            for(Hold hold : e.getValue().values()) {
+                held.put(hold.parent, hold.copy());
+            }
+            copied.holds.put(e.getKey(), held);
+        }
+        return copied;
+    }
+
+    /**
+     * Write the holds to a snapshot: the number of coordinators with a floor, then for each its id int and floor
+     * long, then the number of holds, then for each the transfer stamp long, uid int, amount int, source byte,
+     * prepared byte and decision byte
+     * @param out The snapshot
+     */
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(floors.size());
+        for(Map.Entry<Integer, Long> e : floors.entrySet()) {
+            out.writeInt(e.getKey());
+            out.writeLong(e.getValue());
+        }
+        out.writeInt(size());
+        for(ConcurrentSkipListMap<Long, Hold> held : holds.values()) {
+            for(Hold hold : held.values()) {
+                out.writeLong(hold.parent);
+                out.writeInt(hold.uid);
+                out.writeInt(hold.amount);
+                out.writeBoolean(hold.source);
+                out.writeBoolean(hold.prepared);
+                out.writeByte(hold.decision);
+            }
+        }
+    }
+
+    /**
+     * Load the holds written to a snapshot by `write`, replacing the current ones and recomputing the reservations
+     * @param in The snapshot
+     */
+    public void read(DataInputStream in) throws IOException {
+        holds.clear();
+        floors.clear();
+        reserved.clear();
+        int count = in.readInt();
+        for(int i = 0; i < count; i++) {
+            floors.put(in.readInt(), in.readLong());
+        }
+        count = in.readInt();
+        for(int i = 0; i < count; i++) {
+            Hold hold = new Hold(in.readLong(), in.readInt(), in.readInt(), in.readBoolean(), in.readBoolean(), in.readByte());
+            of(hold.parent).put(hold.parent, hold);
+            if(hold.prepared && hold.source && hold.decision == OPEN)
+                reserve(hold.uid, hold.amount);
+        }
+    }
+
+    /**
+     * Get the number of transfers the shard holds
+     * @return [int] The number of transfers, in flight or not yet forgotten
+     */
+    public int size() {
+        int n = 0;
+        for(Map.Entry<Integer, ConcurrentSkipListMap<Long, Hold>> e : holds.entrySet()) {
+            n += e.getValue().size();
+        }
+        return n;
+    }
+}
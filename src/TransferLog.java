@@ -0,0 +1,321 @@
+/**
+ * @file src/TransferLog.java
+ * @brief Log of the cross-shard transfers a server coordinates with a two-phase commit, see `TransferHolds`. A
+ *          transfer is logged, and forced to disk, before its PREPARE is sent. Its decision is forced before the
+ *          COMMIT or ABORT is sent, and the transfer is marked finished once both shards have answered it. A transfer
+ *          that is still pending, after a phase could not be reached or after a restart, is finished by sending its
+ *          decision again; one that was never decided is aborted, since a shard may have prepared it. Every phase
+ *          carries the stamp of its transfer and the shards apply it once, so a phase sent again is only answered.
+ *
+ *          Transfers are stamped in the order they begin, so every transfer below the oldest pending one is finished
+ *          and never sent again. Phases carry that stamp, and the shards forget the transfers below it.
+ *
+ *          Without a path the log is only kept in memory, so pending transfers are retried but lost on a restart.
+ *          Once no transfer is pending the file is emptied, and it is rewritten with only the pending transfers when
+ *          it grows past COMPACT_BYTES. The header keeps the highest transfer stamp emptied from the file, so a
+ *          restarted coordinator never gives a new transfer the stamp of one the shards have already applied.
+ *
+ *          File layout: MAGIC int, VERSION int, highest stamp of the transfers no longer in the file long, then
+ *              fixed-width records of
+ *              kind byte (1 begun, 2 finished, 3 committed, 4 aborted), transfer stamp long, from int, to int,
+ *              amount int, CRC32 of the preceding bytes int
+ * @created 2024-03-30
+ * @author Jamison Grudem (grude013)
+ *
+ * @grace_days Using 2 grace days
+ */
+
+package src;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.CRC32;
+
+public class TransferLog {
+
+    // Identifies a transfer log file, the characters 'XFER'
+    public static final int MAGIC = 0x58464552;
+    // Transfer log file format version
+    public static final int VERSION = 2;
+    // Size of the file header
+    public static final int HEADER_BYTES = 16;
+    // Size of one record
+    public static final int RECORD_BYTES = 25;
+    // Size past which the file is rewritten with only the pending transfers
+    private static final long COMPACT_BYTES = 1 << 20;
+    // Record kinds
+    private static final byte BEGUN = 1;
+    private static final byte FINISHED = 2;
+    private static final byte COMMITTED = 3;
+    private static final byte ABORTED = 4;
+
+    // The log file, null when the log is only kept in memory
+    private Path path;
+    private FileChannel channel;
+    // The pending transfers by stamp, as TRANSFER requests carrying their stamp as parent
+    private ConcurrentSkipListMap<Long, Request> pending = new ConcurrentSkipListMap<Long, Request>();
+    // Decisions of the pending transfers that have one, true to commit
+    private ConcurrentHashMap<Long, Boolean> decisions = new ConcurrentHashMap<Long, Boolean>();
+    // Guards the file
+    private final Object lock = new Object();
+    // Held while a transfer is stamped and added to `pending`, so the oldest pending stamp never goes back
+    private final Object stampLock = new Object();
+    // Reused to checksum records, guarded by `lock`
+    private CRC32 crc = new CRC32();
+    // Highest transfer stamp logged, in the file or before it was emptied
+    private volatile long highest;
+
+    /**
+     * Open a transfer log, creating it if it does not exist, and load the transfers left pending in it
+     * @param path The path of the log file, or null to keep the log only in memory
+     */
+    public TransferLog(Path path) throws IOException {
+        this.path = path;
+        if(path == null)
+            return;
+        if(path.getParent() != null)
+            Files.createDirectories(path.getParent());
+        this.channel = open(path, 0);
+        ByteBuffer floor = ByteBuffer.allocate(8);
+        channel.read(floor, HEADER_BYTES - 8);
+        this.highest = floor.flip().getLong();
+        // Replay the records, stopping at a torn write at the end of the file
+        long end = HEADER_BYTES;
+        ByteBuffer buf = ByteBuffer.allocate(RECORD_BYTES);
+        while(true) {
+            buf.clear();
+            if(channel.read(buf, end) < RECORD_BYTES)
+                break;
+            buf.flip();
+            crc.reset();
+            crc.update(buf.array(), 0, RECORD_BYTES - 4);
+            if(buf.getInt(RECORD_BYTES - 4) != (int) crc.getValue())
+                break;
+            byte kind = buf.get();
+            long stamp = buf.getLong();
+            highest = Math.max(highest, stamp);
+            if(kind == BEGUN)
+                pending.put(stamp, (new Request()).ofType(Request.Type.TRANSFER).from(buf.getInt()).to(buf.getInt())
+                    .withAmount(buf.getInt()).withParent(stamp));
+            else if(kind == FINISHED) {
+                pending.remove(stamp);
+                decisions.remove(stamp);
+            }
+            else
+                decisions.putIfAbsent(stamp, kind == COMMITTED);
+            end += RECORD_BYTES;
+        }
+        if(pending.isEmpty())
+            empty();
+        else
+            channel.truncate(end);
+    }
+
+    /**
+     * Open a log file, writing its header if it is new
+     * @param path The path of the log file
+     * @param floor The highest stamp of the transfers no longer in the file, for a new file
+     * @return [FileChannel] The file
+     */
+    private static FileChannel open(Path path, long floor) throws IOException {
+        FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        if(ch.size() < HEADER_BYTES) {
+            header.putInt(MAGIC).putInt(VERSION).putLong(floor).flip();
+            ch.truncate(0);
+            ch.write(header, 0);
+            ch.force(true);
+            return ch;
+        }
+        ch.read(header, 0);
+        header.flip();
+        if(header.getInt() != MAGIC)
+            throw new IOException(path + " is not a transfer log");
+        int version = header.getInt();
+        if(version != VERSION)
+            throw new IOException(path + " has unsupported version " + version);
+        return ch;
+    }
+
+    /**
+     * Write a record at the end of a log file - caller holds `lock`
+     * @param ch The log file
+     * @param kind The record kind
+     * @param transfer The transfer
+     */
+    private void write(FileChannel ch, byte kind, Request transfer) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(RECORD_BYTES);
+        buf.put(kind).putLong(transfer.getParent()).putInt(transfer.getFrom()).putInt(transfer.getTo()).putInt(transfer.getAmount());
+        crc.reset();
+        crc.update(buf.array(), 0, RECORD_BYTES - 4);
+        buf.putInt((int) crc.getValue()).flip();
+        long pos = ch.size();
+        while(buf.hasRemaining()) {
+            pos += ch.write(buf, pos);
+        }
+    }
+
+    /**
+     * Stamp a transfer and log it before its PREPARE is sent, waiting until it is on disk
+     * @param transfer The TRANSFER request, given its stamp as parent
+     * @param clock The clock to stamp it with
+     * @throws IOException If the transfer could not be logged, it is then not pending
+     */
+    public void begin(Request transfer, LamportClockManager clock) throws IOException {
+        synchronized(stampLock) {
+            transfer.withParent(clock.tickAndGet());
+            pending.put(transfer.getParent(), transfer);
+            highest = Math.max(highest, transfer.getParent());
+        }
+        if(path == null)
+            return;
+        synchronized(lock) {
+            try {
+                write(channel, BEGUN, transfer);
+                channel.force(false);
+            } catch(IOException e) {
+                pending.remove(transfer.getParent());
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Decide a transfer, waiting until the decision is on disk. The first decision stands, a transfer the retry
+     * aborted is not committed by the request that began it.
+     * @param transfer The transfer
+     * @param commit Whether both shards voted to commit it
+     * @return [boolean] The decision, true to commit
+     * @throws IOException If the decision could not be logged, the transfer is then still undecided
+     */
+    public boolean decide(Request transfer, boolean commit) throws IOException {
+        synchronized(lock) {
+            Boolean earlier = decisions.get(transfer.getParent());
+            if(earlier != null)
+                return earlier;
+            if(path != null) {
+                write(channel, commit ? COMMITTED : ABORTED, transfer);
+                channel.force(false);
+            }
+            decisions.put(transfer.getParent(), commit);
+            return commit;
+        }
+    }
+
+    /**
+     * Get the decision of a pending transfer
+     * @param transfer The transfer
+     * @return [Boolean] True to commit, false to abort, null if it is not decided
+     */
+    public Boolean decision(Request transfer) {
+        return decisions.get(transfer.getParent());
+    }
+
+    /**
+     * Get the lowest stamp of the transfers that have not finished. Phases sent by this server carry it, and the
+     * shards forget this server's transfers below it.
+     * @return [long] The stamp of the oldest pending transfer, or above every stamp given so far if none is pending
+     */
+    public long oldestPending() {
+        synchronized(stampLock) {
+            return pending.isEmpty() ? highest + 1 : pending.firstKey();
+        }
+    }
+
+    /**
+     * Mark a transfer finished once both shards have answered its decision. Not forced: a transfer that is lost from
+     * the log as finished is only decided again, which changes nothing.
+     * @param transfer The transfer
+     */
+    public void finish(Request transfer) throws IOException {
+        synchronized(stampLock) {
+            if(pending.remove(transfer.getParent()) == null)
+                return;
+        }
+        if(path == null) {
+            decisions.remove(transfer.getParent());
+            return;
+        }
+        synchronized(lock) {
+            decisions.remove(transfer.getParent());
+            if(pending.isEmpty())
+                empty();
+            else if(channel.size() > COMPACT_BYTES)
+                compact();
+            else
+                write(channel, FINISHED, transfer);
+        }
+    }
+
+    /**
+     * Empty the log, keeping the highest stamp logged in the header - caller holds `lock`, or the log is being opened
+     */
+    private void empty() throws IOException {
+        ByteBuffer floor = ByteBuffer.allocate(8).putLong(highest);
+        floor.flip();
+        channel.write(floor, HEADER_BYTES - 8);
+        channel.truncate(HEADER_BYTES);
+        channel.force(false);
+    }
+
+    /**
+     * Rewrite the log with only the pending transfers, replacing the file once the new one is on disk - caller holds
+     * `lock`
+     */
+    private void compact() throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.deleteIfExists(tmp);
+        FileChannel ch = open(tmp, highest);
+        for(Request transfer : pending.values()) {
+            write(ch, BEGUN, transfer);
+            Boolean commit = decisions.get(transfer.getParent());
+            if(commit != null)
+                write(ch, commit ? COMMITTED : ABORTED, transfer);
+        }
+        ch.force(false);
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel.close();
+        channel = ch;
+    }
+
+    /**
+     * Get the highest transfer stamp ever logged, a restarted coordinator's clock continues above it
+     * @return [long] The packed clock, 0 if no transfer was logged
+     */
+    public long getHighestStamp() {
+        return highest;
+    }
+
+    /**
+     * Get the transfers that have not finished
+     * @return [List<Request>] The pending TRANSFER requests, each carrying its stamp as parent
+     */
+    public List<Request> pending() {
+        return new ArrayList<Request>(pending.values());
+    }
+
+    /**
+     * Close the log, the pending transfers stay in it
+     */
+    public void close() {
+        if(channel == null)
+            return;
+        synchronized(lock) {
+            try {
+                channel.force(false);
+                channel.close();
+            } catch(IOException e) {
+                System.out.println("Error closing transfer log " + path + ": " + e);
+            }
+        }
+    }
+}
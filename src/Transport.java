@@ -0,0 +1,39 @@
+/**
+ * @file src/Transport.java
+ * @brief Chooses how clients and servers reach each other, set with <transport> in the configuration file. "rmi" (the
+ *          default) binds each BankServer in an RMI registry on its port. "nio" serves the same IBankServer calls from
+ *          a NioServer on that port instead, over persistent socket channels with many calls in flight at once.
+ * @created 2024-03-30
+ * @author Jamison Grudem (grude013)
+ *
+ * @grace_days Using 2 grace days
+ */
+
+package src;
+
+import java.rmi.Naming;
+
+public class Transport {
+
+    /**
+     * Check whether the NIO transport is configured
+     * @param config The configuration
+     * @return [boolean] True for NIO, false for RMI
+     */
+    public static boolean isNio(Config config) {
+        return config.getString("transport", "rmi").equalsIgnoreCase("nio");
+    }
+
+    /**
+     * Connect to a BankServer with the configured transport
+     * @param config The configuration
+     * @param host The hostname of the server
+     * @param port The port of the server
+     * @return [IBankServer] The connection to the server
+     */
+    public static IBankServer connect(Config config, String host, int port) throws Exception {
+        if(isNio(config))
+            return new NioClient(host, port, config.getLong("callTimeout", 60000));
+        return (IBankServer) Naming.lookup("//" + host + ":" + port + "/BankServer");
+    }
+}
@@ -0,0 +1,153 @@
+/**
+ * @file src/WireCodec.java
+ * @brief Frame format shared by NioServer and NioClient, the NIO transport for IBankServer calls. Every frame is
+ *          length-prefixed and carries a call id, so many calls can be in flight on one connection and their replies
+ *          can come back in any order. Requests and responses inside a frame use their Externalizable format.
+ *
+ *          Call frame:  length int, call id long, method byte, arguments
+ *          Reply frame: length int, call id long, status byte, result (OK) or error message (ERROR)
+ *          The length counts the bytes after the length field.
+ * @created 2024-03-30
+ * @author Jamison Grudem (grude013)
+ *
+ * @grace_days Using 2 grace days
+ */
+
+package src;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.nio.ByteBuffer;
+
+public class WireCodec {
+
+    // IBankServer methods
+    public static final byte GET_ID = 1;
+    public static final byte CLIENT_REQUEST = 2;
+    public static final byte SERVER_REQUEST = 3;
+    public static final byte SERVER_BATCH_REQUEST = 4;
+    public static final byte EXECUTE = 5;
+    public static final byte SEQUENCE = 6;
+    public static final byte DELIVER = 7;
+    public static final byte FETCH = 8;
+    public static final byte ACKNOWLEDGE = 9;
+    // Reply status
+    public static final byte OK = 0;
+    public static final byte ERROR = 1;
+    // Largest frame accepted, protects against a corrupt length
+    public static final int MAX_FRAME = 64 << 20;
+
+    /**
+     * Stream that Externalizable objects write their fields to, without Java serialization around them
+     */
+    public static class FrameOutput extends DataOutputStream implements ObjectOutput {
+        // The bytes written, with room for the frame length at the start
+        private ByteArrayOutputStream bytes;
+
+        /**
+         * Start a new frame
+         * @param callId The call id of the frame
+         */
+        public FrameOutput(long callId) throws IOException {
+            this(new ByteArrayOutputStream(128));
+            writeInt(0);
+            writeLong(callId);
+        }
+
+        private FrameOutput(ByteArrayOutputStream bytes) {
+            super(bytes);
+            this.bytes = bytes;
+        }
+
+        /**
+         * Objects are written with their own writeExternal
+         */
+        public void writeObject(Object o) {
+            throw new UnsupportedOperationException("Frames only hold Externalizable fields");
+        }
+
+        /**
+         * Finish the frame, filling in its length
+         * @return [ByteBuffer] The frame, ready to be written to a channel
+         */
+        public ByteBuffer toFrame() {
+            ByteBuffer frame = ByteBuffer.wrap(bytes.toByteArray());
+            frame.putInt(0, frame.capacity() - 4);
+            return frame;
+        }
+    }
+
+    /**
+     * Stream that Externalizable objects read their fields from
+     */
+    public static class FrameInput extends DataInputStream implements ObjectInput {
+
+        /**
+         * Read a frame, without its length field
+         * @param frame The frame bytes
+         */
+        public FrameInput(byte[] frame) {
+            super(new ByteArrayInputStream(frame));
+        }
+
+        /**
+         * Objects are read with their own readExternal
+         */
+        public Object readObject() {
+            throw new UnsupportedOperationException("Frames only hold Externalizable fields");
+        }
+    }
+
+    /**
+     * Write a request, which may be null
+     * @param out The frame
+     * @param req The request
+     */
+    public static void writeRequest(FrameOutput out, Request req) throws IOException {
+        out.writeBoolean(req != null);
+        if(req != null)
+            req.writeExternal(out);
+    }
+
+    /**
+     * Read a request written with `writeRequest`
+     * @param in The frame
+     * @return [Request] The request, or null
+     */
+    public static Request readRequest(FrameInput in) throws IOException {
+        if(!in.readBoolean())
+            return null;
+        Request req = new Request();
+        req.readExternal(in);
+        return req;
+    }
+
+    /**
+     * Write a response, which may be null
+     * @param out The frame
+     * @param res The response
+     */
+    public static void writeResponse(FrameOutput out, Response res) throws IOException {
+        out.writeBoolean(res != null);
+        if(res != null)
+            res.writeExternal(out);
+    }
+
+    /**
+     * Read a response written with `writeResponse`
+     * @param in The frame
+     * @return [Response] The response, or null
+     */
+    public static Response readResponse(FrameInput in) throws IOException {
+        if(!in.readBoolean())
+            return null;
+        Response res = new Response();
+        res.readExternal(in);
+        return res;
+    }
+}
@@ -0,0 +1,620 @@
+/**
+ * @file src/WriteAheadLog.java
+ * @brief Append-only log of the requests a server has executed. Every create, deposit and transfer is appended with
+ *          its lamport clock and outcome after it is applied and before the response is returned, so the log records
+ *          which clock-ordered requests changed the accounts. Appends go into an in-memory buffer and a background
+ *          writer thread writes everything buffered since its last write in one go (group commit), so many concurrent
+ *          requests share a single `force()` call. How long an append waits depends on the durability level:
+ *              NONE  - the writer writes records to the operating system but never forces them, appends never wait
+ *              ASYNC - the writer forces the log every `<walSyncInterval>` ms, appends never wait
+ *              SYNC  - every write is forced, and an append waits until its record is on disk
+ *          Once a snapshot holding every record up to an lsn is on disk, the writer drops those records from the front
+ *          of the log by copying the records after them into a new file that replaces it, so the log only grows with
+ *          the activity since the last snapshot.
+ *
+ *          File layout: MAGIC int, VERSION int, then fixed-width records of
+ *              lsn long, type byte, success byte, flags short, clock long (packed), uid int, from int, to int,
+ *              amount int, CRC32 of the preceding bytes int. A phase of a cross-shard transfer (PREPARE, COMMIT,
+ *              ABORT) is logged with the high and low half of its transfer's stamp in place of the from and to
+ *              account, and flag 1 set when its account is the source of the transfer.
+ * @created 2024-03-30
+ * @author Jamison Grudem (grude013)
+ *
+ * @grace_days Using 2 grace days
+ */
+
+package src;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+public class WriteAheadLog {
+
+    // Identifies a write-ahead log file, the characters 'WAL1'
+    public static final int MAGIC = 0x57414c31;
+    // Write-ahead log file format version
+    public static final int VERSION = 2;
+    // Size of the file header
+    public static final int HEADER_BYTES = 8;
+    // Size of one record
+    public static final int RECORD_BYTES = 40;
+
+    // How durable an appended record is before the append returns
+    public static enum Durability {
+        NONE,
+        ASYNC,
+        SYNC
+    }
+
+    /**
+     * A single logged request
+     */
+    public static class Record {
+        // Log sequence number, increasing by one per record
+        public long lsn;
+        // The request type
+        public Request.Type type;
+        // Whether the request succeeded
+        public boolean success;
+        // The packed lamport clock of the request
+        public long clock;
+        // Request parameters
+        public int uid, from, to, amount;
+        // Whether the account of a cross-shard transfer phase is the source of the transfer
+        public boolean source;
+
+        /**
+         * Get the stamp of the cross-shard transfer a PREPARE, COMMIT or ABORT record is a phase of
+         * @return [long] The packed clock
+         */
+        public long parent() {
+            return (long) from << 32 | (to & 0xffffffffL);
+        }
+    }
+
+    // Receives each record read from a log
+    public interface Visitor {
+        void visit(Record record);
+    }
+
+    // The log file, replaced by the writer when records are dropped from its front
+    private Path path;
+    private FileChannel channel;
+    // Lsn of the first record in the file, or of the next record appended if it holds none; only used by the writer
+    private long firstLsn;
+    // The durability level
+    private Durability durability;
+    // ms between forces in ASYNC mode
+    private long syncInterval;
+    // Guards the buffers and lsns. A lock rather than a monitor, so a virtual thread waiting for durability does not
+    // pin its carrier thread
+    private final ReentrantLock lock = new ReentrantLock();
+    // Signalled when records are appended, written or forced, and when the log closes
+    private final Condition changed = lock.newCondition();
+    // Buffer appends are written to, guarded by `lock`
+    private ByteBuffer pending = ByteBuffer.allocate(RECORD_BYTES * 1024);
+    // Buffer being written by the writer thread, swapped with `pending`
+    private ByteBuffer spare = ByteBuffer.allocate(RECORD_BYTES * 1024);
+    // Last lsn appended, guarded by `lock`
+    private long appendedLsn;
+    // Last lsn on disk, guarded by `lock`
+    private long durableLsn;
+    // Packed clock of the last record appended, by lsn, guarded by `lock`
+    private long lastClock;
+    // Highest packed clock appended, not in lsn order under parallel or dependency execution, guarded by `lock`
+    private long highestClock;
+    // Records up to this lsn are to be dropped from the front of the file, 0 when there is nothing to drop, guarded
+    // by `lock`
+    private long dropLsn;
+    // Reused to checksum records, guarded by `lock`
+    private CRC32 crc = new CRC32();
+    // Background writer
+    private Thread writer;
+    // Set once the log is closed
+    private volatile boolean closed = false;
+    // Why the writer stopped, null while it runs. Appends fail from then on instead of waiting for a write that will
+    // never happen. Guarded by `lock`
+    private IOException failure;
+
+    // Number of records appended
+    private AtomicLong appends = new AtomicLong(0);
+    // Number of logged requests, a batch counts once
+    private AtomicLong logged = new AtomicLong(0);
+    // Total and maximum time spent appending, including waiting for durability
+    private AtomicLong appendNanos = new AtomicLong(0);
+    private AtomicLong maxAppendNanos = new AtomicLong(0);
+    // Number of writes and forces made by the writer
+    private AtomicLong writes = new AtomicLong(0);
+    private AtomicLong syncs = new AtomicLong(0);
+
+    /**
+     * Open a write-ahead log, creating it if it does not exist. Records after the last complete record are discarded.
+     * @param path The path of the log file
+     * @param durability The durability level
+     * @param syncInterval ms between forces in ASYNC mode
+     */
+    public WriteAheadLog(Path path, Durability durability, long syncInterval) throws IOException {
+        this.path = path;
+        this.durability = durability;
+        this.syncInterval = Math.max(1, syncInterval);
+        if(path.getParent() != null)
+            Files.createDirectories(path.getParent());
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if(channel.size() < HEADER_BYTES) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).putInt(MAGIC).putInt(VERSION);
+            header.flip();
+            channel.truncate(0);
+            channel.write(header, 0);
+            channel.force(true);
+        }
+        checkHeader(channel);
+        // Continue after the last complete record, dropping a torn write at the end of the file
+        long end = HEADER_BYTES + (channel.size() - HEADER_BYTES) / RECORD_BYTES * RECORD_BYTES;
+        ByteBuffer buf = ByteBuffer.allocate(RECORD_BYTES);
+        Record last = null;
+        while(end > HEADER_BYTES && last == null) {
+            buf.clear();
+            channel.read(buf, end - RECORD_BYTES);
+            buf.flip();
+            last = decode(buf, crc);
+            if(last == null)
+                end -= RECORD_BYTES;
+        }
+        channel.truncate(end);
+        channel.position(end);
+        this.appendedLsn = last == null ? 0 : last.lsn;
+        this.firstLsn = last == null ? 1 : last.lsn - (end - HEADER_BYTES) / RECORD_BYTES + 1;
+        this.durableLsn = appendedLsn;
+        this.lastClock = last == null ? 0 : last.clock;
+        this.highestClock = lastClock;
+
+        this.writer = new Thread(this::runWriter, "wal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Check the header of a log file
+     * @param ch The log file
+     */
+    private static void checkHeader(FileChannel ch) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        ch.read(header, 0);
+        header.flip();
+        if(header.remaining() < HEADER_BYTES || header.getInt() != MAGIC)
+            throw new IOException("Not a write-ahead log");
+        int version = header.getInt();
+        if(version != VERSION)
+            throw new IOException("Unsupported write-ahead log version " + version);
+    }
+
+    /**
+     * Decode the record at the position of a buffer
+     * @param buf The buffer, with at least RECORD_BYTES remaining
+     * @param check Used to verify the checksum
+     * @return [Record] The record, or null if it is corrupt or incomplete
+     */
+    private static Record decode(ByteBuffer buf, CRC32 check) {
+        int start = buf.position();
+        check.reset();
+        check.update(buf.array(), start, RECORD_BYTES - 4);
+        if(buf.getInt(start + RECORD_BYTES - 4) != (int) check.getValue())
+            return null;
+        Record r = new Record();
+        r.lsn = buf.getLong();
+        r.type = Request.Type.values()[buf.get()];
+        r.success = buf.get() != 0;
+        r.source = (buf.getShort() & 1) != 0;
+        r.clock = buf.getLong();
+        r.uid = buf.getInt();
+        r.from = buf.getInt();
+        r.to = buf.getInt();
+        r.amount = buf.getInt();
+        buf.getInt();
+        return r;
+    }
+
+    /**
+     * Read the complete records of a log file with an lsn above a given one, in order. Records are fixed-width and
+     * numbered consecutively, so the reader seeks straight to the first wanted record.
+     * @param path The path of the log file
+     * @param afterLsn Records up to and including this lsn are skipped
+     * @param visitor Receives each record
+     */
+    public static void read(Path path, long afterLsn, Visitor visitor) throws IOException {
+        if(!Files.exists(path))
+            return;
+        try(FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            checkHeader(ch);
+            CRC32 check = new CRC32();
+            ByteBuffer buf = ByteBuffer.allocate(RECORD_BYTES * 4096);
+            // Find the lsn of the first record to work out where to start
+            ch.read(buf, HEADER_BYTES);
+            buf.flip();
+            if(buf.remaining() < RECORD_BYTES)
+                return;
+            Record first = decode(buf, check);
+            if(first == null)
+                return;
+            long readPos = HEADER_BYTES + Math.max(0, afterLsn + 1 - first.lsn) * RECORD_BYTES;
+            buf.clear();
+            while(true) {
+                int n = ch.read(buf, readPos);
+                if(n > 0)
+                    readPos += n;
+                buf.flip();
+                while(buf.remaining() >= RECORD_BYTES) {
+                    Record r = decode(buf, check);
+                    // Stop at a torn write at the end of the log
+                    if(r == null)
+                        return;
+                    if(r.lsn > afterLsn)
+                        visitor.visit(r);
+                }
+                buf.compact();
+                if(n <= 0)
+                    return;
+            }
+        }
+    }
+
+    /**
+     * Log an executed request and its outcome, waiting for it to be on disk in SYNC mode. Requests that do not change
+     * the accounts are ignored.
+     * @param req The executed request
+     * @param res The response from executing it
+     * @throws UncheckedIOException If the writer has failed, the request is then not durable
+     */
+    public void log(Request req, Response res) {
+        long start = System.nanoTime();
+        long lsn;
+        lock.lock();
+        try {
+            if(failure != null)
+                throw new UncheckedIOException("Write-ahead log " + path + " has failed", failure);
+            if(closed)
+                return;
+            long before = appendedLsn;
+            append(req, res);
+            if(appendedLsn == before)
+                return;
+            lsn = appendedLsn;
+            // Wake the writer
+            changed.signalAll();
+            if(durability == Durability.SYNC) {
+                while(durableLsn < lsn && !closed && failure == null) {
+                    changed.awaitUninterruptibly();
+                }
+                if(durableLsn < lsn && failure != null)
+                    throw new UncheckedIOException("Write-ahead log " + path + " has failed", failure);
+            }
+        } finally {
+            lock.unlock();
+        }
+        long elapsed = System.nanoTime() - start;
+        logged.incrementAndGet();
+        appendNanos.addAndGet(elapsed);
+        maxAppendNanos.accumulateAndGet(elapsed, Math::max);
+    }
+
+    /**
+     * Append the records of a request to the pending buffer - caller holds `lock`. A transfer phase that had already
+     * been applied changed nothing, so it is not logged.
+     * @param req The executed request
+     * @param res The response from executing it
+     */
+    private void append(Request req, Response res) {
+        if(res.isRepeated())
+            return;
+        switch(req.getType()) {
+            case CREATE_ACCOUNT:
+            case DEPOSIT:
+            case TRANSFER:
+            case PREPARE:
+            case COMMIT:
+            case ABORT:
+                break;
+            case BATCH:
+                Request[] batch = req.getBatch();
+                Response[] responses = res.getBatch();
+                for(int i = 0; i < batch.length; i++) {
+                    append(batch[i], responses[i]);
+                }
+                return;
+            default:
+                return;
+        }
+        if(pending.remaining() < RECORD_BYTES) {
+            ByteBuffer grown = ByteBuffer.allocate(pending.capacity() * 2);
+            pending.flip();
+            grown.put(pending);
+            pending = grown;
+        }
+        int start = pending.position();
+        pending.putLong(++appendedLsn);
+        pending.put((byte) req.getType().ordinal());
+        pending.put((byte) (res.getSuccess() || req.getType() == Request.Type.CREATE_ACCOUNT ? 1 : 0));
+        boolean phase = req.getType() == Request.Type.PREPARE || req.getType() == Request.Type.COMMIT || req.getType() == Request.Type.ABORT;
+        pending.putShort((short) (phase && req.getUid() == req.getFrom() ? 1 : 0));
+        long clock = req.getStamp();
+        lastClock = clock;
+        highestClock = Math.max(highestClock, clock);
+        pending.putLong(clock);
+        pending.putInt(req.getUid());
+        pending.putInt(phase ? (int) (req.getParent() >>> 32) : req.getFrom());
+        pending.putInt(phase ? (int) req.getParent() : req.getTo());
+        pending.putInt(req.getAmount());
+        crc.reset();
+        crc.update(pending.array(), start, RECORD_BYTES - 4);
+        pending.putInt((int) crc.getValue());
+        appends.incrementAndGet();
+    }
+
+    /**
+     * Background writer: write everything appended since the last write, force it when the durability level asks
+     * for it, then wake the appends waiting for it
+     */
+    private void runWriter() {
+        long lastSync = System.nanoTime();
+        while(true) {
+            long upTo, drop;
+            boolean idle;
+            lock.lock();
+            try {
+                while(pending.position() == 0 && !closed && !(durability == Durability.ASYNC && durableLsn < appendedLsn)
+                        && dropLsn == 0) {
+                    try {
+                        changed.await();
+                    } catch(InterruptedException e) {
+                        failure = new InterruptedIOException("Write-ahead log writer interrupted");
+                        changed.signalAll();
+                        return;
+                    }
+                }
+                if(pending.position() == 0 && closed)
+                    return;
+                idle = pending.position() == 0;
+                ByteBuffer full = pending;
+                pending = spare;
+                spare = full;
+                upTo = appendedLsn;
+                drop = dropLsn;
+                dropLsn = 0;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                if(drop != 0)
+                    dropThrough(drop);
+                if(!idle) {
+                    spare.flip();
+                    while(spare.hasRemaining()) {
+                        channel.write(spare);
+                    }
+                    spare.clear();
+                    writes.incrementAndGet();
+                }
+                boolean force = durability == Durability.SYNC;
+                if(durability == Durability.ASYNC) {
+                    long waitNanos = syncInterval * 1_000_000L - (System.nanoTime() - lastSync);
+                    if(waitNanos > 0)
+                        Thread.sleep(waitNanos / 1_000_000L, (int) (waitNanos % 1_000_000L));
+                    force = true;
+                }
+                if(force) {
+                    channel.force(false);
+                    syncs.incrementAndGet();
+                    lastSync = System.nanoTime();
+                    lock.lock();
+                    try {
+                        durableLsn = Math.max(durableLsn, upTo);
+                        changed.signalAll();
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            } catch(IOException e) {
+                System.out.println("Error writing write-ahead log " + path + ": " + e);
+                fail(e);
+                return;
+            } catch(InterruptedException e) {
+                fail(new InterruptedIOException("Write-ahead log writer interrupted"));
+                return;
+            }
+        }
+    }
+
+    /**
+     * Record why the writer stopped and wake the appends waiting for it, so they fail instead of waiting forever
+     * @param e The failure
+     */
+    private void fail(IOException e) {
+        lock.lock();
+        try {
+            failure = e;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drop the records up to an lsn once a snapshot holds them. The writer drops them before its next write.
+     * @param lsn The cut lsn of a snapshot that is on disk
+     */
+    public void truncate(long lsn) {
+        lock.lock();
+        try {
+            dropLsn = Math.max(dropLsn, lsn);
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replace the log file with a copy holding only the records after an lsn - called by the writer, or by `close`
+     * once the writer has stopped. Every record appended so far up to the last write is in the file, and the copy
+     * is forced before it replaces the file, so no record after the lsn is lost if the server stops meanwhile. The
+     * last record is always kept, so a reopened log continues numbering after it.
+     * @param lsn The last lsn to drop
+     */
+    private void dropThrough(long lsn) throws IOException {
+        long records = (channel.size() - HEADER_BYTES) / RECORD_BYTES;
+        long dropped = Math.min(lsn + 1 - firstLsn, records - 1);
+        if(dropped <= 0)
+            return;
+        long keepFrom = HEADER_BYTES + dropped * RECORD_BYTES;
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try(FileChannel copy = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).putInt(MAGIC).putInt(VERSION);
+            header.flip();
+            copy.write(header);
+            long pos = keepFrom, end = channel.size();
+            while(pos < end) {
+                pos += channel.transferTo(pos, end - pos, copy);
+            }
+            copy.force(true);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel.close();
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        firstLsn += dropped;
+    }
+
+    /**
+     * Write and force every appended record, then close the log
+     */
+    public void close() {
+        lock.lock();
+        try {
+            if(closed)
+                return;
+            closed = true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writer.join();
+            lock.lock();
+            try {
+                if(dropLsn != 0)
+                    dropThrough(dropLsn);
+                pending.flip();
+                while(pending.hasRemaining()) {
+                    channel.write(pending);
+                }
+                pending.clear();
+            } finally {
+                lock.unlock();
+            }
+            channel.force(false);
+            channel.close();
+        } catch(IOException | InterruptedException e) {
+            System.out.println("Error closing write-ahead log " + path + ": " + e);
+        }
+    }
+
+    /**
+     * Get the lsn of the last appended record
+     * @return [long] The lsn, 0 if the log is empty
+     */
+    public long getLastLsn() {
+        lock.lock();
+        try {
+            return appendedLsn;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the clock of the last appended record, the one numbered `getLastLsn()`
+     * @return [long] The packed lamport clock, 0 if the log is empty
+     */
+    public long getLastClock() {
+        lock.lock();
+        try {
+            return lastClock;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the highest clock of the records appended since the log was opened, or of its last record before that.
+     * Records are not appended in clock order under parallel or dependency execution, so this says nothing about
+     * which records come before an lsn - it only lets a restarted server continue its clock above every logged one.
+     * @return [long] The packed lamport clock, 0 if the log is empty
+     */
+    public long getHighestClock() {
+        lock.lock();
+        try {
+            return highestClock;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the durability level
+     * @return [Durability] The durability level
+     */
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * Get the number of records appended
+     * @return [long] The number of records
+     */
+    public long getAppends() {
+        return appends.get();
+    }
+
+    /**
+     * Get the average time a logged request spent appending, including waiting for durability
+     * @return [long] The average time in nanoseconds
+     */
+    public long getAvgAppendNanos() {
+        long n = logged.get();
+        return n == 0 ? 0 : appendNanos.get() / n;
+    }
+
+    /**
+     * Get the longest time a logged request spent appending, including waiting for durability
+     * @return [long] The time in nanoseconds
+     */
+    public long getMaxAppendNanos() {
+        return maxAppendNanos.get();
+    }
+
+    /**
+     * Get the number of writes made by the writer thread
+     * @return [long] The number of writes
+     */
+    public long getWrites() {
+        return writes.get();
+    }
+
+    /**
+     * Get the number of times the log was forced to disk
+     * @return [long] The number of forces
+     */
+    public long getSyncs() {
+        return syncs.get();
+    }
+}